@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.transport.ProtocolCodec;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Measures the PUBLISH command encode/decode and the MQTTProtocolCodec
+ * write (encode) and read (readHeader/readBody) paths.  codecWritePublish
+ * has the codec serialize the PUBLISH command directly instead of an
+ * already encoded frame.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"AT_MOST_ONCE", "AT_LEAST_ONCE", "EXACTLY_ONCE"})
+    QoS qos;
+
+    static final UTF8Buffer TOPIC = utf8("benchmark/telemetry/device-0001");
+
+    PUBLISH publish;
+    MQTTFrame encoded;
+    MQTTFrame received;
+    ProtocolCodec writeCodec;
+    ProtocolCodec readCodec;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] data = new byte[payloadSize];
+        Arrays.fill(data, (byte) 'x');
+        publish = new PUBLISH().qos(qos).topicName(TOPIC).payload(new Buffer(data));
+        publish.messageId((short) 1);
+        encoded = publish.encode();
+
+        writeCodec = new MemoryTransport(false).getProtocolCodec();
+
+        MemoryTransport reader = new MemoryTransport(false);
+        reader.replay(MemoryTransport.wireFormat(encoded));
+        readCodec = reader.getProtocolCodec();
+
+        // A frame as the codec hands it to the connection.
+        MemoryTransport scratch = new MemoryTransport(false);
+        scratch.replay(MemoryTransport.wireFormat(encoded));
+        received = (MQTTFrame) scratch.getProtocolCodec().read();
+    }
+
+    @Benchmark
+    public MQTTFrame publishEncode() {
+        return publish.encode();
+    }
+
+    @Benchmark
+    public PUBLISH publishDecode() throws Exception {
+        return new PUBLISH().decode(received);
+    }
+
+    @Benchmark
+    public ProtocolCodec.BufferState codecWrite() throws IOException {
+        writeCodec.write(encoded);
+        return writeCodec.flush();
+    }
+
+    @Benchmark
+    public ProtocolCodec.BufferState codecWritePublish() throws IOException {
+        writeCodec.write(publish);
+        return writeCodec.flush();
+    }
+
+    @Benchmark
+    public Object codecRead() throws IOException {
+        return readCodec.read();
+    }
+
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.ProtocolCodec;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportListener;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.MQTTProtocolCodec;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBCOMP;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.fusesource.mqtt.codec.PUBREC;
+import org.fusesource.mqtt.codec.PUBREL;
+
+/**
+ * <p>
+ * A Transport that never touches a socket.  Offered frames are run through
+ * the protocol codec into a channel which discards the bytes, and when
+ * auto acking is enabled it plays the part of the broker by queuing the
+ * acknowledgements an MQTT server would send back.  The queued frames are
+ * handed to the transport listener by {@link #deliverResponses()}.
+ * </p>
+ * <p>
+ * Reads from the transport's channel endlessly replay the bytes configured
+ * with {@link #replay(Buffer)} so the codec's decoder can be driven in a loop.
+ * </p>
+ */
+public class MemoryTransport implements Transport {
+
+    private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 1883);
+
+    private final ArrayDeque<MQTTFrame> responses = new ArrayDeque<MQTTFrame>();
+    private final MemoryChannel channel = new MemoryChannel();
+    private final boolean autoAck;
+
+    private TransportListener listener;
+    private DispatchQueue dispatchQueue;
+    private Executor blockingExecutor;
+    private ProtocolCodec codec;
+    private boolean closed;
+
+    public MemoryTransport(boolean autoAck) throws Exception {
+        this.autoAck = autoAck;
+        setProtocolCodec(new MQTTProtocolCodec());
+    }
+
+    /**
+     * Passes any queued broker responses to the transport listener.
+     */
+    public void deliverResponses() {
+        MQTTFrame frame;
+        while ((frame = responses.poll()) != null) {
+            listener.onTransportCommand(frame);
+        }
+    }
+
+    /**
+     * Sets the data that reads from the transport's channel will cycle over.
+     */
+    public void replay(Buffer inbound) {
+        channel.inbound = inbound;
+        channel.readPos = 0;
+    }
+
+    /**
+     * @return the number of bytes the codec has written to the transport.
+     */
+    public long bytesWritten() {
+        return channel.written;
+    }
+
+    public boolean offer(Object command) {
+        try {
+            codec.write(command);
+            codec.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (autoAck) {
+            respond((MQTTFrame) command);
+        }
+        return true;
+    }
+
+    private void respond(MQTTFrame frame) {
+        switch (frame.messageType()) {
+            case PUBLISH.TYPE: {
+                QoS qos = frame.qos();
+                if (qos == QoS.AT_LEAST_ONCE) {
+                    responses.add(new PUBACK().messageId(publishMessageId(frame)).encode());
+                } else if (qos == QoS.EXACTLY_ONCE) {
+                    responses.add(new PUBREC().messageId(publishMessageId(frame)).encode());
+                }
+                break;
+            }
+            case PUBREL.TYPE:
+                responses.add(new PUBCOMP().messageId(messageId(frame.buffers[0], 0)).encode());
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Reads the message id out of the variable header of an encoded PUBLISH,
+     * it directly follows the length prefixed topic name.
+     */
+    private static short publishMessageId(MQTTFrame frame) {
+        Buffer header = frame.buffers[0];
+        int topicLength = ((header.get(0) & 0xFF) << 8) | (header.get(1) & 0xFF);
+        return messageId(header, 2 + topicLength);
+    }
+
+    private static short messageId(Buffer buffer, int offset) {
+        return (short) (((buffer.get(offset) & 0xFF) << 8) | (buffer.get(offset + 1) & 0xFF));
+    }
+
+    /**
+     * @return the bytes the frame occupies on the wire.
+     */
+    public static Buffer wireFormat(MQTTFrame frame) {
+        try {
+            DataByteArrayOutputStream os = new DataByteArrayOutputStream();
+            os.write(frame.header());
+            int remaining = 0;
+            for (Buffer buffer : frame.buffers) {
+                remaining += buffer.length;
+            }
+            do {
+                byte digit = (byte) (remaining & 0x7F);
+                remaining >>>= 7;
+                if (remaining > 0) {
+                    digit |= 0x80;
+                }
+                os.write(digit);
+            } while (remaining > 0);
+            for (Buffer buffer : frame.buffers) {
+                os.write(buffer.data, buffer.offset, buffer.length);
+            }
+            return os.toBuffer();
+        } catch (IOException e) {
+            throw new RuntimeException("The impossible happened");
+        }
+    }
+
+    public void start(Runnable onComplete) {
+        if (onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    public void stop(Runnable onComplete) {
+        closed = true;
+        if (onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    public void start(Task onComplete) {
+        start((Runnable) onComplete);
+    }
+
+    public void stop(Task onComplete) {
+        stop((Runnable) onComplete);
+    }
+
+    public boolean full() {
+        return false;
+    }
+
+    public void flush() {
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener listener) {
+        this.listener = listener;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public void suspendRead() {
+    }
+
+    public void resumeRead() {
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return ADDRESS;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return ADDRESS;
+    }
+
+    public void drainInbound() {
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    public ProtocolCodec getProtocolCodec() {
+        return codec;
+    }
+
+    public void setProtocolCodec(ProtocolCodec codec) throws Exception {
+        this.codec = codec;
+        if (codec != null) {
+            codec.setTransport(this);
+        }
+    }
+
+    public Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public void setBlockingExecutor(Executor blockingExecutor) {
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    public ReadableByteChannel getReadChannel() {
+        return channel;
+    }
+
+    public WritableByteChannel getWriteChannel() {
+        return channel;
+    }
+
+    /**
+     * Swallows everything written to it and reads back the replay buffer
+     * over and over again.
+     */
+    static class MemoryChannel implements GatheringByteChannel, ReadableByteChannel {
+
+        long written;
+        Buffer inbound;
+        int readPos;
+
+        public int write(ByteBuffer src) {
+            int rc = src.remaining();
+            src.position(src.limit());
+            written += rc;
+            return rc;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long rc = 0;
+            for (int i = offset; i < offset + length; i++) {
+                rc += write(srcs[i]);
+            }
+            return rc;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int read(ByteBuffer dst) {
+            if (inbound == null || inbound.length == 0) {
+                return 0;
+            }
+            int rc = 0;
+            while (dst.hasRemaining()) {
+                int chunk = Math.min(dst.remaining(), inbound.length - readPos);
+                dst.put(inbound.data, inbound.offset + readPos, chunk);
+                readPos = (readPos + chunk) % inbound.length;
+                rc += chunk;
+            }
+            return rc;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
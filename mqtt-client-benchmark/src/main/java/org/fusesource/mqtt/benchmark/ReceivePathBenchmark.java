@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.transport.TransportListener;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.Listener;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.fusesource.mqtt.codec.PUBREL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Measures the receive side of a CallbackConnection: processFrame decoding
+ * an inbound PUBLISH, toReceiver handing it to the Listener, and the
+ * listener running the ack which sends the PUBACK or PUBREC.  For QoS 2
+ * the broker's PUBREL (and our PUBCOMP) is included too.
+ * </p>
+ * <p>
+ * Like {@link SendPathBenchmark} the connection is driven directly from the
+ * benchmark thread.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePathBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"AT_MOST_ONCE", "AT_LEAST_ONCE", "EXACTLY_ONCE"})
+    QoS qos;
+
+    static final UTF8Buffer TOPIC = utf8("benchmark/telemetry/device-0001");
+
+    CallbackConnection connection;
+    TransportListener session;
+    MQTTFrame publishFrame;
+    MQTTFrame pubrelFrame;
+    long received;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] data = new byte[payloadSize];
+        Arrays.fill(data, (byte) 'x');
+        PUBLISH publish = new PUBLISH().qos(qos).topicName(TOPIC).payload(new Buffer(data));
+        publish.messageId((short) 1);
+        publishFrame = inbound(publish.encode());
+        pubrelFrame = inbound(new PUBREL().messageId((short) 1).encode());
+
+        MQTT mqtt = new MQTT();
+        mqtt.setClientId("benchmark");
+        mqtt.setKeepAlive((short) 0);
+        connection = mqtt.callbackConnection();
+        connection.listener(new Listener() {
+            public void onConnected() {
+            }
+            public void onDisconnected() {
+            }
+            public void onPublish(UTF8Buffer topic, Buffer body, Runnable ack) {
+                received += body.length;
+                ack.run();
+            }
+            public void onFailure(Throwable value) {
+                throw new RuntimeException(value);
+            }
+        });
+        MemoryTransport transport = new MemoryTransport(false);
+        connection.onSessionEstablished(transport);
+        session = transport.getTransportListener();
+    }
+
+    /**
+     * Round trips the frame through the codec so it is shaped like a frame
+     * that was read off the socket.
+     */
+    private static MQTTFrame inbound(MQTTFrame frame) throws Exception {
+        MemoryTransport scratch = new MemoryTransport(false);
+        scratch.replay(MemoryTransport.wireFormat(frame));
+        return (MQTTFrame) scratch.getProtocolCodec().read();
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.kill(null);
+    }
+
+    @Benchmark
+    public long receive() {
+        session.onTransportCommand(publishFrame);
+        if (qos == QoS.EXACTLY_ONCE) {
+            session.onTransportCommand(pubrelFrame);
+        }
+        return received;
+    }
+
+}
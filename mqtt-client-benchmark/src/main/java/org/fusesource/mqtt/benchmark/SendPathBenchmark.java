@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Measures CallbackConnection.publish from the API call until the publish
+ * callback completes.  The MemoryTransport acks each message the way a
+ * broker would, so QoS 1 and 2 include the PUBACK or PUBREC/PUBREL/PUBCOMP
+ * processing but no network round trip.
+ * </p>
+ * <p>
+ * The connection is driven directly from the benchmark thread rather than
+ * from its dispatch queue.  That is safe since no other thread touches it
+ * (keep alive is disabled), and JMH forks run without -ea so the queue's
+ * thread confinement assertions do not fire.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendPathBenchmark {
+
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"AT_MOST_ONCE", "AT_LEAST_ONCE", "EXACTLY_ONCE"})
+    QoS qos;
+
+    static final UTF8Buffer TOPIC = utf8("benchmark/telemetry/device-0001");
+
+    CallbackConnection connection;
+    MemoryTransport transport;
+    Buffer payload;
+    long completed;
+
+    final Callback<Void> onComplete = new Callback<Void>() {
+        public void onSuccess(Void value) {
+            completed++;
+        }
+        public void onFailure(Throwable value) {
+            throw new RuntimeException(value);
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] data = new byte[payloadSize];
+        Arrays.fill(data, (byte) 'x');
+        payload = new Buffer(data);
+
+        MQTT mqtt = new MQTT();
+        mqtt.setClientId("benchmark");
+        mqtt.setKeepAlive((short) 0);
+        connection = mqtt.callbackConnection();
+        transport = new MemoryTransport(true);
+        connection.onSessionEstablished(transport);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connection.kill(null);
+    }
+
+    @Benchmark
+    public long publish() {
+        connection.publish(TOPIC, payload, qos, false, onComplete);
+        transport.deliverResponses();
+        return completed;
+    }
+
+}
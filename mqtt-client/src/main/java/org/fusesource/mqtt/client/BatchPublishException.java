@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Reports the messages of a publish batch which could not be published.
+ * </p>
+ */
+public class BatchPublishException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<PublishRequest> messages;
+    private final Throwable[] failures;
+
+    BatchPublishException(List<PublishRequest> messages, Throwable[] failures, int failed) {
+        super(failed + " of " + messages.size() + " messages could not be published");
+        this.messages = messages;
+        this.failures = failures;
+        for (Throwable failure : failures) {
+            if( failure!=null ) {
+                initCause(failure);
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the batch that was published.
+     */
+    public List<PublishRequest> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the failure of the message at the same index of the batch, or null if it was published.
+     */
+    public Throwable getFailure(int index) {
+        return failures[index];
+    }
+
+    public boolean isPublished(int index) {
+        return failures[index] == null;
+    }
+}
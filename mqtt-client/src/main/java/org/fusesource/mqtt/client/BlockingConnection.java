@@ -22,8 +22,11 @@ import org.fusesource.hawtbuf.Buffer;
 import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.hawtdispatch.Task;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.fusesource.hawtbuf.Buffer.utf8;
 
@@ -38,6 +41,13 @@ public class BlockingConnection {
 
     private final FutureConnection next;
 
+    // Tracks the publishAsync calls still waiting on their acknowledgement.
+    private final ReentrantLock publishLock = new ReentrantLock();
+    private final Condition publishCompleted = publishLock.newCondition();
+    private int publishWindow = 100;
+    private int outstandingPublishes;
+    private Throwable publishFailure;
+
     public BlockingConnection(FutureConnection next) {
         this.next = next;
     }
@@ -83,6 +93,119 @@ public class BlockingConnection {
         publish(utf8(topic), new Buffer(payload), qos, retain);
     }
 
+    public void publishAsync(final String topic, final byte[] payload, final QoS qos, final boolean retain) throws Exception {
+        publishAsync(utf8(topic), new Buffer(payload), qos, retain);
+    }
+
+    /**
+     * <p>
+     * Publishes a message without waiting for it to be acknowledged, so a
+     * producer thread is not limited to one message per round trip to the
+     * server.  The call only blocks while the publish window is full.
+     * </p>
+     * <p>
+     * If an earlier asynchronous publish failed, its error is thrown by the
+     * next call to publishAsync or {@link #flush()}.
+     * </p>
+     * <p>
+     * The payload is not copied, it must not be modified until {@link #flush()}
+     * returned.
+     * </p>
+     */
+    public void publishAsync(final UTF8Buffer topic, final Buffer payload, final QoS qos, final boolean retain) throws Exception {
+        publishLock.lock();
+        try {
+            while( outstandingPublishes >= publishWindow ) {
+                publishCompleted.await();
+            }
+            throwPublishFailure();
+            outstandingPublishes++;
+        } finally {
+            publishLock.unlock();
+        }
+        this.next.publish(topic, payload, qos, retain).then(new Callback<Void>() {
+            public void onSuccess(Void value) {
+                publishCompleted(null);
+            }
+            public void onFailure(Throwable value) {
+                publishCompleted(value);
+            }
+        });
+    }
+
+    private void publishCompleted(Throwable failure) {
+        publishLock.lock();
+        try {
+            outstandingPublishes--;
+            if( failure!=null && publishFailure==null ) {
+                publishFailure = failure;
+            }
+            publishCompleted.signalAll();
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every message sent with publishAsync has been acknowledged.
+     */
+    public void flush() throws Exception {
+        publishLock.lock();
+        try {
+            while( outstandingPublishes > 0 ) {
+                publishCompleted.await();
+            }
+            throwPublishFailure();
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    private void throwPublishFailure() throws Exception {
+        Throwable e = publishFailure;
+        if( e!=null ) {
+            publishFailure = null;
+            if( e instanceof Exception ) {
+                throw (Exception) e;
+            } else if( e instanceof Error ) {
+                throw (Error) e;
+            } else {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public int getPublishWindow() {
+        return publishWindow;
+    }
+
+    /**
+     * Sets how many publishAsync messages can be waiting on an
+     * acknowledgement before publishAsync blocks.  Defaults to 100.
+     */
+    public void setPublishWindow(int publishWindow) {
+        if( publishWindow < 1 ) {
+            throw new IllegalArgumentException("publishWindow must be at least 1");
+        }
+        publishLock.lock();
+        try {
+            this.publishWindow = publishWindow;
+            publishCompleted.signalAll();
+        } finally {
+            publishLock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the messages and waits for all of them to complete, so
+     * the batch costs one round trip to the server instead of one per message.
+     *
+     * @throws BatchPublishException if some of the messages could not be published.
+     */
+    public void publishBatch(final List<PublishRequest> messages) throws Exception {
+        this.next.publishBatch(messages).await();
+    }
+
     public Message receive() throws Exception {
         return this.next.receive().await();
     }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * A Listener variant which receives message payloads in read only direct
+ * ByteBuffers taken from a {@link DirectBufferPool}, so they can be handed
+ * to NIO channels or off heap stores without being copied again and large
+ * payloads don't stay on the Java heap.
+ * </p>
+ * <p>
+ * The payload belongs to the listener until it runs the release Runnable,
+ * which returns the memory to the pool.  It must be run exactly once and
+ * the payload must not be used afterwards.  Running it again throws an
+ * IllegalStateException, even once the memory went to another message.
+ * </p>
+ */
+public interface ByteBufferListener {
+    public void onConnected();
+    public void onDisconnected();
+    public void onPublish(UTF8Buffer topic, ByteBuffer payload, Runnable ack, Runnable release);
+    public void onFailure(Throwable value);
+}
@@ -25,13 +25,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.SocketAddress;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
@@ -61,6 +63,7 @@ import org.fusesource.mqtt.codec.PUBREC;
 import org.fusesource.mqtt.codec.PUBREL;
 import org.fusesource.mqtt.codec.SUBACK;
 import org.fusesource.mqtt.codec.SUBSCRIBE;
+import org.fusesource.mqtt.codec.TopicCache;
 import org.fusesource.mqtt.codec.UNSUBACK;
 import org.fusesource.mqtt.codec.UNSUBSCRIBE;
 
@@ -82,11 +85,27 @@ public class CallbackConnection {
         final MQTTFrame frame;
         private final short id;
         final Callback cb;
+        // Only set on requests held until they can be given a message id.
+        final Acked command;
+        // When the publish was issued, only tracked for the publish to ack latency metrics.
+        long issuedAt;
+        // Only set on the publishes being traced.
+        PublishTrace trace;
+        // For a QoS 0 publish waiting on the socket to take its payload, the encoded counter at its end.
+        long end;
 
         Request(int id, MQTTFrame frame, Callback cb) {
             this.id = (short) id;
             this.cb = cb;
             this.frame = frame;
+            this.command = null;
+        }
+
+        Request(Acked command, Callback cb) {
+            this.id = 0;
+            this.cb = cb;
+            this.frame = null;
+            this.command = command;
         }
     }
 
@@ -109,23 +128,117 @@ public class CallbackConnection {
     private Transport transport;
     private Listener listener = DEFAULT_LISTENER;
     private Runnable refiller;
-    private Map<Short, Request> requests = new ConcurrentHashMap<Short, Request>();
-    private LinkedList<Request> overflow = new LinkedList<Request>();
-    private HashSet<Short> processed = new HashSet<Short>();
+    // Set by disconnect() to stop the transport once its DISCONNECT has been written.
+    private Runnable disconnectRefill;
+    private MessageIdMap<Request> requests = new MessageIdMap<Request>();
+    private RingBuffer<Request> overflow = new RingBuffer<Request>();
+    // Requests waiting for room in the in flight window (see MQTT.setMaxInflight).
+    private RingBuffer<Request> pending = new RingBuffer<Request>();
+    // Overflow metrics, readable from any thread.  See queueChanged().
+    private volatile int queued;
+    private volatile int queuedHighWaterMark;
+    private volatile long overflowDropped;
+    // Threads waiting for room in the overflow, see awaitRoom().
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition room = roomLock.newCondition();
+    private volatile int roomWaiters;
+    // Publishes awaitRoom() let through which are not on the dispatch queue yet, guarded by roomLock.
+    private int admitted;
+
+    // Frames held in the overflow by the flush policy, see hold().
+    private int heldFrames;
+    private int heldBytes;
+    private boolean flushScheduled;
+    private boolean draining;
+    // The requests at the head of the overflow being resent after a reconnect, see replayAdmits().
+    private int replaying;
+    private double replayMessageTokens;
+    private double replayByteTokens;
+    private long replayRefilledAt;
+    private boolean replayScheduled;
+    // Acks waiting for room on the transport while a replay is paced out of the overflow, they go out ahead of it.
+    private final RingBuffer<MQTTFrame> controls = new RingBuffer<MQTTFrame>();
+    private final Task replayTask = new Task() {
+        public void run() {
+            replayScheduled = false;
+            drainOverflow();
+        }
+    };
+
+    private final Task flushTask = new Task() {
+        public void run() {
+            flushScheduled = false;
+            drainOverflow();
+        }
+    };
+    // Message ids held by requests which have not been acked yet.
+    private BitSet messageIds = new BitSet();
+    private int inflight;
+    // QoS 2 message ids we have sent a PUBREC for but not yet seen the PUBREL.
+    private BitSet processed = new BitSet();
+
+    // Inbound commands are decoded into these, they are only used while processing a frame.
+    private final PUBLISH inboundPublish = new PUBLISH();
+    private final PUBACK inboundPuback = new PUBACK();
+    private final PUBREC inboundPubrec = new PUBREC();
+    private final PUBREL inboundPubrel = new PUBREL();
+    private final PUBCOMP inboundPubcomp = new PUBCOMP();
+    // Interned topic names of received messages, null if disabled.
+    private final TopicCache topics;
+
+    // Ack frames which get their message id filled in and are reused once written, see sendAck().
+    private final MQTTFrame pubackTemplate = new PUBACK().encode();
+    private final MQTTFrame pubrecTemplate = new PUBREC().encode();
+    private final MQTTFrame pubrelTemplate = new PUBREL().encode();
+    private final MQTTFrame pubcompTemplate = new PUBCOMP().encode();
+
+    // The ack runnables handed to the listener, by message id.
+    private AckHandle[] ackHandles;
     private Throwable failure;
     private boolean disconnected = false;
     private HeartBeatMonitor heartBeatMonitor;
     private long pingedAt;
+    private long pingSentAt;
     private long reconnects = 0;
+    private long reconnectDelay = 0;
+    // When the current session was established, 0 if there is none.
+    private long establishedAt;
+    // The servers to connect to and how they have been doing.
+    private final HostList hosts;
     private AtomicInteger suspendCount = new AtomicInteger(0);
     private AtomicInteger suspendChanges = new AtomicInteger(0);
 
     private HashMap<UTF8Buffer, QoS> activeSubs = new HashMap<UTF8Buffer, QoS>();
+    // Set once the messages left in the message store have been queued for publishing.
+    private boolean storeReplayed;
+    // Set while drainSpool() is publishing, since sending can call back into it.
+    private boolean spoolDraining;
+    // The traces of the publishes the transport took but has not written to the socket yet, in write order.
+    private final RingBuffer<PublishTrace> flushing = new RingBuffer<PublishTrace>();
+    // The QoS 0 requests whose payload the transport still references, their callbacks run once it is written.
+    private final RingBuffer<Request> unflushed = new RingBuffer<Request>();
+    // The codec of the transport when it is an MQTTProtocolCodec, it tells when frames reach the socket.
+    private MQTTProtocolCodec codec;
+    // Set when the tracer looks at the frames sent, which rules out publishing without building a frame.
+    private final boolean framesTraced;
+    private long publishes;
+    // The handlers of the subscriptions made with subscribe(Topic, MessageHandler, Callback), by filter.
+    private final TopicTrie<MessageHandler> handlers = new TopicTrie<MessageHandler>();
 
 
     // constructor
     public CallbackConnection(MQTT mqtt) {
         this.mqtt = mqtt;
+        this.topics = mqtt.topicCacheSize > 0 ? new TopicCache(mqtt.topicCacheSize) : null;
+        this.hosts = new HostList(mqtt.getHosts(), mqtt.failoverPolicy);
+        this.framesTraced = overridesOnSend(mqtt.tracer);
+        if( mqtt.dedupJournal!=null ) {
+            if( mqtt.isCleanSession() ) {
+                mqtt.dedupJournal.clearAll();
+            } else {
+                processed = mqtt.dedupJournal.load();
+            }
+        }
         if(this.mqtt.dispatchQueue == null) {
             this.queue = createQueue("mqtt client");
         } else {
@@ -141,6 +254,14 @@ public class CallbackConnection {
             cb.onFailure(new IllegalStateException("Already connected")); //xcy cb.onFailure() should exit the programme
             return;
         }
+        if( mqtt.messageStore!=null && !storeReplayed ) {
+            try {
+                replayStore();
+            } catch (IOException e) {
+                cb.onFailure(e);
+                return;
+            }
+        }
         try {
             //xcy Try create transport, by passing in an instance of LoginHandler 
             //xcy LoginHandler implements Callback<Transport>.
@@ -164,35 +285,7 @@ public class CallbackConnection {
                 public void onSuccess(Void value) {
 
                     logger.debug("In Callback<Void>().onSuccess from createTransport(new LoginHandler(...,false)"); //xcy
-                    mqtt.tracer.debug("Restoring MQTT connection state");
-                    // Setup a new overflow so that the replay can be sent out before the original overflow list.
-                    LinkedList<Request> originalOverflow = overflow;
-                    Map<Short, Request> originalRequests = requests;
-                    overflow = new LinkedList<Request>();
-                    requests = new ConcurrentHashMap<Short, Request>();
-
-                    // Restore any active subscriptions.
-                    if (!activeSubs.isEmpty()) {
-                        ArrayList<Topic> topics = new ArrayList<Topic>(activeSubs.size());
-                        for (Map.Entry<UTF8Buffer, QoS> entry : activeSubs.entrySet()) {
-                            topics.add(new Topic(entry.getKey(), entry.getValue()));
-                        }
-                        send(new SUBSCRIBE().topics(topics.toArray(new Topic[topics.size()])), null);
-                    }
-
-                    // Replay any un-acked requests..
-                    for (Map.Entry<Short, Request> entry : originalRequests.entrySet()) {
-                        MQTTFrame frame = entry.getValue().frame;
-                        frame.dup(true); // set the dup flag as these frames were previously transmitted.
-                        send(entry.getValue());
-                    }
-
-                    // Replay the original overflow
-                    for (Request request : originalOverflow) {
-                        // Stuff in the overflow never got sent out.. so no need to set the dup flag
-                        send(request);
-                    }
-
+                    restoreState();
                 }
 
                 public void onFailure(Throwable value) {
@@ -206,12 +299,80 @@ public class CallbackConnection {
         logger.debug("End reconnect()"); //xcy
     }
     
+    /**
+     * Once a reconnect logged in, subscribes again and resends the requests
+     * which were not acked or not sent yet.
+     */
+    void restoreState() {
+        mqtt.tracer.debug("Restoring MQTT connection state");
+        // Setup a new overflow so that the replay can be sent out before the original overflow list.
+        RingBuffer<Request> originalOverflow = overflow;
+        MessageIdMap<Request> originalRequests = requests;
+        overflow = new RingBuffer<Request>();
+        requests = new MessageIdMap<Request>();
+
+        // Restore any active subscriptions.
+        if (!activeSubs.isEmpty()) {
+            ArrayList<Topic> topics = new ArrayList<Topic>(activeSubs.size());
+            for (Map.Entry<UTF8Buffer, QoS> entry : activeSubs.entrySet()) {
+                topics.add(new Topic(entry.getKey(), entry.getValue()));
+            }
+            // Don't hold the subscriptions back behind a full in flight window.
+            SUBSCRIBE command = new SUBSCRIBE().topics(topics.toArray(new Topic[topics.size()]));
+            short id = getNextMessageId();
+            command.messageId(id);
+            send(new Request(id, command.encode(), null));
+        }
+
+        boolean paced = mqtt.replayRate > 0 || mqtt.replayByteRate > 0;
+        replaying = 0;
+
+        // Replay any un-acked requests..
+        for (Request request : originalRequests.values()) {
+            request.frame.dup(true); // set the dup flag as these frames were previously transmitted.
+            if( paced ) {
+                overflow.addLast(request);
+            } else {
+                send(request);
+            }
+        }
+
+        // Replay the original overflow
+        for (Request request : originalOverflow.values()) {
+            // Stuff in the overflow never got sent out.. so no need to set the dup flag
+            if( paced ) {
+                overflow.addLast(request);
+            } else {
+                send(request);
+            }
+        }
+        if( paced ) {
+            // drainOverflow() lets them out at the replay rate once the login completes.
+            replaying = overflow.size();
+            replayMessageTokens = Math.max(1, mqtt.replayRate / 10);
+            replayByteTokens = Math.max(1, mqtt.replayByteRate / 10);
+            replayRefilledAt = System.nanoTime();
+        }
+        queueChanged();
+    }
+
     void handleSessionFailure(Throwable error) {
-        logger.debug("In handleSessionFailure(Throwable error)"+error.toString()); //xcy
+        logger.debug("In handleSessionFailure(Throwable error): {}", error); //xcy
+        // A session that stayed up long enough starts the attempts and the back off over.
+        if( establishedAt != 0 && mqtt.reconnectStableUptime >= 0
+                && System.nanoTime() - establishedAt >= TimeUnit.MILLISECONDS.toNanos(mqtt.reconnectStableUptime) ) {
+            reconnects = 0;
+            reconnectDelay = 0;
+        }
+        establishedAt = 0;
+        hosts.failed();
         // Socket failure, should we try to reconnect?
         if( !disconnected && (mqtt.reconnectAttemptsMax<0 || reconnects < mqtt.reconnectAttemptsMax ) ) {
 
             mqtt.tracer.debug("Reconnecting transport");
+            if( mqtt.metrics!=null ) {
+                mqtt.metrics.onReconnect();
+            }
             // Cleanup the previous transport.
             if(heartBeatMonitor!=null) {
                 logger.debug("heartBeatMonitor!=null; Call: heartBeatMonitor.stop()"); //xcy
@@ -222,7 +383,7 @@ public class CallbackConnection {
             transport = null;
 
             if(t!=null) {
-                logger.debug("t!=null; t = transport = "+t); //xcy
+                logger.debug("t!=null; t = transport = {}", t); //xcy
                 t.stop(new Task() {
                     @Override
                     public void run() {
@@ -238,19 +399,26 @@ public class CallbackConnection {
             // nope.
             handleFatalFailure(error);
         }
-        logger.debug("End handleSessionFailure(Throwable error)"+error.toString()); //xcy
+        logger.debug("End handleSessionFailure(Throwable error): {}", error); //xcy
     }
 
     //xcy reconnect upon establishing fresh TCP transport failure
     void reconnect(final Callback<Transport> onConnect) { //xcy arg onConnect is the LoginHandler
         logger.debug("In reconnect(final Callback<Transport> onConnect)"); //xcy
-        long reconnectDelay = mqtt.reconnectDelay;
-        if( reconnectDelay> 0 && mqtt.reconnectBackOffMultiplier > 1.0 ) {
-            reconnectDelay = (long) Math.pow(mqtt.reconnectDelay*reconnects, mqtt.reconnectBackOffMultiplier);
+        if( !hosts.exhausted() ) {
+            // Another server is left to try, don't back off.
+            mqtt.tracer.debug("Failing over from %s", hosts.current());
+            connectAfter(0, onConnect);
+        } else {
+            reconnectDelay = Math.max(0, mqtt.reconnectStrategy().delay(reconnects, reconnectDelay));
+            reconnects += 1;
+            connectAfter(reconnectDelay, onConnect);
         }
-        reconnectDelay = Math.min(reconnectDelay, mqtt.reconnectDelayMax);
-        reconnects += 1;
-        queue.executeAfter(reconnectDelay, TimeUnit.MILLISECONDS, new Task() {
+        logger.debug("End reconnect(final Callback<Transport> onConnect)"); //xcy
+    }
+
+    private void connectAfter(long delay, final Callback<Transport> onConnect) {
+        queue.executeAfter(delay, TimeUnit.MILLISECONDS, new Task() {
             @Override
             public void run() {
                 if(disconnected) {
@@ -267,7 +435,6 @@ public class CallbackConnection {
                 }
             }
         });
-        logger.debug("End reconnect(final Callback<Transport> onConnect)"); //xcy
     }
 
     /**
@@ -281,7 +448,8 @@ public class CallbackConnection {
     void createTransport(final Callback<Transport> onConnect) throws Exception {
         logger.debug("In createTransport(final Callback<Transport> onConnect)"); //xcy
         mqtt.tracer.debug("Connecting");
-        String scheme = mqtt.host.getScheme();
+        final URI host = hosts.next();
+        String scheme = host.getScheme();
 
         final Transport transport;
         if( "tcp".equals(scheme) ) {
@@ -294,9 +462,11 @@ public class CallbackConnection {
             ssl.setSSLContext(mqtt.sslContext);
             
             //xcy Show all SSL Cipher Suites available
-            logger.trace("Available Cipher Suties:"); //xcy
-            for(String str : mqtt.sslContext.getSupportedSSLParameters().getCipherSuites()) {
-                 logger.trace(str);
+            if( logger.isTraceEnabled() ) {
+                logger.trace("Available Cipher Suties:"); //xcy
+                for(String str : mqtt.sslContext.getSupportedSSLParameters().getCipherSuites()) {
+                     logger.trace(str);
+                }
             }
 
             //String csList = "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384"; //xcy a TSLv1.2 cipher suite
@@ -307,6 +477,12 @@ public class CallbackConnection {
             throw new Exception("Unsupported URI scheme '"+scheme+"'");
         }
 
+        if( mqtt.blockingExecutor == null && mqtt.useVirtualThreads ) {
+            mqtt.blockingExecutor = MQTT.getVirtualThreadExecutor();
+            if( mqtt.blockingExecutor == null ) {
+                logger.debug("Virtual threads are not supported by this JVM, using the blocking thread pool");
+            }
+        }
         if( mqtt.blockingExecutor == null ) {
             mqtt.blockingExecutor = MQTT.getBlockingThreadPool();
         }
@@ -323,7 +499,7 @@ public class CallbackConnection {
             tcp.setSendBufferSize(mqtt.sendBufferSize);
             tcp.setTrafficClass(mqtt.trafficClass);
             tcp.setUseLocalHost(mqtt.useLocalHost);
-            tcp.connecting(mqtt.host, mqtt.localAddress);
+            tcp.connecting(host, mqtt.localAddress);
         }
 
         logger.debug("setTransportListener for (1) establishing fresh TCP connection"); //xcy
@@ -344,7 +520,7 @@ public class CallbackConnection {
             @Override
             public void onTransportFailure(final IOException error) {
                 logger.debug("In DefaultTransportListener.onTransportFailure() from setTransportListener in createTransport"); //xcy
-                mqtt.tracer.debug("Transport failure: " + error);
+                mqtt.tracer.debug("Transport failure: %s", error);
                 onFailure(error); //onFailure() of this new DefaultTransportListener()
             }
 
@@ -388,7 +564,7 @@ public class CallbackConnection {
                 @Override
                 public void onTransportFailure(final IOException error) {
                     logger.debug("In DefaultTransportListener.onTransportFailure() from setTransportListener in LoginHandler.onSuccess()"); //xcy
-                    mqtt.tracer.debug("Transport failure: " + error);
+                    mqtt.tracer.debug("Transport failure: %s", error);
                     
 //                    transport.stop(NOOP);
 //                    onFailure(error);
@@ -405,19 +581,19 @@ public class CallbackConnection {
                 public void onTransportCommand(Object command) {
                     logger.debug("In DefaultTransportListener.onTransportCommand() from setTransportListener in LoginHandler.onSuccess()"); //xcy
                     //xcy SslSession established
-                    if( transport instanceof SslTransport ) { //xcy
+                    if( transport instanceof SslTransport && logger.isDebugEnabled() ) { //xcy
                         SslTransport mySsl = (SslTransport)transport; //xcy
-                        logger.debug("CipherSuite used: " + mySsl.getSSLSession().getCipherSuite()); //xcy
-                        logger.debug("Protocol used: " + mySsl.getSSLSession().getProtocol()); //xcy
+                        logger.debug("CipherSuite used: {}", mySsl.getSSLSession().getCipherSuite()); //xcy
+                        logger.debug("Protocol used: {}", mySsl.getSSLSession().getProtocol()); //xcy
                     }  //xcy
                     
                     final MQTTFrame response = (MQTTFrame) command;
-                    mqtt.tracer.onReceive(response);
+                    onReceive(response);
                     try {
                         switch (response.messageType()) {
                             case CONNACK.TYPE:
                                 final CONNACK connack = new CONNACK().decode(response);
-                                logger.debug("connack.code() = "+connack.code()); //xcy
+                                logger.debug("connack.code() = {}", connack.code()); //xcy
                                 switch (connack.code()) {
                                     case CONNECTION_ACCEPTED:
                                         mqtt.tracer.debug("MQTT login accepted");
@@ -449,7 +625,7 @@ public class CallbackConnection {
                                 }
                                 break;
                             default:
-                                mqtt.tracer.debug("Received unexpected MQTT frame: " + response.messageType());
+                                mqtt.tracer.debug("Received unexpected MQTT frame: %s", response.messageType());
                                 // Naughty MQTT server? No point in reconnecting.
 //                                transport.stop(NOOP);
 //                                cb.onFailure(new IOException("Could not connect. Received unexpected command: " + response.messageType()));
@@ -462,7 +638,7 @@ public class CallbackConnection {
                                 });
                         }
                     } catch (final ProtocolException e) {
-                        mqtt.tracer.debug("Protocol error: " + e);
+                        mqtt.tracer.debug("Protocol error: %s", e);
 //                        transport.stop(NOOP);
 //                        cb.onFailure(e);
                         logger.debug("Call: to close transport due to Protocol error."); //xcy
@@ -490,14 +666,18 @@ public class CallbackConnection {
             }
             MQTTFrame encoded = mqtt.connect.encode();
             boolean accepted = transport.offer(encoded);
-            logger.debug("boolean accepted = " + accepted); //xcy
-            mqtt.tracer.onSend(encoded);
+            logger.debug("boolean accepted = {}", accepted); //xcy
+            onSend(encoded);
             mqtt.tracer.debug("Logging in");
             assert accepted: "First frame should always be accepted by the transport";
         } //xcy end of onSuccess
         
         private boolean tryReconnect() {
             logger.debug("In LoginHandler.tryReconnect()"); //xcy
+            if( !hosts.exhausted() ) {
+                // Failing over to another server doesn't count as an attempt.
+                return true;
+            }
             if(initialConnect) {
                 logger.debug("initialConnect=true; reconnects={}; connectAttemptsMax={}",
                         reconnects,mqtt.connectAttemptsMax); //xcy
@@ -512,7 +692,10 @@ public class CallbackConnection {
         public void onFailure(Throwable value) { //xcy TCP layer failure
             // Socket failure, should we try to reconnect?
             logger.debug("In LoginHandler.onFailure"); //xcy
-            logger.debug("disconnected = "+disconnected+"; tryReconnect() = "+tryReconnect()); //xcy
+            hosts.failed();
+            if( logger.isDebugEnabled() ) {
+                logger.debug("disconnected = {}; tryReconnect() = {}", disconnected, tryReconnect()); //xcy
+            }
             if( !disconnected && tryReconnect() ) {
                 logger.debug("Call: reconnect(this)..."); //xcy
                 reconnect(this); //xcy "this" refer to the LoginHandler
@@ -530,6 +713,19 @@ public class CallbackConnection {
 
         logger.debug("In onSessionEstablished(Transport transport)"); //xcy
         this.transport = transport;
+        establishedAt = System.nanoTime();
+        hosts.connected();
+        flushing.clear();
+        // The previous transport never wrote these.
+        failUnflushed(createDisconnectedError());
+        if( codec!=null ) {
+            codec.setFlushListener(null);
+            codec = null;
+        }
+        if( transport.getProtocolCodec() instanceof MQTTProtocolCodec ) {
+            codec = (MQTTProtocolCodec) transport.getProtocolCodec();
+            codec.setFlushListener(flushed);
+        }
         if( suspendCount.get() > 0 ) {
             this.transport.suspendRead();
         }
@@ -541,7 +737,7 @@ public class CallbackConnection {
             public void onTransportCommand(Object command) {
                 logger.trace("In DefaultTransportListener.onTransportCommand() from setTransportListener in onSessionEstablished"); //xcy
                 MQTTFrame frame = (MQTTFrame) command;
-                mqtt.tracer.onReceive(frame);
+                onReceive(frame);
                 processFrame(frame);
             }
             @Override
@@ -558,7 +754,7 @@ public class CallbackConnection {
             }
         });
         pingedAt = 0;
-        logger.debug("verify: mqtt.getKeepAlive() = "+mqtt.getKeepAlive()); //xcy
+        logger.debug("verify: mqtt.getKeepAlive() = {}", mqtt.getKeepAlive()); //xcy
         if(mqtt.getKeepAlive()>0) {
             heartBeatMonitor = new HeartBeatMonitor();
             heartBeatMonitor.setWriteInterval((mqtt.getKeepAlive() * 1000) / 2);
@@ -571,10 +767,11 @@ public class CallbackConnection {
                     if(!disconnected && pingedAt==0) {
                         MQTTFrame encoded = new PINGREQ().encode();
                         if(CallbackConnection.this.transport.offer(encoded)) {
-                            mqtt.tracer.onSend(encoded);
+                            onSend(encoded);
                             final long now = System.currentTimeMillis();
                             final long suspends = suspendChanges.get();
                             pingedAt = now;
+                            pingSentAt = System.nanoTime();
                             queue.executeAfter(CallbackConnection.this.mqtt.getKeepAlive(), TimeUnit.SECONDS, new Task() {
                                 @Override
                                 public void run() {
@@ -638,6 +835,32 @@ public class CallbackConnection {
         return this;
     }
 
+    /**
+     * Delivers payloads in direct buffers from the shared {@link DirectBufferPool}.
+     */
+    public CallbackConnection listener(ByteBufferListener listener) {
+        return listener(listener, DirectBufferPool.SHARED);
+    }
+
+    public CallbackConnection listener(final ByteBufferListener listener, final DirectBufferPool pool) {
+        return listener(new Listener() {
+            public void onConnected() {
+                listener.onConnected();
+            }
+            public void onDisconnected() {
+                listener.onDisconnected();
+            }
+            public void onPublish(UTF8Buffer topic, Buffer body, Runnable ack) {
+                // The body is a slice of the codec's heap read buffer, this is the only copy.
+                DirectBufferPool.Delivery payload = pool.copy(body);
+                listener.onPublish(topic, payload.view, ack, payload);
+            }
+            public void onFailure(Throwable value) {
+                listener.onFailure(value);
+            }
+        });
+    }
+
     public boolean full() {
         queue.assertExecuting();
         return this.transport.full();
@@ -648,6 +871,52 @@ public class CallbackConnection {
         return failure;
     }
 
+    /**
+     * @return the number of requests holding a message id while they wait on an acknowledgement.
+     */
+    public int inflightCount() {
+        queue.assertExecuting();
+        return inflight;
+    }
+
+    /**
+     * @return the number of publishes held back because the in flight window is full.
+     */
+    public int pendingCount() {
+        queue.assertExecuting();
+        return pending.size();
+    }
+
+    /**
+     * @return the number of requests queued in the overflow and waiting for
+     *         the in flight window.  Can be called from any thread.
+     */
+    public int overflowDepth() {
+        return queued;
+    }
+
+    /**
+     * @return the largest overflow depth seen.  Can be called from any thread.
+     */
+    public int overflowHighWaterMark() {
+        return queuedHighWaterMark;
+    }
+
+    /**
+     * @return the number of publishes discarded by the overflow policy.  Can be called from any thread.
+     */
+    public long overflowDropped() {
+        return overflowDropped;
+    }
+
+    /**
+     * @return how many in flight requests can be tracked before the table has to grow.
+     */
+    public int inflightCapacity() {
+        queue.assertExecuting();
+        return requests.capacity();
+    }
+
     public void disconnect(final Callback<Void> onComplete) //xcy onComplete implement Callback-interface
     { 
         logger.debug("In disconnect(final Callback<Void> onComplete)"); //xcy
@@ -662,14 +931,11 @@ public class CallbackConnection {
         
         //if it is an interruptted disconnection
         disconnected = true;
-        final short requestId = getNextMessageId();
         final Runnable stop = new Runnable() {
             boolean executed = false;
             public void run() {
                 if(!executed) {
                     executed = true;
-                    requests.remove(requestId);
-
                     if(heartBeatMonitor!=null) {
                         heartBeatMonitor.stop();
                         heartBeatMonitor = null;
@@ -691,7 +957,7 @@ public class CallbackConnection {
             public void onSuccess(Void v) {
                 // To make sure DISCONNECT has been flushed out to the socket
                 onRefillCalled = false;
-                refiller = new Runnable() {
+                disconnectRefill = new Runnable() {
                     public void run() {
                         if(onRefillCalled) {
                             stop.run();
@@ -708,10 +974,11 @@ public class CallbackConnection {
         };
         
         // Pop the frame into a request so it we get notified
-        // of any failures so we continue to stop the transport.
+        // of any failures so we continue to stop the transport.  DISCONNECT
+        // has no message id, the callback runs once the transport takes it.
         if(transport!=null) {
             MQTTFrame frame = new DISCONNECT().encode();
-            send(new Request(getNextMessageId(), frame, cb));
+            send(new Request(0, frame, cb));
         } else {
             cb.onSuccess(null);
         }
@@ -736,6 +1003,7 @@ public class CallbackConnection {
             heartBeatMonitor.stop();
             heartBeatMonitor = null;
         }
+        failUnflushed(createDisconnectedError());
         transport.stop(new Task() {
             @Override
             public void run() {
@@ -751,17 +1019,273 @@ public class CallbackConnection {
         publish(utf8(topic), new Buffer(payload), qos, retain, cb);
     }
 
+    /**
+     * <p>
+     * Publishes a message, the callback completes once the server acknowledged
+     * it, or for QoS 0 once it has been handed to the socket.
+     * </p>
+     * <p>
+     * Large payloads are written to the socket straight from the given buffer
+     * instead of being copied, so the payload must not be modified until the
+     * callback completed.
+     * </p>
+     */
     public void publish(UTF8Buffer topic, Buffer payload, QoS qos, boolean retain, Callback<Void> cb) {
         queue.assertExecuting();
         if( disconnected ) {
             cb.onFailure(createDisconnectedError());
             return;
         }
+        if( spooled(topic, payload, qos, retain, cb) ) {
+            return;
+        }
+        if( !overflowAdmits(qos, cb) ) {
+            return;
+        }
+        publishNow(topic, payload, qos, retain, cb);
+    }
+
+    private void publishNow(UTF8Buffer topic, Buffer payload, QoS qos, boolean retain, Callback<Void> cb) {
+        if( mqtt.messageStore!=null && qos!=QoS.AT_MOST_ONCE ) {
+            cb = store(new PublishRequest(topic, payload, qos, retain), cb);
+            if( cb==null ) {
+                return;
+            }
+        }
         PUBLISH command = new PUBLISH().qos(qos).retain(retain);
         command.topicName(topic).payload(payload);
         send(command, cb);
     }
 
+    /**
+     * Writes the message to the offline spool if the connection is down, or
+     * if earlier messages are still spooled since it has to go after them.
+     * A message the spool drops because of its QoS fails with a
+     * {@link QueueFullException}.
+     * @return true if the message was spooled, or dropped by the spool.
+     */
+    private boolean spooled(UTF8Buffer topic, Buffer payload, QoS qos, boolean retain, Callback<Void> cb) {
+        DiskSpool spool = mqtt.offlineSpool;
+        if( spool==null ) {
+            return false;
+        }
+        try {
+            if( transport!=null && spool.isEmpty() ) {
+                return false;
+            }
+            if( !spool.offer(new PublishRequest(topic, payload, qos, retain)) ) {
+                if( cb!=null ) {
+                    cb.onFailure(new QueueFullException("The offline spool does not keep " + qos + " messages"));
+                }
+                return true;
+            }
+        } catch (IOException e) {
+            if( cb!=null ) {
+                cb.onFailure(e);
+            }
+            return true;
+        }
+        if( cb!=null ) {
+            cb.onSuccess(null);
+        }
+        return true;
+    }
+
+    /**
+     * Publishes spooled messages while the connection is up and has room.
+     * It stops once the overflow holds a batch or is at its capacity, or the
+     * in flight window is full, and is called again as the overflow drains and acks come in.  At most a batch
+     * is published per dispatch, the rest follows from a later task once the
+     * batch has been handed to the socket, so a large spool of QoS 0
+     * messages is not drained in one go.  A message is acked to the spool
+     * once it is published, so a crash publishes it again.  One which fails
+     * is given back to the spool and published again by a later drain.
+     */
+    private void drainSpool() {
+        final DiskSpool spool = mqtt.offlineSpool;
+        if( spool==null || spoolDraining || transport==null || failure!=null || disconnected ) {
+            return;
+        }
+        spoolDraining = true;
+        try {
+            int batch = 0;
+            // A message the overflow policy rejected would only be polled again right away.
+            while( failure==null && overflow.size() < SPOOL_DRAIN_BATCH && pending.isEmpty()
+                    && (mqtt.overflowCapacity < 0 || overflow.size() < mqtt.overflowCapacity) && !spool.isEmpty() ) {
+                if( batch++ == SPOOL_DRAIN_BATCH ) {
+                    if( !spoolScheduled ) {
+                        spoolScheduled = true;
+                        queue.execute(spoolTask);
+                    }
+                    break;
+                }
+                final PublishRequest message = spool.poll();
+                if( message==null ) {
+                    break;
+                }
+                publishNow(message.getTopic(), message.getPayload(), message.getQos(), message.isRetain(), new Callback<Void>() {
+                    public void onSuccess(Void value) {
+                        try {
+                            spool.ack(message);
+                        } catch (IOException e) {
+                            handleFatalFailure(e);
+                        }
+                    }
+                    public void onFailure(Throwable value) {
+                        spool.retry(message);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            handleFatalFailure(e);
+        } finally {
+            spoolDraining = false;
+        }
+    }
+
+    private boolean spoolScheduled;
+    private final Task spoolTask = new Task() {
+        public void run() {
+            spoolScheduled = false;
+            drainSpool();
+        }
+    };
+
+    /**
+     * Adds the message to the message store.
+     * @return a callback which removes it from the store once it is acked,
+     * or null if it could not be stored, in which case cb has been failed.
+     */
+    private Callback<Void> store(PublishRequest message, Callback<Void> cb) {
+        long key;
+        try {
+            key = mqtt.messageStore.add(message);
+        } catch (IOException e) {
+            if( cb!=null ) {
+                cb.onFailure(e);
+            }
+            return null;
+        }
+        return removeFromStore(key, cb);
+    }
+
+    private Callback<Void> removeFromStore(final long key, final Callback<Void> cb) {
+        return new Callback<Void>() {
+            public void onSuccess(Void value) {
+                try {
+                    mqtt.messageStore.remove(key);
+                } catch (IOException e) {
+                    // It gets published again after a restart, which at least once allows.
+                    logger.warn("Could not remove an acked message from the message store", e);
+                }
+                if( cb!=null ) {
+                    cb.onSuccess(value);
+                }
+            }
+            public void onFailure(Throwable value) {
+                // Left in the store to be published by the next run.
+                if( cb!=null ) {
+                    cb.onFailure(value);
+                }
+            }
+        };
+    }
+
+    /**
+     * Queues the messages an earlier run left in the message store ahead of
+     * anything published from now on.
+     */
+    private void replayStore() throws IOException {
+        storeReplayed = true;
+        for (StoredMessage message : mqtt.messageStore.load()) {
+            PUBLISH command = new PUBLISH().qos(message.getQos()).retain(message.isRetain());
+            command.topicName(message.getTopic()).payload(message.getPayload());
+            // The previous run may have sent it already.  Its message id was not
+            // stored, so the server can't tell a QoS 2 resend from a new message.
+            command.dup(true);
+            send(command, removeFromStore(message.getKey(), null));
+        }
+    }
+
+    /**
+     * Publishes all the messages from a single dispatch of the connection's
+     * queue so that they are written to the socket together.  The callback
+     * is completed once every message is published.  If any fail, it gets
+     * a {@link BatchPublishException} with the failure of each message.
+     */
+    public void publishBatch(List<PublishRequest> messages, Callback<Void> cb) {
+        queue.assertExecuting();
+        if( disconnected ) {
+            cb.onFailure(createDisconnectedError());
+            return;
+        }
+        if( messages.isEmpty() ) {
+            cb.onSuccess(null);
+            return;
+        }
+        BatchCallback batch = new BatchCallback(messages, cb);
+        for (int i = 0; i < messages.size(); i++) {
+            PublishRequest message = messages.get(i);
+            Callback<Void> callback = batch.callback(i);
+            if( spooled(message.getTopic(), message.getPayload(), message.getQos(), message.isRetain(), callback) ) {
+                continue;
+            }
+            if( !overflowAdmits(message.getQos(), callback) ) {
+                continue;
+            }
+            if( mqtt.messageStore!=null && message.getQos()!=QoS.AT_MOST_ONCE ) {
+                callback = store(message, callback);
+                if( callback==null ) {
+                    continue;
+                }
+            }
+            PUBLISH command = new PUBLISH().qos(message.getQos()).retain(message.isRetain());
+            command.topicName(message.getTopic()).payload(message.getPayload());
+            send(command, callback);
+        }
+    }
+
+    private static class BatchCallback {
+        final List<PublishRequest> messages;
+        final Callback<Void> cb;
+        int remaining;
+        int failed;
+        Throwable[] failures;
+
+        BatchCallback(List<PublishRequest> messages, Callback<Void> cb) {
+            this.messages = messages;
+            this.cb = cb;
+            this.remaining = messages.size();
+        }
+
+        Callback<Void> callback(final int index) {
+            return new Callback<Void>() {
+                public void onSuccess(Void value) {
+                    completed();
+                }
+                public void onFailure(Throwable value) {
+                    if( failures==null ) {
+                        failures = new Throwable[messages.size()];
+                    }
+                    failures[index] = value;
+                    failed++;
+                    completed();
+                }
+            };
+        }
+
+        private void completed() {
+            remaining--;
+            if( remaining==0 ) {
+                if( failures==null ) {
+                    cb.onSuccess(null);
+                } else {
+                    cb.onFailure(new BatchPublishException(messages, failures, failed));
+                }
+            }
+        }
+    }
+
     public void subscribe(final Topic[] topics, Callback<byte[]> cb) {
         if(topics==null) {
             throw new IllegalArgumentException("topics must not be null");
@@ -788,6 +1312,47 @@ public class CallbackConnection {
         }
     }
 
+    /**
+     * Subscribes to a topic filter and delivers the matching messages to the
+     * handler instead of the connection's listener.  A message matching the
+     * filters of several handlers is given to all of them and acknowledged
+     * once they have all acked it.  Messages not matched by any handler
+     * still go to the listener.  Unsubscribing from the filter removes its
+     * handlers.
+     */
+    public void subscribe(final Topic topic, final MessageHandler handler, Callback<byte[]> cb) {
+        queue.assertExecuting();
+        if( disconnected ) {
+            cb.onFailure(createDisconnectedError());
+            return;
+        }
+        // Added up front since retained messages can arrive ahead of the SUBACK.
+        handlers.add(topic.name(), handler);
+        send(new SUBSCRIBE().topics(new Topic[]{topic}), new ProxyCallback<byte[]>(cb){
+            @Override
+            public void onSuccess(byte[] value) {
+                activeSubs.put(topic.name(), topic.qos());
+                if(next!=null) {
+                    next.onSuccess(value);
+                }
+            }
+            @Override
+            public void onFailure(Throwable value) {
+                handlers.remove(topic.name(), handler);
+                super.onFailure(value);
+            }
+        });
+    }
+
+    /**
+     * Stops delivering the filter's messages to the handler without
+     * unsubscribing from the filter, for when other handlers still use it.
+     */
+    void removeHandler(UTF8Buffer filter, MessageHandler handler) {
+        queue.assertExecuting();
+        handlers.remove(filter, handler);
+    }
+
     public void unsubscribe(final UTF8Buffer[] topics, Callback<Void> cb) {
         queue.assertExecuting();
         if( disconnected ) {
@@ -799,6 +1364,7 @@ public class CallbackConnection {
             public void onSuccess(Object value) {
                 for (UTF8Buffer topic : topics) {
                     activeSubs.remove(topic);
+                    handlers.removeAll(topic);
                 }
                 if(next!=null) {
                     next.onSuccess(value);
@@ -808,72 +1374,329 @@ public class CallbackConnection {
     }
 
     private void send(Acked command, Callback cb) {
-        short id = 0;
-        if(command.qos() != QoS.AT_MOST_ONCE) {
-            id = getNextMessageId();
+        Request request;
+        if(command.qos() == QoS.AT_MOST_ONCE && command.messageType()==PUBLISH.TYPE && offerPublish((PUBLISH) command, cb)) {
+            return;
+        }
+        if(command.qos() == QoS.AT_MOST_ONCE) {
+            request = new Request(0, command.encode(), cb);
+        } else if( failure==null && (!pending.isEmpty() || inflight >= mqtt.maxInflight) ) {
+            // The window is full, it gets a message id once an ack frees one up.
+            request = new Request(command, cb);
+        } else {
+            short id = getNextMessageId();
             command.messageId(id);
+            request = new Request(id, command.encode(), cb);
+        }
+        if( command.messageType()==PUBLISH.TYPE ) {
+            if( mqtt.metrics!=null && command.qos()!=QoS.AT_MOST_ONCE ) {
+                request.issuedAt = System.nanoTime();
+            }
+            if( mqtt.publishTraceListener!=null && publishes++ % mqtt.publishTraceInterval == 0 ) {
+                request.trace = new PublishTrace(((PUBLISH) command).topicName(), command.qos(), System.nanoTime());
+            }
+        }
+        if( request.command!=null ) {
+            pending.addLast(request);
+            traceQueued(request);
+            queueChanged();
+        } else {
+            send(request);
+        }
+    }
+
+    private void sendPending() {
+        Request request;
+        while( failure==null && inflight < mqtt.maxInflight && (request=pending.poll())!=null ) {
+            short id = getNextMessageId();
+            request.command.messageId(id);
+            Request ready = new Request(id, request.command.encode(), request.cb);
+            ready.issuedAt = request.issuedAt;
+            ready.trace = request.trace;
+            send(ready);
+        }
+        queueChanged();
+        drainSpool();
+    }
+
+    /**
+     * Applies the overflow policy to a new publish once the overflow is at capacity.
+     * Only QoS 0 publishes are ever dropped, QoS 1 and 2 ones fail instead.
+     * @return false if the publish was rejected or dropped.
+     */
+    private boolean overflowAdmits(QoS qos, Callback<Void> cb) {
+        int capacity = mqtt.overflowCapacity;
+        if( capacity < 0 || overflow.size() + pending.size() < capacity ) {
+            return true;
+        }
+        switch( mqtt.overflowPolicy ) {
+            case BLOCK:
+                // We can't block the dispatch queue, callers on other threads wait in awaitRoom().
+                return true;
+            case DROP_NEWEST:
+                if( qos!=QoS.AT_MOST_ONCE ) {
+                    return overflowRejects(cb);
+                }
+                overflowDropped++;
+                cb.onSuccess(null);
+                return false;
+            case DROP_OLDEST_QOS0:
+                for (int i = 0; i < overflow.size(); i++) {
+                    Request request = overflow.get(i);
+                    if( request.frame.messageType()==PUBLISH.TYPE && request.frame.qos()==QoS.AT_MOST_ONCE ) {
+                        overflow.remove(i);
+                        if( i < replaying ) {
+                            replaying--;
+                        }
+                        overflowDropped++;
+                        queueChanged();
+                        if( request.cb!=null ) {
+                            ((Callback<Void>)request.cb).onSuccess(null);
+                        }
+                        return true;
+                    }
+                }
+                // No QoS 0 publish to drop.
+                return overflowRejects(cb);
+            default:
+                return overflowRejects(cb);
+        }
+    }
+
+    private boolean overflowRejects(Callback<Void> cb) {
+        cb.onFailure(new QueueFullException("The overflow queue is full ("+mqtt.overflowCapacity+" requests)"));
+        return false;
+    }
+
+    private void queueChanged() {
+        int size = overflow.size() + pending.size();
+        if( size > queuedHighWaterMark ) {
+            queuedHighWaterMark = size;
+        }
+        if( mqtt.metrics!=null && size!=queued ) {
+            mqtt.metrics.onQueuedChanged(size - queued);
+        }
+        queued = size;
+        if( roomWaiters > 0 && (size < mqtt.overflowCapacity || failure!=null) ) {
+            roomLock.lock();
+            try {
+                room.signalAll();
+            } finally {
+                roomLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * With the BLOCK overflow policy, waits until the overflow has room for
+     * count more publishes, or is empty if the count is over its capacity,
+     * and reserves the room.  Publishes let through but not queued yet count
+     * as queued, so concurrent callers can't overshoot the capacity.  Only
+     * waits when called from outside the dispatch queue.
+     *
+     * @return the room reserved, to be given back to {@link #releaseRoom(int)}
+     *         once the publishes are queued or have failed.
+     */
+    int awaitRoom(int count) throws InterruptedException {
+        int capacity = mqtt.overflowCapacity;
+        if( capacity < 0 || mqtt.overflowPolicy != OverflowPolicy.BLOCK || queue.isExecuting() ) {
+            return 0;
+        }
+        int limit = capacity - Math.min(count, capacity);
+        roomLock.lock();
+        try {
+            roomWaiters++;
+            try {
+                while( queued + admitted > limit && failure==null ) {
+                    room.await();
+                }
+            } finally {
+                roomWaiters--;
+            }
+            admitted += count;
+            return count;
+        } finally {
+            roomLock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the room reserved by {@link #awaitRoom(int)}.
+     */
+    void releaseRoom(int count) {
+        if( count==0 ) {
+            return;
+        }
+        roomLock.lock();
+        try {
+            admitted -= count;
+            room.signalAll();
+        } finally {
+            roomLock.unlock();
         }
-        send(new Request(id, command.encode(), cb));
     }
 
     private void send(Request request) {
         if( failure !=null ) {
+            releaseMessageId(request.id);
             if( request.cb!=null ) {
                 request.cb.onFailure(failure);
             }
         } else {
             // Put the request in the map before sending it over the wire. 
             if(request.id!=0) {
-                logger.debug("to put request.id="+request.id); //xcy
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("to put request.id={}", request.id); //xcy
+                }
                 this.requests.put(request.id, request);
             }
 
-            if( overflow.isEmpty() && transport!=null && transport.offer(request.frame) ) {
-                mqtt.tracer.onSend(request.frame);
-                logger.debug("sent request.id="+request.id); //xcy
+            if( overflow.isEmpty() && transport!=null && mqtt.flushPolicy==null && transport.offer(request.frame) ) {
+                onSend(request.frame);
+                traceOffered(request);
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("sent request.id={}", request.id); //xcy
+                }
                 if(request.id==0) {
-                    if( request.cb!=null ) {
-                        ((Callback<Void>)request.cb).onSuccess(null);
-                    }
-                    
+                    offered(request.cb);
                 }
             } else {
                 // Remove it from the request.
-                logger.debug("to remove request.id="+request.id); //xcy
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("to remove request.id={}", request.id); //xcy
+                }
                 this.requests.remove(request.id);
                 
-                logger.debug("overflow.addLast(request); "+request); //xcy
+                logger.debug("overflow.addLast(request); {}", request); //xcy
                 overflow.addLast(request);
+                traceQueued(request);
+                queueChanged();
+                if( mqtt.flushPolicy!=null && transport!=null ) {
+                    hold(request);
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a frame in the overflow until the flush policy says to write
+     * the held frames, which drainOverflow() then offers back to back.
+     */
+    private void hold(Request request) {
+        heldFrames++;
+        for (Buffer buffer : request.frame.buffers) {
+            heldBytes += buffer.length;
+        }
+        FlushPolicy policy = mqtt.flushPolicy;
+        if( policy.full(heldFrames, heldBytes) && !draining ) {
+            drainOverflow();
+        } else if( !flushScheduled ) {
+            flushScheduled = true;
+            if( policy.getMaxDelay() > 0 ) {
+                queue.executeAfter(policy.getMaxDelay(), TimeUnit.MICROSECONDS, flushTask);
+            } else {
+                queue.execute(flushTask);
             }
         }
     }
 
     short nextMessageId = 1;
     private short getNextMessageId() {
-        short rc = nextMessageId;
-        nextMessageId++;
-        if(nextMessageId==0) { //xcy messageId 0 is reserved for non-PUBLISH request send
-            nextMessageId=1;
+        // Skip over the ids still held by un-acked requests.
+        for (int i = 0; i < 0xFFFF; i++) {
+            short rc = nextMessageId;
+            nextMessageId++;
+            if(nextMessageId==0) { //xcy messageId 0 is reserved for non-PUBLISH request send
+                nextMessageId=1;
+            }
+            if( !messageIds.get(rc & 0xFFFF) ) {
+                messageIds.set(rc & 0xFFFF);
+                inflight++;
+                if( mqtt.metrics!=null ) {
+                    mqtt.metrics.onInflightChanged(1);
+                }
+                if( logger.isTraceEnabled() ) {
+                    logger.trace("getNextMessageId(): {} ",rc);
+                }
+                return rc;
+            }
+        }
+        throw new IllegalStateException("All message ids are in use");
+    }
+
+    private void releaseMessageId(short id) {
+        if( id!=0 && messageIds.get(id & 0xFFFF) ) {
+            messageIds.clear(id & 0xFFFF);
+            inflight--;
+            if( mqtt.metrics!=null ) {
+                mqtt.metrics.onInflightChanged(-1);
+            }
         }
-        logger.trace("getNextMessageId(): {} ",rc);
-        return rc;
     }
 
     private void drainOverflow() {
         queue.assertExecuting();
-        if( overflow.isEmpty() || transport==null ){
+        heldFrames = 0;
+        heldBytes = 0;
+        if( transport==null || draining ){
             return;
         }
+        boolean overflowed = !overflow.isEmpty();
+        if( overflowed || !controls.isEmpty() ) {
+            draining = true;
+            try {
+                drainOverflowEntries();
+            } finally {
+                draining = false;
+            }
+        }
+        if( overflow.isEmpty() && controls.isEmpty() ) {
+            // Also when the overflow was already empty, a disconnect waits on
+            // a refill to know its DISCONNECT has been written.
+            if( disconnectRefill!=null ) {
+                disconnectRefill.run();
+            }
+            if( overflowed && refiller!=null ) {
+                try {
+                    refiller.run();
+                } catch (Throwable e) {
+                    Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+                }
+            }
+        }
+        drainSpool();
+    }
+
+    private void drainOverflowEntries() {
+        MQTTFrame control;
+        while((control=controls.peek())!=null) {
+            if( !this.transport.offer(control) ) {
+                return;
+            }
+            onSend(control);
+            controls.removeFirst();
+        }
         Request request;
         while((request=overflow.peek())!=null) {
+            if( replaying > 0 && !replayAdmits() ) {
+                break;
+            }
             if( this.transport.offer(request.frame) ) {
-                mqtt.tracer.onSend(request.frame);
-                logger.trace("request.id="+request.id); //xcy
+                onSend(request.frame);
+                traceOffered(request);
+                if( logger.isTraceEnabled() ) {
+                    logger.trace("request.id={}", request.id); //xcy
+                }
                 overflow.removeFirst();
-                if(request.id==0) {
-                    if( request.cb!=null ) {
-                        ((Callback<Void>)request.cb).onSuccess(null);
+                if( replaying > 0 ) {
+                    replaying--;
+                    replayMessageTokens -= 1;
+                    for (Buffer buffer : request.frame.buffers) {
+                        replayByteTokens -= buffer.length;
                     }
+                }
+                if(request.id==0) {
+                    offered(request.cb);
                 } else {
                     this.requests.put(request.id, request);
                 }
@@ -881,25 +1704,66 @@ public class CallbackConnection {
                 break;
             }
         }
-        if( overflow.isEmpty() ) {
-            if( refiller!=null ) {
-                try {
-                    refiller.run();
-                } catch (Throwable e) {
-                    Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
-                }
+        queueChanged();
+    }
+
+    /**
+     * Token buckets for the replay rates.  A request is let through while
+     * there are tokens left, and once sent it takes one message and its size
+     * in bytes, so a frame larger than a bucket still gets out.  Otherwise the drain is
+     * retried once enough tokens have built up.  Since the replay never
+     * fills the socket, keep alive pings are not held up behind it, and acks
+     * skip it, see sendAck().
+     */
+    private boolean replayAdmits() {
+        long now = System.nanoTime();
+        double elapsed = (now - replayRefilledAt) / 1000000000.0;
+        replayRefilledAt = now;
+        double wait = 0;
+        if( mqtt.replayRate > 0 ) {
+            replayMessageTokens = Math.min(Math.max(1, mqtt.replayRate / 10), replayMessageTokens + elapsed * mqtt.replayRate);
+            if( replayMessageTokens <= 0 ) {
+                wait = Math.max(wait, (1 - replayMessageTokens) / mqtt.replayRate);
+            }
+        }
+        if( mqtt.replayByteRate > 0 ) {
+            replayByteTokens = Math.min(Math.max(1, mqtt.replayByteRate / 10), replayByteTokens + elapsed * mqtt.replayByteRate);
+            if( replayByteTokens <= 0 ) {
+                wait = Math.max(wait, (1 - replayByteTokens) / mqtt.replayByteRate);
+            }
+        }
+        if( wait > 0 ) {
+            if( !replayScheduled ) {
+                replayScheduled = true;
+                queue.executeAfter((long) Math.ceil(wait * 1000), TimeUnit.MILLISECONDS, replayTask);
             }
+            return false;
         }
+        return true;
     }
 
     // to remove messageID from client's list
     private void completeRequest(short id, byte originalType, Object arg) {
-        logger.trace("In completeRequest(short id, byte originalType, Object arg) for id = {}", id); //xcy to catch trace of repeated messageId ack, e.g PUBCOMP
-        
-        logger.debug("to remove request.id="+id); //xcy
+        if( logger.isDebugEnabled() ) {
+            logger.trace("In completeRequest(short id, byte originalType, Object arg) for id = {}", id); //xcy to catch trace of repeated messageId ack, e.g PUBCOMP
+            logger.debug("to remove request.id={}", id); //xcy
+        }
         Request request = requests.remove(id);
         if( request!=null ) {
             assert originalType==request.frame.messageType();
+            releaseMessageId(id);
+            if( request.issuedAt!=0 && mqtt.metrics!=null ) {
+                mqtt.metrics.onPublishAcked(request.frame.qos(), System.nanoTime() - request.issuedAt);
+            }
+            if( request.trace!=null ) {
+                PublishTrace trace = request.trace;
+                trace.ackedAt = System.nanoTime();
+                if( trace.flushedAt==0 ) {
+                    // The rest of the write buffer holding it has not been written yet.
+                    trace.flushedAt = trace.ackedAt;
+                }
+                traced(trace);
+            }
             if(request.cb!=null) {
                 if( arg==null ) {
                     ((Callback<Void>)request.cb).onSuccess(null);
@@ -907,6 +1771,7 @@ public class CallbackConnection {
                     ((Callback<Object>)request.cb).onSuccess(arg);
                 }
             }
+            sendPending();
         } else {
             logger.warn("Command from server contained an invalid message id: {}", id); //xcy
             //handleFatalFailure(new ProtocolException("Command from server contained an invalid message id: " + id));
@@ -918,34 +1783,37 @@ public class CallbackConnection {
             logger.trace("In processFrame(MQTTFrame frame): messageType {}", frame.messageType()); //xcy
             switch(frame.messageType()) {
                 case PUBLISH.TYPE: {
-                    PUBLISH publish = new PUBLISH().decode(frame);
+                    PUBLISH publish = inboundPublish.decode(frame, topics);
                     toReceiver(publish);
                     break;
                 }
                 case PUBREL.TYPE:{
-                    PUBREL ack = new PUBREL().decode(frame);
-                    processed.remove(ack.messageId());
-                    PUBCOMP response = new PUBCOMP();
-                    response.messageId(ack.messageId());
-                    send(new Request(0, response.encode(), null));
+                    PUBREL ack = inboundPubrel.decode(frame);
+                    processed.clear(ack.messageId() & 0xFFFF);
+                    if( mqtt.dedupJournal!=null ) {
+                        mqtt.dedupJournal.clear(ack.messageId());
+                    }
+                    sendAck(pubcompTemplate, ack.messageId());
                     break;
                 }
                 case PUBACK.TYPE:{
-                    PUBACK ack = new PUBACK().decode(frame);
+                    PUBACK ack = inboundPuback.decode(frame);
                     completeRequest(ack.messageId(), PUBLISH.TYPE, null);
                     break;
                 }
                 case PUBREC.TYPE:{
-                    PUBREC ack = new PUBREC().decode(frame);
-                    PUBREL response = new PUBREL();
-                    response.messageId(ack.messageId());
-                    logger.debug("PUBREC on messageId: {}, to respond with PUBREL.",ack.messageId()); //xcy
-                    send(new Request(0, response.encode(), null));
+                    PUBREC ack = inboundPubrec.decode(frame);
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("PUBREC on messageId: {}, to respond with PUBREL.",ack.messageId()); //xcy
+                    }
+                    sendAck(pubrelTemplate, ack.messageId());
                     break;
                 }
                 case PUBCOMP.TYPE:{
-                    PUBCOMP ack = new PUBCOMP().decode(frame);
-                    logger.debug("PUBCOMP on messageId: {}, to completeRequest.",ack.messageId()); //xcy
+                    PUBCOMP ack = inboundPubcomp.decode(frame);
+                    if( logger.isDebugEnabled() ) {
+                        logger.debug("PUBCOMP on messageId: {}, to completeRequest.",ack.messageId()); //xcy
+                    }
                     completeRequest(ack.messageId(), PUBLISH.TYPE, null);
                     break;
                 }
@@ -961,6 +1829,10 @@ public class CallbackConnection {
                 }
                 case PINGRESP.TYPE: {
                     pingedAt = 0;
+                    if( mqtt.metrics!=null && pingSentAt!=0 ) {
+                        mqtt.metrics.onPingRoundTrip(System.nanoTime() - pingSentAt);
+                        pingSentAt = 0;
+                    }
                     break;
                 }
                 default:
@@ -973,39 +1845,231 @@ public class CallbackConnection {
 
     static public final Task NOOP = Dispatch.NOOP;
 
+    private void traceQueued(Request request) {
+        if( request.trace!=null && request.trace.queuedAt==0 ) {
+            request.trace.queuedAt = System.nanoTime();
+        }
+    }
+
+    private void traceOffered(Request request) {
+        PublishTrace trace = request.trace;
+        if( trace==null ) {
+            return;
+        }
+        trace.offeredAt = System.nanoTime();
+        trace.flushedAt = 0;
+        if( codec==null ) {
+            // No way to tell when it reaches the socket.
+            trace.flushedAt = trace.offeredAt;
+            if( trace.qos==QoS.AT_MOST_ONCE ) {
+                traced(trace);
+            }
+            return;
+        }
+        trace.end = codec.getEncodedCounter();
+        flushing.addLast(trace);
+        // Some transports write as soon as they are offered a frame.
+        flushed.run();
+    }
+
+    private final Runnable flushed = new Runnable() {
+        public void run() {
+            if( codec==null ) {
+                return;
+            }
+            long written = codec.getWriteCounter();
+            PublishTrace trace;
+            while( (trace=flushing.peek())!=null && trace.end <= written ) {
+                flushing.removeFirst();
+                if( trace.flushedAt==0 ) {
+                    trace.flushedAt = System.nanoTime();
+                }
+                if( trace.qos==QoS.AT_MOST_ONCE ) {
+                    traced(trace);
+                }
+            }
+            Request request;
+            while( (request=unflushed.peek())!=null && request.end <= written ) {
+                unflushed.removeFirst();
+                ((Callback<Void>)request.cb).onSuccess(null);
+            }
+        }
+    };
+
+    /**
+     * Completes a request without a message id once the transport took it.
+     * Large payloads are not copied, so while the codec still references
+     * the caller's payload the callback waits until it has been written to
+     * the socket: callers may reuse their payload as soon as the publish
+     * callback ran.
+     */
+    private void offered(Callback cb) {
+        if( cb==null ) {
+            return;
+        }
+        if( codec!=null && (!unflushed.isEmpty() || codec.getReferencedCounter() > codec.getWriteCounter()) ) {
+            Request request = new Request(0, null, cb);
+            request.end = codec.getEncodedCounter();
+            unflushed.addLast(request);
+            // Some transports write as soon as they are offered a frame.
+            flushed.run();
+        } else {
+            ((Callback<Void>)cb).onSuccess(null);
+        }
+    }
+
+    private static boolean overridesOnSend(Tracer tracer) {
+        try {
+            return tracer.getClass().getMethod("onSend", MQTTFrame.class).getDeclaringClass()!=Tracer.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    private void failUnflushed(Throwable error) {
+        Request request;
+        while( (request=unflushed.poll())!=null ) {
+            request.cb.onFailure(error);
+        }
+    }
+
+    /**
+     * Hands a QoS 0 publish to the codec as is, which serializes it straight
+     * into its write buffer instead of first building an MQTTFrame.  Only
+     * possible when nothing is queued ahead of it and nothing needs the frame.
+     */
+    private boolean offerPublish(PUBLISH publish, Callback cb) {
+        // The codec outlives a dropped transport until the next session is established.
+        if( failure!=null || transport==null || codec==null || !overflow.isEmpty() || mqtt.flushPolicy!=null
+                || mqtt.publishTraceListener!=null || framesTraced || !transport.offer(publish) ) {
+            return false;
+        }
+        if( mqtt.metrics!=null ) {
+            mqtt.metrics.onFrameSent(PUBLISH.TYPE, publish.encodedLength());
+        }
+        offered(cb);
+        return true;
+    }
+
+    private void traced(PublishTrace trace) {
+        try {
+            mqtt.publishTraceListener.onPublishTraced(trace);
+        } catch (Throwable e) {
+            Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+        }
+    }
+
+    private void onSend(MQTTFrame frame) {
+        mqtt.tracer.onSend(frame);
+        if( mqtt.metrics!=null ) {
+            mqtt.metrics.onFrameSent(frame.messageType(), frame.encodedLength());
+        }
+    }
+
+    private void onReceive(MQTTFrame frame) {
+        mqtt.tracer.onReceive(frame);
+        if( mqtt.metrics!=null ) {
+            mqtt.metrics.onFrameReceived(frame.messageType(), frame.encodedLength());
+        }
+    }
+
+    // How many spooled messages drainSpool() publishes per dispatch.
+    private static final int SPOOL_DRAIN_BATCH = 100;
+
+    /**
+     * <p>
+     * Acks a received QoS 1 or 2 message.  There is one per message id and
+     * it is reused for every message delivered with that id.  The server
+     * can't reuse an id before the message has been acked, so a handle is
+     * never shared by two messages in flight.
+     * </p>
+     */
+    private final class AckHandle implements Runnable {
+        private final short messageId;
+        boolean exactlyOnce;
+
+        AckHandle(short messageId) {
+            this.messageId = messageId;
+        }
+
+        public void run() {
+            if( exactlyOnce ) {
+                processed.set(messageId & 0xFFFF);
+                if( mqtt.dedupJournal!=null ) {
+                    // Recorded before the PUBREC goes out so a redelivery after a restart is caught.
+                    mqtt.dedupJournal.set(messageId);
+                }
+                sendAck(pubrecTemplate, messageId);
+            } else {
+                sendAck(pubackTemplate, messageId);
+            }
+        }
+    }
+
+    private AckHandle ackHandle(short messageId, boolean exactlyOnce) {
+        if( ackHandles==null ) {
+            ackHandles = new AckHandle[0x10000];
+        }
+        AckHandle rc = ackHandles[messageId & 0xFFFF];
+        if( rc==null ) {
+            rc = new AckHandle(messageId);
+            ackHandles[messageId & 0xFFFF] = rc;
+        }
+        rc.exactlyOnce = exactlyOnce;
+        return rc;
+    }
+
+    /**
+     * Sends a PUBACK, PUBREC, PUBREL or PUBCOMP.  When the transport takes it
+     * right away the template frame is used since the codec copies it into
+     * its write buffer.  Only acks that have to wait get a frame of their own.
+     * Acks don't have to keep their order with the publishes, so they don't
+     * wait behind a replay which is paced out of the overflow.
+     */
+    private void sendAck(MQTTFrame template, short messageId) {
+        Buffer buffer = template.buffers[0];
+        buffer.data[buffer.offset] = (byte) (messageId >>> 8);
+        buffer.data[buffer.offset+1] = (byte) messageId;
+        if( failure==null && overflow.size()==replaying && transport!=null && mqtt.flushPolicy==null && controls.isEmpty() && transport.offer(template) ) {
+            onSend(template);
+            return;
+        }
+        MQTTFrame frame = new MQTTFrame(buffer.deepCopy()).header(template.header());
+        if( failure==null && replaying > 0 ) {
+            controls.addLast(frame);
+            drainOverflow();
+        } else {
+            send(new Request(0, frame, null));
+        }
+    }
+
     private void toReceiver(final PUBLISH publish) {
         logger.trace("In toReceiver(final PUBLISH publish)"); //xcy
         if( listener !=null ) {
             try {
                 Runnable cb = NOOP;
-                logger.trace("toReceiver: QoS {}", publish.qos().toString()); //xcy
+                logger.trace("toReceiver: QoS {}", publish.qos()); //xcy
                 switch( publish.qos() ) {
                     case AT_LEAST_ONCE:
-                        cb = new Runnable() {
-                            public void run() {
-                                PUBACK response = new PUBACK();
-                                response.messageId(publish.messageId());
-                                send(new Request(0, response.encode(), null));
-                            }
-                        };
+                        cb = ackHandle(publish.messageId(), false);
                         break;
                     case EXACTLY_ONCE:
-                        cb = new Runnable() {
-                            public void run() {
-                                PUBREC response = new PUBREC();
-                                response.messageId(publish.messageId());
-                                processed.add(publish.messageId());
-                                send(new Request(0, response.encode(), null));
-                            }
-                        };
+                        cb = ackHandle(publish.messageId(), true);
                         // It might be a dup.
-                        if( processed.contains(publish.messageId()) ) {
+                        if( processed.get(publish.messageId() & 0xFFFF) ) {
                             cb.run();
                             return;
                         }
                         break;
                     case AT_MOST_ONCE:
                 }
+                if( !handlers.isEmpty() ) {
+                    List<MessageHandler> matches = handlers.match(publish.topicName());
+                    if( !matches.isEmpty() ) {
+                        toHandlers(matches, publish, cb);
+                        return;
+                    }
+                }
                 listener.onPublish(publish.topicName(), publish.payload(), cb);
             } catch (Throwable e) {
                 logger.debug("Call: handleFatalFailure(e) in toReceiver(final PUBLISH publish)"); //xcy
@@ -1014,31 +2078,92 @@ public class CallbackConnection {
         }
     }
 
+    private void toHandlers(List<MessageHandler> matches, PUBLISH publish, Runnable ack) {
+        SharedAck shared = ack==NOOP ? null : new SharedAck(matches.size(), ack);
+        for (MessageHandler handler : matches) {
+            Runnable handlerAck = shared==null ? NOOP : shared.handlerAck();
+            try {
+                handler.onMessage(new Message(queue, publish.topicName(), publish.payload(), handlerAck));
+            } catch (Throwable e) {
+                // A handler which failed on the message must not hold it back forever.
+                handlerAck.run();
+                handler.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Runs the ack of a message once every handler it was delivered to has acked it.
+     * Each handler gets its own ack, which only counts the first time it runs.
+     */
+    private static class SharedAck {
+        private final Runnable ack;
+        private int remaining;
+
+        SharedAck(int handlers, Runnable ack) {
+            this.remaining = handlers;
+            this.ack = ack;
+        }
+
+        Runnable handlerAck() {
+            return new Runnable() {
+                private boolean acked;
+
+                public void run() {
+                    if( acked ) {
+                        return;
+                    }
+                    acked = true;
+                    remaining--;
+                    if( remaining==0 ) {
+                        ack.run();
+                    }
+                }
+            };
+        }
+    }
+
     private void handleFatalFailure(Throwable error) {
-        logger.debug("In handleFatalFailure(Throwable error): "+error.toString()); //xcy
-        logger.debug(error.getStackTrace().toString()); //xcy
+        logger.debug("In handleFatalFailure(Throwable error)", error); //xcy
         
         if( failure == null ) {
             logger.debug("failure == null; set failure = error"); //xcy
             failure = error;
             
-            mqtt.tracer.debug("Fatal connection failure: " + error);
+            mqtt.tracer.debug("Fatal connection failure: %s", error);
             // Fail incomplete requests.
-            ArrayList<Request> values = new ArrayList(requests.values());
+            ArrayList<Request> values = requests.values();
             requests.clear();
+            messageIds.clear();
+            if( mqtt.metrics!=null ) {
+                mqtt.metrics.onInflightChanged(-inflight);
+            }
+            inflight = 0;
             for (Request value : values) {
                 if( value.cb!= null ) {
                     value.cb.onFailure(failure);
                 }
             }
+            failUnflushed(failure);
 
-            ArrayList<Request> overflowEntries = new ArrayList<Request>(overflow);
+            ArrayList<Request> overflowEntries = overflow.values();
             overflow.clear();
+            controls.clear();
+            replaying = 0;
             for (Request entry : overflowEntries) {
                 if( entry.cb !=null ) {
                     entry.cb.onFailure(failure);
                 }
             }
+
+            ArrayList<Request> pendingEntries = pending.values();
+            pending.clear();
+            queueChanged();
+            for (Request entry : pendingEntries) {
+                if( entry.cb !=null ) {
+                    entry.cb.onFailure(failure);
+                }
+            }
         }
         
         if( listener !=null && !disconnected ) {
@@ -1058,6 +2183,7 @@ public class CallbackConnection {
 
                     logger.trace("Call: listener.onFailure(failure) in handleFatalFailure()"); //xcy
                     listener.onFailure(failure);
+                    failHandlers();
                     }
                 });
             } else {
@@ -1066,6 +2192,7 @@ public class CallbackConnection {
                     public void run() {
                         logger.trace("Call: listener.onFailure(failure) in handleFatalFailure()"); //xcy
                         listener.onFailure(failure);
+                        failHandlers();
                     }
                 });
             }
@@ -1081,7 +2208,13 @@ public class CallbackConnection {
 //            }
 //        }
         
-        logger.debug("End handleFatalFailure(Throwable error): "+error.toString()); //xcy
+        logger.debug("End handleFatalFailure(Throwable error): {}", error); //xcy
+    }
+
+    private void failHandlers() {
+        for (MessageHandler handler : handlers.values()) {
+            handler.onFailure(failure);
+        }
     }
 
     private static IllegalStateException createListenerNotSetError() {
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Receives the measurements a connection takes as it runs, set with
+ * {@link MQTT#setMetrics(ClientMetrics)}.  The methods are called from the
+ * connection's dispatch queue on its hot paths, so they should be quick
+ * and must not block.  An instance can be shared by several connections,
+ * the pool of a {@link ConnectionPool} for example, in which case it gets
+ * called from all of their queues concurrently.
+ * </p>
+ * <p>
+ * The gauges are reported as changes so that a shared instance adds up
+ * the connections' values.
+ * </p>
+ *
+ * @see DefaultClientMetrics
+ */
+public interface ClientMetrics {
+
+    /**
+     * A frame was handed to the transport.
+     * @param type the MQTT message type, see the TYPE constants of the codec classes.
+     * @param bytes the size of the frame on the wire.
+     */
+    void onFrameSent(byte type, int bytes);
+
+    /**
+     * A frame was read from the transport.
+     * @param type the MQTT message type, see the TYPE constants of the codec classes.
+     * @param bytes the size of the frame on the wire.
+     */
+    void onFrameReceived(byte type, int bytes);
+
+    /**
+     * A QoS 1 or 2 publish was acknowledged by the server.
+     * @param nanos the time since the publish was issued, including any time spent queued.
+     */
+    void onPublishAcked(QoS qos, long nanos);
+
+    /**
+     * The server answered a keep alive ping.
+     * @param nanos the time since the ping was sent.
+     */
+    void onPingRoundTrip(long nanos);
+
+    /**
+     * The connection lost its session and is reconnecting.
+     */
+    void onReconnect();
+
+    /**
+     * The number of requests waiting on an ack from the server changed.
+     */
+    void onInflightChanged(int delta);
+
+    /**
+     * The number of requests queued in the client, waiting on the socket
+     * or on room in the in flight window, changed.
+     */
+    void onQueuedChanged(int delta);
+
+}
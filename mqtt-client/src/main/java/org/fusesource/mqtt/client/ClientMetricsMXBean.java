@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * The JMX view of a {@link DefaultClientMetrics}.  Latencies are in
+ * microseconds.
+ * </p>
+ */
+public interface ClientMetricsMXBean {
+
+    long getFramesSent();
+
+    long getBytesSent();
+
+    long getFramesReceived();
+
+    long getBytesReceived();
+
+    /**
+     * @return the frames sent by MQTT message type name.
+     */
+    Map<String, Long> getFramesSentByType();
+
+    Map<String, Long> getBytesSentByType();
+
+    Map<String, Long> getFramesReceivedByType();
+
+    Map<String, Long> getBytesReceivedByType();
+
+    long getInflight();
+
+    long getQueued();
+
+    long getReconnects();
+
+    LatencyHistogram.Snapshot getPingRoundTrip();
+
+    LatencyHistogram.Snapshot getAtLeastOnceAckLatency();
+
+    LatencyHistogram.Snapshot getExactlyOnceAckLatency();
+
+    /**
+     * Zeroes the counters and histograms, but not the gauges.
+     */
+    void reset();
+
+}
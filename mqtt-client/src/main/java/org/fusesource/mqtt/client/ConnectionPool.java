@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Task;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+import static org.fusesource.hawtdispatch.Dispatch.createQueue;
+
+/**
+ * <p>
+ * A fixed set of CallbackConnections which publishes are spread over.
+ * Every connection runs on its own dispatch queue and socket, so unlike a
+ * single connection the pool's publish throughput is not limited to what
+ * one serial queue can do.
+ * </p>
+ * <p>
+ * Each publish is routed to a connection by the hash of its topic (or of
+ * a key supplied by the caller).  Messages for the same topic or key always
+ * use the same connection and so are delivered in the order they were
+ * published from a given thread.  Unlike CallbackConnection, the pool's
+ * methods may be called from any thread.  Callbacks run on the dispatch
+ * queue of the connection that handled the message.
+ * </p>
+ * <p>
+ * The connections are created from a template MQTT.  If the template sets
+ * a client id, connection <code>i</code> uses <code>clientId-i</code> since
+ * a server only allows one connection per client id.  For the same reason
+ * the template can't have a message store, dedup journal or offline spool:
+ * those hold the state of one client id, so each connection needs its own,
+ * which a {@link Customizer} can set.
+ * </p>
+ */
+public class ConnectionPool {
+
+    private final CallbackConnection[] connections;
+
+    /**
+     * Adjusts the settings of each connection of a pool before it is created.
+     */
+    public interface Customizer {
+        /**
+         * @param index the index of the connection in the pool.
+         * @param mqtt a copy of the template, with the connection's client id.
+         */
+        public void customize(int index, MQTT mqtt);
+    }
+
+    public ConnectionPool(MQTT template, int size) {
+        this(template, size, null);
+    }
+
+    /**
+     * @param customizer called for every connection, may be null.
+     */
+    public ConnectionPool(MQTT template, int size, Customizer customizer) {
+        if( size < 1 ) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        if( template.messageStore!=null || template.dedupJournal!=null || template.offlineSpool!=null ) {
+            throw new IllegalArgumentException("The connections of a pool can't share a message store, dedup journal or offline spool, set them with a Customizer");
+        }
+        connections = new CallbackConnection[size];
+        UTF8Buffer clientId = template.getClientId();
+        for (int i = 0; i < size; i++) {
+            MQTT mqtt = new MQTT(template);
+            if( clientId!=null && clientId.length > 0 ) {
+                mqtt.setClientId(clientId.toString() + "-" + i);
+            }
+            mqtt.setDispatchQueue(createQueue("mqtt client " + i));
+            if( customizer!=null ) {
+                customizer.customize(i, mqtt);
+            }
+            connections[i] = mqtt.callbackConnection();
+        }
+    }
+
+    public int size() {
+        return connections.length;
+    }
+
+    public CallbackConnection connection(int index) {
+        return connections[index];
+    }
+
+    /**
+     * @return the index of the connection used for the key.
+     */
+    public int partition(Object key) {
+        return partition(key, connections.length);
+    }
+
+    static int partition(Object key, int partitions) {
+        // Buffer.hashCode() varies mostly in its high bits for topics which
+        // differ in their last characters, so mix them into the low bits.
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % partitions;
+    }
+
+    /**
+     * Sets the listener of every connection.  It is called from the dispatch
+     * queues of all the connections, so it must be thread safe.
+     */
+    public ConnectionPool listener(final Listener listener) {
+        for (final CallbackConnection connection : connections) {
+            connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    connection.listener(listener);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Connects all the connections.  The callback succeeds once all of them
+     * are connected, or fails with the first failure.
+     */
+    public void connect(Callback<Void> cb) {
+        final Callback<Void> all = aggregate(cb);
+        for (final CallbackConnection connection : connections) {
+            connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    connection.connect(all);
+                }
+            });
+        }
+    }
+
+    /**
+     * Disconnects all the connections.
+     */
+    public void disconnect(Callback<Void> cb) {
+        final Callback<Void> all = aggregate(cb);
+        for (final CallbackConnection connection : connections) {
+            connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    connection.disconnect(all);
+                }
+            });
+        }
+    }
+
+    public void publish(String topic, byte[] payload, QoS qos, boolean retain, Callback<Void> cb) {
+        publish(utf8(topic), new Buffer(payload), qos, retain, cb);
+    }
+
+    public void publish(UTF8Buffer topic, Buffer payload, QoS qos, boolean retain, Callback<Void> cb) {
+        publish(connections[partition(topic)], topic, payload, qos, retain, cb);
+    }
+
+    /**
+     * Publishes on the connection picked by the key rather than the topic,
+     * which keeps messages with the same key in order across topics.
+     */
+    public void publish(Object key, UTF8Buffer topic, Buffer payload, QoS qos, boolean retain, Callback<Void> cb) {
+        publish(connections[partition(key)], topic, payload, qos, retain, cb);
+    }
+
+    private void publish(final CallbackConnection connection, final UTF8Buffer topic, final Buffer payload, final QoS qos, final boolean retain, final Callback<Void> cb) {
+        connection.getDispatchQueue().execute(new Task() {
+            public void run() {
+                connection.publish(topic, payload, qos, retain, cb);
+            }
+        });
+    }
+
+    private Callback<Void> aggregate(Callback<Void> cb) {
+        return aggregate(connections.length, cb);
+    }
+
+    /**
+     * @return a callback which completes cb once it has succeeded count times, or on its first failure.
+     */
+    static Callback<Void> aggregate(final int count, final Callback<Void> cb) {
+        return new Callback<Void>() {
+            private int remaining = count;
+            private boolean failed;
+
+            public synchronized void onSuccess(Void value) {
+                remaining--;
+                if( remaining==0 && !failed && cb!=null ) {
+                    cb.onSuccess(null);
+                }
+            }
+
+            public synchronized void onFailure(Throwable value) {
+                if( !failed ) {
+                    failed = true;
+                    if( cb!=null ) {
+                        cb.onFailure(value);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Consumes a subscription over several connections and processes the
+ * messages on a pool of worker threads.  A single connection delivers all
+ * its messages on one dispatch queue, which limits how fast a subscriber
+ * can go; a group spreads both the socket reads and the message handling.
+ * </p>
+ * <p>
+ * With {@link #setShareName(String)} set, every connection subscribes to
+ * <code>$share/&lt;name&gt;/&lt;filter&gt;</code> and the server splits the
+ * messages between them.  Without it, which suits servers that do not
+ * support shared subscriptions, every connection subscribes to the plain
+ * filter and keeps only the topics that hash to it, acknowledging the
+ * others unprocessed.  Every message then crosses the network once per
+ * connection, so this only helps when handling messages costs more than
+ * receiving them.
+ * </p>
+ * <p>
+ * Messages are handed to one of the worker lanes by the hash of their
+ * topic.  A lane runs one message at a time, so the messages of a topic
+ * received by one connection are handled in order.  When a connection
+ * has more than {@link #setMaxOutstanding(int) maxOutstanding} messages
+ * waiting for the workers it stops reading from its socket until half of
+ * them are done.
+ * </p>
+ */
+public class ConsumerGroup {
+
+    private final ConnectionPool pool;
+    private final Member[] members;
+    private final Lane[] lanes;
+    private String shareName;
+    private int maxOutstanding = 1000;
+    private MessageHandler handler;
+
+    /**
+     * @param template the MQTT the connections are created from.
+     * @param connections the number of connections to subscribe with.
+     * @param workers the number of messages handled concurrently.
+     * @param executor runs the workers, for example {@link MQTT#getBlockingThreadPool()}.
+     */
+    public ConsumerGroup(MQTT template, int connections, int workers, Executor executor) {
+        this(template, connections, workers, executor, null);
+    }
+
+    /**
+     * @param customizer adjusts the settings of each connection, for example
+     *                   to give each one its own dedup journal.  May be null.
+     * @see ConnectionPool#ConnectionPool(MQTT, int, ConnectionPool.Customizer)
+     */
+    public ConsumerGroup(MQTT template, int connections, int workers, Executor executor, ConnectionPool.Customizer customizer) {
+        if( workers < 1 ) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        pool = new ConnectionPool(template, connections, customizer);
+        members = new Member[connections];
+        for (int i = 0; i < connections; i++) {
+            members[i] = new Member(i, pool.connection(i));
+        }
+        lanes = new Lane[workers];
+        for (int i = 0; i < workers; i++) {
+            lanes[i] = new Lane(executor);
+        }
+    }
+
+    public String getShareName() {
+        return shareName;
+    }
+
+    /**
+     * Sets the shared subscription group name, null to partition the
+     * messages on the client.  Must be set before {@link #start}.
+     */
+    public void setShareName(String shareName) {
+        this.shareName = shareName;
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    public void setMaxOutstanding(int maxOutstanding) {
+        if( maxOutstanding < 1 ) {
+            throw new IllegalArgumentException("maxOutstanding must be at least 1");
+        }
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * Connects the group and subscribes every connection to the topics.
+     * The callback succeeds once all the connections are subscribed.
+     */
+    public void start(final Topic[] topics, MessageHandler handler, Callback<Void> cb) {
+        listen(handler);
+        final Topic[] filters = new Topic[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            UTF8Buffer name = topics[i].name();
+            if( shareName!=null ) {
+                name = new UTF8Buffer("$share/" + shareName + "/" + name);
+            }
+            filters[i] = new Topic(name, topics[i].qos());
+        }
+        final Callback<Void> subscribed = ConnectionPool.aggregate(members.length, cb);
+        for (final Member member : members) {
+            member.connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    member.connection.connect(new Callback<Void>() {
+                        public void onSuccess(Void value) {
+                            member.connection.subscribe(filters, new Callback<byte[]>() {
+                                public void onSuccess(byte[] value) {
+                                    subscribed.onSuccess(null);
+                                }
+                                public void onFailure(Throwable value) {
+                                    subscribed.onFailure(value);
+                                }
+                            });
+                        }
+                        public void onFailure(Throwable value) {
+                            subscribed.onFailure(value);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands the messages received by the connections to the handler.
+     */
+    void listen(MessageHandler handler) {
+        this.handler = handler;
+        for (final Member member : members) {
+            member.connection.getDispatchQueue().execute(new Task() {
+                public void run() {
+                    member.connection.listener(member);
+                }
+            });
+        }
+    }
+
+    /**
+     * Disconnects all the connections.  Messages already handed to the
+     * workers are still handled but can no longer be acknowledged.
+     */
+    public void stop(Callback<Void> cb) {
+        pool.disconnect(cb);
+    }
+
+    private class Member implements Listener {
+        final int index;
+        final CallbackConnection connection;
+        final AtomicInteger outstanding = new AtomicInteger();
+        boolean suspended;
+
+        final Task resumeTask = new Task() {
+            public void run() {
+                if( suspended && outstanding.get() <= maxOutstanding / 2 ) {
+                    suspended = false;
+                    connection.resume();
+                }
+            }
+        };
+
+        Member(int index, CallbackConnection connection) {
+            this.index = index;
+            this.connection = connection;
+        }
+
+        public void onConnected() {
+        }
+
+        public void onDisconnected() {
+        }
+
+        public void onPublish(UTF8Buffer topic, Buffer payload, Runnable ack) {
+            if( shareName==null && ConnectionPool.partition(topic, members.length)!=index ) {
+                ack.run();
+                return;
+            }
+            final Message message = new Message(connection.getDispatchQueue(), topic, payload, ack);
+            if( outstanding.incrementAndGet() >= maxOutstanding && !suspended ) {
+                suspended = true;
+                connection.suspend();
+            }
+            lanes[ConnectionPool.partition(topic, lanes.length)].execute(new Runnable() {
+                public void run() {
+                    try {
+                        handler.onMessage(message);
+                    } catch (Throwable e) {
+                        handler.onFailure(e);
+                    } finally {
+                        if( outstanding.decrementAndGet() == maxOutstanding / 2 ) {
+                            connection.getDispatchQueue().execute(resumeTask);
+                        }
+                    }
+                }
+            });
+        }
+
+        public void onFailure(Throwable value) {
+            handler.onFailure(value);
+        }
+    }
+
+    /**
+     * Runs the tasks given to it one at a time on the executor.
+     */
+    private static class Lane implements Runnable {
+        final Executor executor;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Lane(Executor executor) {
+            this.executor = executor;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if( size.getAndIncrement()==0 ) {
+                executor.execute(this);
+            }
+        }
+
+        public void run() {
+            do {
+                tasks.poll().run();
+            } while( size.decrementAndGet()!=0 );
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.fusesource.mqtt.codec.MQTTFrame;
+
+/**
+ * <p>
+ * The stock {@link ClientMetrics}.  It counts the frames and bytes sent
+ * and received by message type, keeps the in flight and queued gauges
+ * and the reconnect count, and records the ping round trips and the
+ * publish to ack latencies of each QoS in {@link LatencyHistogram}s.
+ * Everything is kept in atomics, so connections on different threads
+ * can share an instance without locking.
+ * </p>
+ * <p>
+ * {@link #register(String)} exposes it as an MXBean named
+ * <code>org.fusesource.mqtt:type=Client,name=&lt;name&gt;</code> in the
+ * platform MBean server.
+ * </p>
+ */
+public class DefaultClientMetrics implements ClientMetrics, ClientMetricsMXBean {
+
+    private final AtomicLongArray framesSent = new AtomicLongArray(16);
+    private final AtomicLongArray bytesSent = new AtomicLongArray(16);
+    private final AtomicLongArray framesReceived = new AtomicLongArray(16);
+    private final AtomicLongArray bytesReceived = new AtomicLongArray(16);
+    private final AtomicLong inflight = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final LatencyHistogram pingRoundTrip = new LatencyHistogram();
+    private final LatencyHistogram atLeastOnceAcks = new LatencyHistogram();
+    private final LatencyHistogram exactlyOnceAcks = new LatencyHistogram();
+    private ObjectName objectName;
+
+    public void onFrameSent(byte type, int bytes) {
+        framesSent.incrementAndGet(type & 0x0F);
+        bytesSent.addAndGet(type & 0x0F, bytes);
+    }
+
+    public void onFrameReceived(byte type, int bytes) {
+        framesReceived.incrementAndGet(type & 0x0F);
+        bytesReceived.addAndGet(type & 0x0F, bytes);
+    }
+
+    public void onPublishAcked(QoS qos, long nanos) {
+        if( qos == QoS.EXACTLY_ONCE ) {
+            exactlyOnceAcks.record(nanos);
+        } else {
+            atLeastOnceAcks.record(nanos);
+        }
+    }
+
+    public void onPingRoundTrip(long nanos) {
+        pingRoundTrip.record(nanos);
+    }
+
+    public void onReconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    public void onInflightChanged(int delta) {
+        inflight.addAndGet(delta);
+    }
+
+    public void onQueuedChanged(int delta) {
+        queued.addAndGet(delta);
+    }
+
+    public long getFramesSent() {
+        return sum(framesSent);
+    }
+
+    public long getBytesSent() {
+        return sum(bytesSent);
+    }
+
+    public long getFramesReceived() {
+        return sum(framesReceived);
+    }
+
+    public long getBytesReceived() {
+        return sum(bytesReceived);
+    }
+
+    public Map<String, Long> getFramesSentByType() {
+        return byType(framesSent);
+    }
+
+    public Map<String, Long> getBytesSentByType() {
+        return byType(bytesSent);
+    }
+
+    public Map<String, Long> getFramesReceivedByType() {
+        return byType(framesReceived);
+    }
+
+    public Map<String, Long> getBytesReceivedByType() {
+        return byType(bytesReceived);
+    }
+
+    /**
+     * @return the frames sent of the given MQTT message type.
+     */
+    public long getFramesSent(byte type) {
+        return framesSent.get(type & 0x0F);
+    }
+
+    /**
+     * @return the frames received of the given MQTT message type.
+     */
+    public long getFramesReceived(byte type) {
+        return framesReceived.get(type & 0x0F);
+    }
+
+    public long getInflight() {
+        return inflight.get();
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public LatencyHistogram.Snapshot getPingRoundTrip() {
+        return pingRoundTrip.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getAtLeastOnceAckLatency() {
+        return atLeastOnceAcks.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getExactlyOnceAckLatency() {
+        return exactlyOnceAcks.snapshot();
+    }
+
+    public void reset() {
+        for (int i = 0; i < 16; i++) {
+            framesSent.set(i, 0);
+            bytesSent.set(i, 0);
+            framesReceived.set(i, 0);
+            bytesReceived.set(i, 0);
+        }
+        reconnects.set(0);
+        pingRoundTrip.reset();
+        atLeastOnceAcks.reset();
+        exactlyOnceAcks.reset();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     * @param name the value of the name key of the object name, the client id for example.
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        if( objectName != null ) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("org.fusesource.mqtt:type=Client,name=" + ObjectName.quote(name));
+        server.registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if( objectName != null ) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    private static long sum(AtomicLongArray values) {
+        long rc = 0;
+        for (int i = 0; i < values.length(); i++) {
+            rc += values.get(i);
+        }
+        return rc;
+    }
+
+    private static Map<String, Long> byType(AtomicLongArray values) {
+        LinkedHashMap<String, Long> rc = new LinkedHashMap<String, Long>();
+        for (int i = 1; i < 15; i++) {
+            rc.put(MQTTFrame.typeName(i), values.get(i));
+        }
+        return rc;
+    }
+
+    @Override
+    public String toString() {
+        return "DefaultClientMetrics{" +
+                "framesSent=" + getFramesSent() +
+                ", framesReceived=" + getFramesReceived() +
+                ", inflight=" + getInflight() +
+                ", queued=" + getQueued() +
+                ", reconnects=" + getReconnects() +
+                '}';
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * A pool of direct ByteBuffers used to deliver payloads to a
+ * {@link ByteBufferListener}.  Buffers are pooled in power of two size
+ * classes from 256 bytes up to the max pooled size.  Larger payloads get
+ * a direct buffer of their own which is left to the GC once released.
+ * </p>
+ * <p>
+ * Payloads can be released from any thread.
+ * </p>
+ */
+public class DirectBufferPool {
+
+    private static final int MIN_SHIFT = 8;
+
+    static final DirectBufferPool SHARED = new DirectBufferPool();
+
+    private final int maxPooledSize;
+    private final int maxBuffersPerSize;
+    private final SizeClass[] sizeClasses;
+
+    public DirectBufferPool() {
+        this(1024*1024, 64);
+    }
+
+    /**
+     * @param maxPooledSize the largest payload that is copied into a pooled buffer.
+     * @param maxBuffersPerSize how many released buffers of each size class are kept.
+     */
+    public DirectBufferPool(int maxPooledSize, int maxBuffersPerSize) {
+        this.maxPooledSize = maxPooledSize;
+        this.maxBuffersPerSize = maxBuffersPerSize;
+        this.sizeClasses = new SizeClass[sizeClass(Math.max(maxPooledSize, 1)) + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(1 << (i + MIN_SHIFT));
+        }
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(shift - MIN_SHIFT, 0);
+    }
+
+    /**
+     * Copies the payload into a pooled direct buffer.
+     */
+    Delivery copy(Buffer payload) {
+        PooledBuffer rc;
+        if( payload.length > maxPooledSize ) {
+            rc = new PooledBuffer(null, payload.length);
+        } else {
+            rc = sizeClasses[sizeClass(Math.max(payload.length, 1))].acquire();
+        }
+        return rc.fill(payload);
+    }
+
+    private final class SizeClass {
+        final int capacity;
+        final ReentrantLock lock = new ReentrantLock();
+        final PooledBuffer[] free = new PooledBuffer[maxBuffersPerSize];
+        int count;
+
+        SizeClass(int capacity) {
+            this.capacity = capacity;
+        }
+
+        PooledBuffer acquire() {
+            lock.lock();
+            try {
+                if( count > 0 ) {
+                    PooledBuffer rc = free[--count];
+                    free[count] = null;
+                    return rc;
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new PooledBuffer(this, capacity);
+        }
+
+        void release(PooledBuffer buffer) {
+            lock.lock();
+            try {
+                if( count < free.length ) {
+                    free[count++] = buffer;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A pooled direct buffer along with the read only view handed to the
+     * listener.  Each time it is filled it starts a new generation, which
+     * only the release of that delivery can end.
+     */
+    static final class PooledBuffer {
+        private final SizeClass sizeClass;
+        private final ByteBuffer buffer;
+        final ByteBuffer view;
+        private final AtomicInteger generation = new AtomicInteger();
+
+        PooledBuffer(SizeClass sizeClass, int capacity) {
+            this.sizeClass = sizeClass;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.view = buffer.asReadOnlyBuffer();
+        }
+
+        Delivery fill(Buffer payload) {
+            buffer.clear();
+            buffer.put(payload.data, payload.offset, payload.length);
+            view.clear();
+            view.limit(payload.length);
+            return new Delivery(this, generation.get());
+        }
+
+        private void release(int filled) {
+            // Fails for a second release, also once the buffer went to another delivery.
+            if( !generation.compareAndSet(filled, filled + 1) ) {
+                throw new IllegalStateException("The payload was already released");
+            }
+            if( sizeClass!=null ) {
+                sizeClass.release(this);
+            }
+        }
+    }
+
+    /**
+     * A payload handed to the listener.  It is the release Runnable of that
+     * delivery only, so a late release can't free the buffer from under the
+     * next delivery it was pooled for.
+     */
+    static final class Delivery implements Runnable {
+        final PooledBuffer buffer;
+        final ByteBuffer view;
+        private final int generation;
+
+        Delivery(PooledBuffer buffer, int generation) {
+            this.buffer = buffer;
+            this.view = buffer.view;
+            this.generation = generation;
+        }
+
+        public void run() {
+            buffer.release(generation);
+        }
+    }
+}
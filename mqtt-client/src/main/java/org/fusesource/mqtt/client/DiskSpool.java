@@ -0,0 +1,462 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A first in first out queue of messages on disk, which a connection
+ * publishes to instead of its in memory overflow while it is offline.
+ * See {@link MQTT#setOfflineSpool(DiskSpool)}.
+ * </p>
+ * <p>
+ * Messages are appended to segment files which are deleted once every
+ * message read from them has been {@link #ack(PublishRequest) acked}.
+ * The spool is bounded by {@link #setMaxBytes(long) maxBytes},
+ * beyond which the oldest segment is dropped to make room, and optionally
+ * by {@link #setMaxAge(long) maxAge}, after which messages are dropped
+ * rather than published.  Messages with a QoS below
+ * {@link #setMinQoS(QoS) minQoS} are not spooled at all.  The spool
+ * outlives the process, so messages left in it are published the next
+ * time a connection using it comes online.  Since whole segments are
+ * removed, a crash may publish messages which were already acked again.
+ * Use one spool per client id.
+ * </p>
+ */
+public class DiskSpool {
+
+    // The body length and checksum in front of each record.
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".spool";
+
+    private final File directory;
+    private long maxBytes = 1024L * 1024 * 1024;
+    private long maxAge;
+    private int segmentSize = 16 * 1024 * 1024;
+    private QoS minQoS = QoS.AT_MOST_ONCE;
+
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    private final TreeMap<Long, Long> segmentSizes = new TreeMap<Long, Long>();
+    // How many of the messages read from a segment are not acked yet, by segment.
+    private final HashMap<Long, Integer> unacked = new HashMap<Long, Integer>();
+    // The segment of each message handed out by poll() and not acked yet.
+    private final IdentityHashMap<PublishRequest, Long> polled = new IdentityHashMap<PublishRequest, Long>();
+    // Polled messages given back with retry(), they are polled again first.
+    private final ArrayDeque<PublishRequest> retries = new ArrayDeque<PublishRequest>();
+    private long bytes;
+    private long droppedBytes;
+    private long droppedMessages;
+
+    private long writeId = -1;
+    private FileChannel writeChannel;
+    private long writePosition;
+
+    private long readId = -1;
+    private FileChannel readChannel;
+    private long readPosition;
+
+    private boolean opened;
+    private boolean closed;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+    public DiskSpool(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets how many bytes of messages the spool holds before dropping its
+     * oldest segment.  Defaults to 1 GB.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets how many milliseconds a message can spend in the spool before it
+     * is dropped instead of published.  Defaults to 0, no limit.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size at which the spool moves on to a new segment file.  Defaults to 16 MB.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public QoS getMinQoS() {
+        return minQoS;
+    }
+
+    /**
+     * Sets the lowest QoS which is spooled, messages with a lower QoS are
+     * dropped while offline.  Defaults to {@link QoS#AT_MOST_ONCE}, spooling everything.
+     */
+    public void setMinQoS(QoS minQoS) {
+        this.minQoS = minQoS;
+    }
+
+    /**
+     * Appends a message to the spool.
+     * @return false if the message was dropped because of its QoS.
+     */
+    public synchronized boolean offer(PublishRequest message) throws IOException {
+        open();
+        if( message.getQos().ordinal() < minQoS.ordinal() ) {
+            droppedMessages++;
+            return false;
+        }
+        UTF8Buffer topic = message.getTopic();
+        Buffer payload = message.getPayload();
+        int length = 8 + 1 + 2 + topic.length + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.position(HEADER_SIZE);
+        record.putLong(System.currentTimeMillis());
+        record.put((byte) (message.getQos().ordinal() | (message.isRetain() ? 4 : 0)));
+        record.putShort((short) topic.length);
+        record.put(topic.data, topic.offset, topic.length);
+        record.put(payload.data, payload.offset, payload.length);
+        crc.reset();
+        crc.update(record.array(), HEADER_SIZE, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        if( writeChannel==null || writePosition >= segmentSize ) {
+            roll();
+        }
+        while( record.hasRemaining() ) {
+            writePosition += writeChannel.write(record, writePosition);
+        }
+        segmentSizes.put(writeId, writePosition);
+        bytes += record.limit();
+        while( bytes > maxBytes && segments.size() > 1 ) {
+            dropOldest();
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest message which was not polled yet, or given back with
+     * {@link #retry(PublishRequest)}, or null if there is none.  It stays on
+     * disk until it is {@link #ack(PublishRequest) acked}.
+     */
+    public synchronized PublishRequest poll() throws IOException {
+        open();
+        if( !retries.isEmpty() ) {
+            return retries.poll();
+        }
+        while( true ) {
+            if( readChannel==null ) {
+                Long next = segments.higherKey(readId);
+                if( next==null ) {
+                    return null;
+                }
+                readId = next;
+                readChannel = new RandomAccessFile(segments.get(readId), "r").getChannel();
+                readPosition = 0;
+            }
+            ByteBuffer record = read();
+            if( record==null ) {
+                if( readId==writeId ) {
+                    return null;
+                }
+                // Done with the segment, or the rest of it was torn.
+                readChannel.close();
+                readChannel = null;
+                if( !unacked.containsKey(readId) ) {
+                    deleteSegment(readId);
+                }
+                continue;
+            }
+            long timestamp = record.getLong();
+            byte flags = record.get();
+            int topicLength = record.getShort() & 0xFFFF;
+            if( maxAge > 0 && System.currentTimeMillis() - timestamp > maxAge ) {
+                droppedMessages++;
+                droppedBytes += HEADER_SIZE + record.limit();
+                continue;
+            }
+            byte[] data = record.array();
+            UTF8Buffer topic = new UTF8Buffer(data, record.position(), topicLength);
+            int payloadStart = record.position() + topicLength;
+            Buffer payload = new Buffer(data, payloadStart, record.limit() - payloadStart);
+            PublishRequest message = new PublishRequest(topic, payload, QoS.values()[flags & 3], (flags & 4) != 0);
+            polled.put(message, readId);
+            Integer count = unacked.get(readId);
+            unacked.put(readId, count==null ? 1 : count + 1);
+            return message;
+        }
+    }
+
+    /**
+     * Tells the spool a message it handed out has been published, once the
+     * server acked it.  A segment is deleted once it has been read and all
+     * its messages were acked.
+     */
+    public synchronized void ack(PublishRequest message) throws IOException {
+        Long id = polled.remove(message);
+        if( id==null ) {
+            return;
+        }
+        Integer count = unacked.get(id);
+        if( count==null ) {
+            // Its segment was dropped.
+            return;
+        }
+        if( count > 1 ) {
+            unacked.put(id, count - 1);
+            return;
+        }
+        unacked.remove(id);
+        if( id < readId || (id==readId && readChannel==null) ) {
+            deleteSegment(id);
+        }
+    }
+
+    /**
+     * Gives back a message handed out by {@link #poll()} which could not be
+     * published, so that it is polled again ahead of the others.
+     */
+    public synchronized void retry(PublishRequest message) {
+        if( polled.containsKey(message) ) {
+            retries.add(message);
+        }
+    }
+
+    /**
+     * @return true if there is no message left to poll.
+     */
+    public synchronized boolean isEmpty() throws IOException {
+        open();
+        if( !retries.isEmpty() ) {
+            return false;
+        }
+        if( readChannel!=null && readId!=writeId ) {
+            return false;
+        }
+        if( readChannel!=null ) {
+            return readPosition >= writePosition;
+        }
+        Long next = segments.higherKey(readId);
+        if( next==null ) {
+            return true;
+        }
+        return next==writeId && writePosition==0;
+    }
+
+    /**
+     * @return the bytes held by the spool, including the records read from
+     * the segments which are not deleted yet.
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long droppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * @return the messages dropped because of their QoS or age.  Messages
+     * dropped with a segment to stay under maxBytes only count in
+     * {@link #droppedBytes()}.
+     */
+    public synchronized long droppedMessages() {
+        return droppedMessages;
+    }
+
+    public synchronized void close() throws IOException {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        polled.clear();
+        retries.clear();
+        if( writeChannel!=null ) {
+            writeChannel.close();
+        }
+        if( readChannel!=null ) {
+            readChannel.close();
+        }
+    }
+
+    /**
+     * Reads the record at the read position.
+     * @return the record body, or null at the end of the segment.
+     */
+    private ByteBuffer read() throws IOException {
+        header.clear();
+        if( readFully(header, readPosition) < HEADER_SIZE ) {
+            return null;
+        }
+        int length = header.getInt(0);
+        if( length < 11 ) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(length);
+        if( readFully(record, readPosition + HEADER_SIZE) < length ) {
+            return null;
+        }
+        crc.reset();
+        crc.update(record.array(), 0, length);
+        if( header.getInt(4) != (int) crc.getValue() ) {
+            return null;
+        }
+        readPosition += HEADER_SIZE + length;
+        record.flip();
+        return record;
+    }
+
+    private int readFully(ByteBuffer buffer, long position) throws IOException {
+        int rc = 0;
+        while( buffer.hasRemaining() ) {
+            int count = readChannel.read(buffer, position + rc);
+            if( count < 0 ) {
+                break;
+            }
+            rc += count;
+        }
+        return rc;
+    }
+
+    private void open() throws IOException {
+        if( closed ) {
+            throw new IllegalStateException("The spool is closed");
+        }
+        if( opened ) {
+            return;
+        }
+        if( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Could not create " + directory);
+        }
+        for (File file : directory.listFiles()) {
+            String name = file.getName();
+            if( name.endsWith(SUFFIX) ) {
+                try {
+                    long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+                    segments.put(id, file);
+                    segmentSizes.put(id, file.length());
+                    bytes += file.length();
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        opened = true;
+        if( !segments.isEmpty() ) {
+            // Append to the last segment after its last good record.
+            writeId = segments.lastKey();
+            readId = writeId;
+            readChannel = new RandomAccessFile(segments.get(writeId), "r").getChannel();
+            readPosition = 0;
+            while( read()!=null ) {
+            }
+            writeChannel = new RandomAccessFile(segments.get(writeId), "rw").getChannel();
+            writeChannel.truncate(readPosition);
+            writePosition = readPosition;
+            bytes -= segmentSizes.put(writeId, writePosition) - writePosition;
+            readChannel.close();
+            readChannel = null;
+            readId = -1;
+        }
+    }
+
+    private void roll() throws IOException {
+        if( writeChannel!=null ) {
+            writeChannel.close();
+        }
+        writeId++;
+        File file = new File(directory, String.format("%016x", writeId) + SUFFIX);
+        writeChannel = new RandomAccessFile(file, "rw").getChannel();
+        writePosition = 0;
+        segments.put(writeId, file);
+        segmentSizes.put(writeId, 0L);
+    }
+
+    private void dropOldest() throws IOException {
+        Map.Entry<Long, Long> oldest = segmentSizes.firstEntry();
+        long id = oldest.getKey();
+        long size = oldest.getValue();
+        if( id < readId || (id==readId && readChannel==null) ) {
+            // Only kept until its messages are acked.
+            size = 0;
+        } else if( id==readId ) {
+            size -= readPosition;
+        }
+        droppedBytes += size;
+        unacked.remove(id);
+        // Its messages still out can no longer be acked or retried.
+        Iterator<Map.Entry<PublishRequest, Long>> entries = polled.entrySet().iterator();
+        while( entries.hasNext() ) {
+            Map.Entry<PublishRequest, Long> entry = entries.next();
+            if( entry.getValue()==id ) {
+                retries.remove(entry.getKey());
+                entries.remove();
+            }
+        }
+        deleteSegment(id);
+    }
+
+    private void deleteSegment(long id) throws IOException {
+        if( id==readId && readChannel!=null ) {
+            readChannel.close();
+            readChannel = null;
+        }
+        File file = segments.remove(id);
+        bytes -= segmentSizes.remove(id);
+        if( !file.delete() ) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ * A {@link ReconnectStrategy} which multiplies the delay after every
+ * failed attempt, up to a maximum.  The first attempt waits the initial
+ * delay, the next one the initial delay times the multiplier and so on.
+ * </p>
+ * <p>
+ * When many clients lose the same server at once, exact delays make them
+ * all come back at the same instants.  The jitter spreads their attempts
+ * out: {@link Jitter#FULL} picks a random delay between 0 and the
+ * exponential one, {@link Jitter#DECORRELATED} a random delay between the
+ * initial delay and the multiplier times the previous delay.
+ * </p>
+ */
+public class ExponentialBackoff implements ReconnectStrategy {
+
+    public enum Jitter {
+        /**
+         * Waits exactly the exponential delay.
+         */
+        NONE,
+        /**
+         * Waits a random delay between 0 and the exponential delay.
+         */
+        FULL,
+        /**
+         * Waits a random delay between the initial delay and the multiplier
+         * times the previous delay, so each client's delays drift apart.
+         */
+        DECORRELATED
+    }
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final Jitter jitter;
+
+    /**
+     * @param initialDelay the milliseconds to wait before the first attempt.
+     * @param maxDelay the most milliseconds to wait before any attempt.
+     * @param multiplier what the delay is multiplied by after each attempt, 1 for a fixed delay.
+     * @param jitter how the delays are randomized.
+     */
+    public ExponentialBackoff(long initialDelay, long maxDelay, double multiplier, Jitter jitter) {
+        if( initialDelay < 0 || maxDelay < 0 ) {
+            throw new IllegalArgumentException("The delays can't be negative");
+        }
+        if( multiplier < 1.0 ) {
+            throw new IllegalArgumentException("The multiplier must be at least 1");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter == null ? Jitter.NONE : jitter;
+    }
+
+    public long delay(long attempt, long previousDelay) {
+        if( initialDelay == 0 || maxDelay == 0 ) {
+            return 0;
+        }
+        switch (jitter) {
+            case FULL:
+                return random(0, exponential(attempt));
+            case DECORRELATED:
+                long previous = Math.max(previousDelay, initialDelay);
+                return random(Math.min(initialDelay, maxDelay), cap(previous * multiplier));
+            default:
+                return exponential(attempt);
+        }
+    }
+
+    private long exponential(long attempt) {
+        return cap(initialDelay * Math.pow(multiplier, attempt));
+    }
+
+    private long cap(double delay) {
+        // Also covers the infinity pow() ends up at after many attempts.
+        return delay >= maxDelay ? maxDelay : (long) delay;
+    }
+
+    private static long random(long min, long max) {
+        if( max <= min ) {
+            return min;
+        }
+        return min + ThreadLocalRandom.current().nextLong(max - min + 1);
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public Jitter getJitter() {
+        return jitter;
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoff{" +
+                "initialDelay=" + initialDelay +
+                ", maxDelay=" + maxDelay +
+                ", multiplier=" + multiplier +
+                ", jitter=" + jitter +
+                '}';
+    }
+}
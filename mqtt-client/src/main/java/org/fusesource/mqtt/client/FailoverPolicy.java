@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Which server a connection tries next when it is given several with
+ * {@link MQTT#setHosts(java.util.List)}.  Whatever the policy, a server
+ * which failed is skipped until every other one has failed too, so
+ * losing a server costs a single connect attempt to the next one rather
+ * than a reconnect back off.
+ * </p>
+ */
+public enum FailoverPolicy {
+
+    /**
+     * Tries the servers one after the other, in list order.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Tries the servers in list order every time, so the connection goes
+     * back to the first one whenever it has to reconnect and it is up.
+     */
+    PRIORITY,
+
+    /**
+     * Tries the server which recently took the least time to connect to
+     * first.  Servers which have not been connected to yet are tried
+     * before the others so that they get measured.
+     */
+    LOWEST_LATENCY
+}
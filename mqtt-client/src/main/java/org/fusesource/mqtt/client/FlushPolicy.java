@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Controls how a connection packs outbound frames into socket writes.
+ * Without a flush policy each frame is handed to the transport as soon as
+ * it is sent.  With one, frames are held by the connection and handed over
+ * together once any of the limits is reached, so that many small frames
+ * go out in a single write.
+ * </p>
+ * <p>
+ * When no delay is set, held frames are written once the dispatch queue
+ * has run the tasks that were already queued, which batches the frames
+ * sent by a burst of tasks without adding latency.
+ * </p>
+ */
+public class FlushPolicy {
+
+    /**
+     * Writes held frames once the dispatch queue has run the tasks already queued.
+     */
+    public static final FlushPolicy END_OF_DRAIN = new FlushPolicy(0, 0, 0);
+
+    private final int maxFrames;
+    private final int maxBytes;
+    private final long maxDelay;
+
+    /**
+     * @param maxFrames write once this many frames are held, 0 for no limit.
+     * @param maxBytes write once the held frames add up to this many bytes, 0 for no limit.
+     * @param maxDelay the most microseconds a frame is held, 0 to write at the end of the dispatch queue drain.
+     */
+    public FlushPolicy(int maxFrames, int maxBytes, long maxDelay) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    boolean full(int frames, int bytes) {
+        return (maxFrames > 0 && frames >= maxFrames) || (maxBytes > 0 && bytes >= maxBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy{" +
+                "maxFrames=" + maxFrames +
+                ", maxBytes=" + maxBytes +
+                ", maxDelay=" + maxDelay +
+                '}';
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBCOMP;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.fusesource.mqtt.codec.UNSUBACK;
+
+/**
+ * <p>
+ * A {@link Tracer} which keeps a record of the last frames sent and
+ * received, to look at when something goes wrong in production.  Only
+ * the metadata of a frame is kept: when it went by, which way, its
+ * header, its message id and its size.  The records go into a ring
+ * buffer allocated up front, so capturing a frame takes a few array
+ * stores and no allocation.  Turning the records into text is left to
+ * whoever calls {@link #snapshot()}, on their own thread.
+ * </p>
+ * <p>
+ * The publishes and their acks can be sampled: with a sample interval of
+ * N only the messages whose id is a multiple of N are captured, along with
+ * every Nth QoS 0 publish, so that the frames of a captured message are
+ * all kept.  The other frames are always captured.  An instance can be
+ * shared by several connections.
+ * </p>
+ */
+public class FrameCapture extends Tracer {
+
+    // Each record takes three longs: its sequence number, its time and the packed metadata.
+    private static final int SEQUENCE = 0;
+    private static final int TIME = 1;
+    private static final int METADATA = 2;
+
+    private final AtomicLongArray records;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong publishes = new AtomicLong();
+    private volatile int sampleInterval = 1;
+
+    /**
+     * @param capacity the number of frames remembered, rounded up to a power of two.
+     */
+    public FrameCapture(int capacity) {
+        if( capacity < 1 || capacity > (1 << 26) ) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if( size < capacity ) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        records = new AtomicLongArray(size * 3);
+        for (int i = 0; i < size; i++) {
+            records.set(i * 3 + SEQUENCE, -1);
+        }
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Sets how many publish exchanges go by for each one captured.  Defaults to 1.
+     */
+    public void setSampleInterval(int sampleInterval) {
+        if( sampleInterval < 1 ) {
+            throw new IllegalArgumentException("The interval must be at least 1");
+        }
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * @return the number of frames captured so far, including those overwritten since.
+     */
+    public long getCaptured() {
+        return next.get();
+    }
+
+    @Override
+    public void onSend(MQTTFrame frame) {
+        capture(frame, true);
+    }
+
+    @Override
+    public void onReceive(MQTTFrame frame) {
+        capture(frame, false);
+    }
+
+    private void capture(MQTTFrame frame, boolean sent) {
+        byte type = frame.messageType();
+        int messageId = -1;
+        if( type >= PUBLISH.TYPE && type <= UNSUBACK.TYPE ) {
+            messageId = messageId(frame);
+            int interval = sampleInterval;
+            // PUBLISH, PUBACK, PUBREC, PUBREL and PUBCOMP are sampled.
+            if( interval > 1 && type <= PUBCOMP.TYPE ) {
+                long n = messageId >= 0 ? messageId : publishes.getAndIncrement();
+                if( n % interval != 0 ) {
+                    return;
+                }
+            }
+        }
+        long metadata = (frame.header() & 0xFFL)
+                | (sent ? 1L << 8 : 0)
+                | ((messageId & 0xFFFFL) << 16)
+                | (messageId >= 0 ? 1L << 9 : 0)
+                | ((long) frame.encodedLength() << 32);
+
+        long sequence = next.getAndIncrement();
+        int base = (int) (sequence & mask) * 3;
+        // Readers check the sequence before and after reading the record, see snapshot().
+        records.lazySet(base + SEQUENCE, -1);
+        records.lazySet(base + TIME, System.currentTimeMillis());
+        records.lazySet(base + METADATA, metadata);
+        records.lazySet(base + SEQUENCE, sequence);
+    }
+
+    /**
+     * @return the message id of a frame which has one, -1 if it has none.
+     */
+    private static int messageId(MQTTFrame frame) {
+        if( frame.buffers.length == 0 ) {
+            return -1;
+        }
+        Buffer buffer = frame.buffers[0];
+        int offset = 0;
+        if( frame.messageType() == PUBLISH.TYPE ) {
+            if( frame.qos() == QoS.AT_MOST_ONCE || buffer.length < 2 ) {
+                return -1;
+            }
+            offset = 2 + (((buffer.data[buffer.offset] & 0xFF) << 8) | (buffer.data[buffer.offset + 1] & 0xFF));
+        }
+        if( buffer.length < offset + 2 ) {
+            return -1;
+        }
+        return ((buffer.data[buffer.offset + offset] & 0xFF) << 8) | (buffer.data[buffer.offset + offset + 1] & 0xFF);
+    }
+
+    /**
+     * @return the frames still in the ring buffer, oldest first.  Frames
+     * being captured while the snapshot is taken may be left out.
+     */
+    public List<CapturedFrame> snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        ArrayList<CapturedFrame> rc = new ArrayList<CapturedFrame>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            int base = (int) (sequence & mask) * 3;
+            if( records.get(base + SEQUENCE) != sequence ) {
+                continue;
+            }
+            long time = records.get(base + TIME);
+            long metadata = records.get(base + METADATA);
+            if( records.get(base + SEQUENCE) != sequence ) {
+                // Overwritten while we were reading it.
+                continue;
+            }
+            rc.add(new CapturedFrame(time, metadata));
+        }
+        return rc;
+    }
+
+    /**
+     * The metadata of a captured frame.
+     */
+    public static class CapturedFrame {
+
+        private final long time;
+        private final long metadata;
+
+        CapturedFrame(long time, long metadata) {
+            this.time = time;
+            this.metadata = metadata;
+        }
+
+        /**
+         * @return when the frame was sent or received, in milliseconds since the epoch.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public boolean isSent() {
+            return (metadata & (1L << 8)) != 0;
+        }
+
+        public byte getHeader() {
+            return (byte) metadata;
+        }
+
+        public int getType() {
+            return (int) (metadata >>> 4) & 0x0F;
+        }
+
+        public QoS getQos() {
+            return QoS.values()[Math.min((int) (metadata >>> 1) & 0x03, 2)];
+        }
+
+        public boolean isDup() {
+            return (metadata & 0x08) != 0;
+        }
+
+        public boolean isRetain() {
+            return (metadata & 0x01) != 0;
+        }
+
+        /**
+         * @return the message id, -1 for frames which don't have one.
+         */
+        public int getMessageId() {
+            return (metadata & (1L << 9)) != 0 ? (int) (metadata >>> 16) & 0xFFFF : -1;
+        }
+
+        /**
+         * @return the size of the frame on the wire.
+         */
+        public int getLength() {
+            return (int) (metadata >>> 32);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(time).append(isSent() ? " sent " : " received ").append(MQTTFrame.typeName(getType()));
+            if( getType() == PUBLISH.TYPE ) {
+                sb.append(" qos=").append(getQos().ordinal());
+                if( isDup() ) {
+                    sb.append(" dup");
+                }
+                if( isRetain() ) {
+                    sb.append(" retain");
+                }
+            }
+            if( getMessageId() >= 0 ) {
+                sb.append(" id=").append(getMessageId());
+            }
+            sb.append(" length=").append(getLength());
+            return sb.toString();
+        }
+    }
+}
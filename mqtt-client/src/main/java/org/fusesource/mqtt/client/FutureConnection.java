@@ -25,6 +25,7 @@ import org.fusesource.hawtdispatch.Task;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 import static org.fusesource.hawtbuf.Buffer.utf8;
 
@@ -162,14 +163,61 @@ public class FutureConnection {
 
     public Future<Void> publish(final UTF8Buffer topic, final Buffer payload,  final QoS qos, final boolean retain) {
         final Promise<Void> future = new Promise<Void>();
+        final int reserved = awaitRoom(future, 1);
+        if( reserved < 0 ) {
+            return future;
+        }
         next.getDispatchQueue().execute(new Task() {
             public void run() {
-                next.publish(topic, payload, qos, retain, future);
+                try {
+                    next.publish(topic, payload, qos, retain, future);
+                } finally {
+                    next.releaseRoom(reserved);
+                }
             }
         });
         return future;
     }
 
+    /**
+     * Publishes the messages with a single task on the dispatch queue.  With
+     * the BLOCK overflow policy it first waits for room for the whole batch.
+     * The list is copied, so the caller may reuse it once this returns.
+     * @see CallbackConnection#publishBatch(List, Callback)
+     */
+    public Future<Void> publishBatch(List<PublishRequest> messages) {
+        final Promise<Void> future = new Promise<Void>();
+        final List<PublishRequest> batch = new ArrayList<PublishRequest>(messages);
+        final int reserved = awaitRoom(future, batch.size());
+        if( reserved < 0 ) {
+            return future;
+        }
+        next.getDispatchQueue().execute(new Task() {
+            public void run() {
+                try {
+                    next.publishBatch(batch, future);
+                } finally {
+                    next.releaseRoom(reserved);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Applies the BLOCK overflow policy before handing publishes to the dispatch queue.
+     * @return the room reserved for them, or -1 if the wait was interrupted.
+     */
+    private int awaitRoom(Promise<Void> future, int count) {
+        try {
+            return next.awaitRoom(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.onFailure(e);
+            return -1;
+        }
+    }
+
     public Future<Message> receive() {
         final Promise<Message> future = new Promise<Message>();
         getDispatchQueue().execute(new Task(){
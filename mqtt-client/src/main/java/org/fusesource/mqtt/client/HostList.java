@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * <p>
+ * Keeps track of the servers a connection can fail over between: which
+ * of them failed since the connection last got through to one, and how
+ * long connecting to each took recently.  Not thread safe, it is only
+ * used from the connection's dispatch queue.
+ * </p>
+ */
+final class HostList {
+
+    // The weight of the latest sample in the connect latency averages.
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    private final URI[] hosts;
+    private final FailoverPolicy policy;
+    // Set for the hosts which failed in the current round.
+    private final boolean[] failed;
+    // The average connect latency in nanoseconds, -1 until measured.
+    private final long[] latency;
+    private int failures;
+    private int current = -1;
+    private long connectingSince;
+
+    HostList(List<URI> hosts, FailoverPolicy policy) {
+        if( hosts.isEmpty() ) {
+            throw new IllegalArgumentException("No hosts to connect to");
+        }
+        this.hosts = hosts.toArray(new URI[hosts.size()]);
+        this.policy = policy == null ? FailoverPolicy.ROUND_ROBIN : policy;
+        this.failed = new boolean[this.hosts.length];
+        this.latency = new long[this.hosts.length];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = -1;
+        }
+    }
+
+    int size() {
+        return hosts.length;
+    }
+
+    /**
+     * @return the host the connection is or was last connecting to, null before the first attempt.
+     */
+    URI current() {
+        return current < 0 ? null : hosts[current];
+    }
+
+    /**
+     * Picks the host to connect to next, and starts timing the connect.
+     */
+    URI next() {
+        if( exhausted() ) {
+            newRound();
+        }
+        int pick = -1;
+        switch (policy) {
+            case PRIORITY:
+                pick = firstHealthy(0);
+                break;
+            case LOWEST_LATENCY:
+                for (int i = 0; i < hosts.length; i++) {
+                    if( !failed[i] && (pick < 0 || latency[i] < latency[pick]) ) {
+                        pick = i;
+                    }
+                }
+                break;
+            default:
+                pick = firstHealthy(current + 1);
+        }
+        current = pick;
+        connectingSince = System.nanoTime();
+        return hosts[current];
+    }
+
+    private int firstHealthy(int from) {
+        for (int i = 0; i < hosts.length; i++) {
+            int index = (from + i) % hosts.length;
+            if( !failed[index] ) {
+                return index;
+            }
+        }
+        // exhausted() is checked before picking.
+        throw new IllegalStateException();
+    }
+
+    /**
+     * The connection got through to the current host.
+     */
+    void connected() {
+        if( current < 0 ) {
+            return;
+        }
+        long sample = System.nanoTime() - connectingSince;
+        long average = latency[current];
+        latency[current] = average < 0 ? sample : (long) (average + LATENCY_WEIGHT * (sample - average));
+        newRound();
+    }
+
+    /**
+     * The connection to the current host could not be established or was lost.
+     */
+    void failed() {
+        if( current >= 0 && !failed[current] ) {
+            failed[current] = true;
+            failures++;
+        }
+    }
+
+    /**
+     * @return true once every host failed since the connection last got through to one.
+     */
+    boolean exhausted() {
+        return failures == hosts.length;
+    }
+
+    void newRound() {
+        for (int i = 0; i < failed.length; i++) {
+            failed[i] = false;
+        }
+        failures = 0;
+    }
+
+    /**
+     * @return the average connect latency to the host in nanoseconds, -1 if it has not been connected to.
+     */
+    long latency(URI host) {
+        for (int i = 0; i < hosts.length; i++) {
+            if( hosts[i].equals(host) ) {
+                return latency[i];
+            }
+        }
+        return -1;
+    }
+}
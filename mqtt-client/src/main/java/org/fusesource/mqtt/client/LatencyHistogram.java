@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock free histogram of durations in nanoseconds.  Like HdrHistogram
+ * it counts the values in buckets whose width doubles with every power of
+ * two, each split into 32 linear sub buckets, so every recorded value is
+ * known to within about 3% and the whole range of a long fits in under
+ * 2000 counters.  Recording is a couple of atomic increments.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if( nanos < 0 ) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while( nanos > (current = max.get()) && !max.compareAndSet(current, nanos) ) {
+        }
+    }
+
+    static int index(long value) {
+        if( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value which falls in the bucket.
+     */
+    static long highestValue(int index) {
+        if( index < SUB_BUCKETS ) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Takes a copy of the histogram.  Values recorded while the copy is
+     * taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            n += copy[i];
+        }
+        long maximum = max.get();
+        return new Snapshot(n,
+                n == 0 ? 0 : total.get() / n / 1000,
+                percentile(copy, n, 0.50, maximum) / 1000,
+                percentile(copy, n, 0.90, maximum) / 1000,
+                percentile(copy, n, 0.99, maximum) / 1000,
+                percentile(copy, n, 0.999, maximum) / 1000,
+                maximum / 1000);
+    }
+
+    private static long percentile(long[] counts, long n, double percentile, long max) {
+        if( n == 0 ) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * n);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if( seen >= rank ) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The count and percentiles of a histogram at one point in time, in microseconds.
+     */
+    public static class Snapshot {
+
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+        public Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "count=" + count +
+                    ", mean=" + mean +
+                    ", p50=" + p50 +
+                    ", p90=" + p90 +
+                    ", p99=" + p99 +
+                    ", p999=" + p999 +
+                    ", max=" + max +
+                    '}';
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.fusesource.mqtt.codec.CONNECT;
 import javax.net.ssl.SSLContext;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.*;
@@ -74,7 +75,51 @@ public class MQTT {
     public synchronized static void setBlockingThreadPool(ThreadPoolExecutor pool) {
         blockingThreadPool = pool;
     }
+
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("mqtt.thread.virtual");
+    private static Executor virtualThreadExecutor;
+    private static boolean virtualThreadsProbed;
+
+    /**
+     * <p>
+     * Returns a shared executor which runs every task on a new virtual
+     * thread, or null when the JVM does not support virtual threads (they
+     * need Java 21).  Unlike the {@link #getBlockingThreadPool() blocking thread pool}
+     * it does not keep platform threads around for the connections which
+     * are resolving a host, connecting or doing an SSL handshake.
+     * </p>
+     * <p>
+     * The virtual thread API is looked up reflectively so the client still
+     * runs on older JVMs.
+     * </p>
+     */
+    public synchronized static Executor getVirtualThreadExecutor() {
+        if( !virtualThreadsProbed ) {
+            virtualThreadsProbed = true;
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "MQTT Task ", 0L);
+                ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                final ExecutorService service = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+                // Only expose execute(), the executor is shared and must not be shutdown.
+                virtualThreadExecutor = new Executor() {
+                    public void execute(Runnable command) {
+                        service.execute(command);
+                    }
+                };
+            } catch (Exception e) {
+                virtualThreadExecutor = null;
+            }
+        }
+        return virtualThreadExecutor;
+    }
     
+    /**
+     * The largest in flight window, it leaves 255 message ids for control frames.
+     */
+    public static final int MAX_INFLIGHT = 0xFFFF - 0xFF;
+
     private static final URI DEFAULT_HOST = createDefaultHost();
     private static URI createDefaultHost() {
         try {
@@ -85,10 +130,13 @@ public class MQTT {
     }
 
     URI host = DEFAULT_HOST; 
+    List<URI> hosts;
+    FailoverPolicy failoverPolicy = FailoverPolicy.ROUND_ROBIN;
     URI localAddress;
     SSLContext sslContext;
     DispatchQueue dispatchQueue;
     Executor blockingExecutor;
+    boolean useVirtualThreads = VIRTUAL_THREADS;
     int maxReadRate;
     int maxWriteRate;
     int trafficClass = TcpTransport.IPTOS_THROUGHPUT;
@@ -101,17 +149,35 @@ public class MQTT {
     long reconnectDelayMax = 30*1000;
     double reconnectBackOffMultiplier = 2.0f;
     long reconnectAttemptsMax = -1;
+    ReconnectStrategy reconnectStrategy;
+    long reconnectStableUptime = 60*1000;
     long connectAttemptsMax = -1;
+    int maxInflight = MAX_INFLIGHT;
+    int topicCacheSize = 1024;
+    int overflowCapacity = -1;
+    OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    FlushPolicy flushPolicy;
+    MessageStore messageStore;
+    MappedDedupJournal dedupJournal;
+    DiskSpool offlineSpool;
+    int replayRate;
+    int replayByteRate;
+    ClientMetrics metrics;
+    PublishTraceListener publishTraceListener;
+    int publishTraceInterval = 1;
     Tracer tracer = new Tracer();
 
     public MQTT() {
     }
     public MQTT(MQTT other) {
         this.host = other.host;
+        this.hosts = other.hosts;
+        this.failoverPolicy = other.failoverPolicy;
         this.localAddress = other.localAddress;
         this.sslContext = other.sslContext;
         this.dispatchQueue = other.dispatchQueue;
         this.blockingExecutor = other.blockingExecutor;
+        this.useVirtualThreads = other.useVirtualThreads;
         this.maxReadRate = other.maxReadRate;
         this.maxWriteRate = other.maxWriteRate;
         this.trafficClass = other.trafficClass;
@@ -123,7 +189,21 @@ public class MQTT {
         this.reconnectDelayMax = other.reconnectDelayMax;
         this.reconnectBackOffMultiplier = other.reconnectBackOffMultiplier;
         this.reconnectAttemptsMax = other.reconnectAttemptsMax;
+        this.reconnectStrategy = other.reconnectStrategy;
+        this.metrics = other.metrics;
+        this.publishTraceListener = other.publishTraceListener;
+        this.publishTraceInterval = other.publishTraceInterval;
+        this.reconnectStableUptime = other.reconnectStableUptime;
         this.connectAttemptsMax = other.connectAttemptsMax;
+        this.maxInflight = other.maxInflight;
+        this.topicCacheSize = other.topicCacheSize;
+        this.overflowCapacity = other.overflowCapacity;
+        this.overflowPolicy = other.overflowPolicy;
+        this.flushPolicy = other.flushPolicy;
+        // The message store, dedup journal and offline spool are not copied,
+        // they hold the state of a single client id.
+        this.replayRate = other.replayRate;
+        this.replayByteRate = other.replayByteRate;
         this.tracer = other.tracer;
     }
 
@@ -131,7 +211,11 @@ public class MQTT {
         if( !isCleanSession() && ( getClientId()==null || getClientId().length==0 )) {
             throw new IllegalArgumentException("The client id MUST be configured when clean session is set to false");
         }
-        return new CallbackConnection(new MQTT(this));
+        MQTT mqtt = new MQTT(this);
+        mqtt.messageStore = messageStore;
+        mqtt.dedupJournal = dedupJournal;
+        mqtt.offlineSpool = offlineSpool;
+        return new CallbackConnection(mqtt);
     }
     public FutureConnection futureConnection() {
         return new FutureConnection(callbackConnection());
@@ -139,6 +223,9 @@ public class MQTT {
     public BlockingConnection blockingConnection() {
         return new BlockingConnection(futureConnection());
     }
+    public ReactiveConnection reactiveConnection() {
+        return new ReactiveConnection(callbackConnection());
+    }
 
     public UTF8Buffer getClientId() {
         return connect.clientId();
@@ -254,6 +341,21 @@ public class MQTT {
         this.blockingExecutor = blockingExecutor;
     }
 
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * When no blocking executor is set, run the transport's blocking tasks
+     * on {@link #getVirtualThreadExecutor() virtual threads} instead of the
+     * shared blocking thread pool.  Ignored when the JVM does not support
+     * virtual threads.  Defaults to the <code>mqtt.thread.virtual</code>
+     * system property.
+     */
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
     public DispatchQueue getDispatchQueue() {
         return dispatchQueue;
     }
@@ -303,11 +405,77 @@ public class MQTT {
     public void setHost(String host, int port) throws URISyntaxException {
         this.setHost(new URI("tcp://"+host+":"+port));
     }
+    /**
+     * Sets the server to connect to.  A <code>failover:(tcp://a:1883,ssl://b:8883)</code>
+     * URI sets several, like {@link #setHosts(List)}.
+     */
     public void setHost(String host) throws URISyntaxException {
-        this.setHost(new URI(host));
+        if( host.startsWith(FAILOVER_PREFIX) ) {
+            this.setHosts(parseFailover(host));
+        } else {
+            this.setHost(new URI(host));
+        }
     }
     public void setHost(URI host) {
         this.host = host;
+        this.hosts = null;
+    }
+
+    /**
+     * @return the servers the connection fails over between, a single one unless {@link #setHosts(List)} was used.
+     */
+    public List<URI> getHosts() {
+        return hosts != null ? hosts : Collections.singletonList(host);
+    }
+
+    /**
+     * Sets several servers to connect to.  When the server the connection
+     * is using fails, it moves on to the next one straight away, picked
+     * by the failover policy, and only backs off once it has tried them
+     * all.  Each reconnect attempt counts once all the servers were tried.
+     */
+    public void setHosts(List<URI> hosts) {
+        if( hosts.isEmpty() ) {
+            throw new IllegalArgumentException("No hosts given");
+        }
+        this.hosts = Collections.unmodifiableList(new ArrayList<URI>(hosts));
+        this.host = hosts.get(0);
+    }
+
+    public FailoverPolicy getFailoverPolicy() {
+        return failoverPolicy;
+    }
+
+    /**
+     * Sets which server is tried next when several were configured.
+     * Defaults to ROUND_ROBIN.
+     */
+    public void setFailoverPolicy(FailoverPolicy failoverPolicy) {
+        this.failoverPolicy = failoverPolicy;
+    }
+
+    private static final String FAILOVER_PREFIX = "failover:";
+
+    static List<URI> parseFailover(String uri) throws URISyntaxException {
+        String list = uri.substring(FAILOVER_PREFIX.length()).trim();
+        if( list.startsWith("(") ) {
+            int end = list.lastIndexOf(')');
+            if( end < 0 ) {
+                throw new URISyntaxException(uri, "Missing closing parenthesis");
+            }
+            list = list.substring(1, end);
+        }
+        ArrayList<URI> rc = new ArrayList<URI>();
+        for (String part : list.split(",")) {
+            part = part.trim();
+            if( part.length() > 0 ) {
+                rc.add(new URI(part));
+            }
+        }
+        if( rc.isEmpty() ) {
+            throw new URISyntaxException(uri, "No hosts given");
+        }
+        return rc;
     }
 
     public int getSendBufferSize() {
@@ -350,6 +518,127 @@ public class MQTT {
         this.connectAttemptsMax = connectAttemptsMax;
     }
 
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
+    /**
+     * Sets the maximum number of QoS 1 and 2 messages which can be waiting on
+     * an acknowledgement from the server.  Further publishes are held by the
+     * connection until an in flight message is acked.  Defaults to
+     * {@link #MAX_INFLIGHT}, so only the message ids bound it as before.
+     * The window can't take every message id, some are kept for the
+     * subscriptions restored after a reconnect.
+     *
+     * @param maxInflight between 1 and {@link #MAX_INFLIGHT}
+     */
+    public void setMaxInflight(int maxInflight) {
+        if( maxInflight < 1 || maxInflight > MAX_INFLIGHT ) {
+            throw new IllegalArgumentException("maxInflight must be between 1 and "+MAX_INFLIGHT);
+        }
+        this.maxInflight = maxInflight;
+    }
+
+    public int getTopicCacheSize() {
+        return topicCacheSize;
+    }
+
+    /**
+     * Sets how many distinct topic names a connection remembers so that
+     * messages on a topic it has seen recently reuse the same topic
+     * buffer.  Set to 0 to decode a new topic buffer for every message.
+     */
+    public void setTopicCacheSize(int topicCacheSize) {
+        this.topicCacheSize = topicCacheSize;
+    }
+
+    public int getOverflowCapacity() {
+        return overflowCapacity;
+    }
+
+    /**
+     * Sets how many requests a connection queues while the transport is
+     * full or the connection is down before the overflow policy kicks in.
+     * Set to -1 to queue without limit.
+     */
+    public void setOverflowCapacity(int overflowCapacity) {
+        this.overflowCapacity = overflowCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Sets how outbound frames are batched into socket writes.  Defaults
+     * to null which hands every frame to the transport as it is sent.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * Sets where QoS 1 and 2 publishes are kept until the server acks them.
+     * A connection publishes the messages left in the store by an earlier
+     * run when it is first connected.  Defaults to null, in which case the
+     * messages only live in memory.
+     * <p>
+     * The replayed messages get new message ids, so across a restart QoS 2
+     * publishes are only delivered at least once.
+     * </p>
+     */
+    public void setMessageStore(MessageStore messageStore) {
+        this.messageStore = messageStore;
+    }
+
+    public MappedDedupJournal getDedupJournal() {
+        return dedupJournal;
+    }
+
+    /**
+     * Sets where the ids of received QoS 2 messages waiting on a PUBREL are
+     * recorded, so that a message redelivered after a restart is not handed
+     * to the application twice.  It is cleared when clean session is set
+     * since the server then forgets the messages too.  Defaults to null,
+     * in which case the ids only live in memory.
+     */
+    public void setDedupJournal(MappedDedupJournal dedupJournal) {
+        this.dedupJournal = dedupJournal;
+    }
+
+    public DiskSpool getOfflineSpool() {
+        return offlineSpool;
+    }
+
+    /**
+     * Sets a spool which publishes are written to while the connection is
+     * not connected, instead of piling up in memory.  The spooled messages
+     * are published once the connection is back, ahead of newer ones.
+     * Defaults to null.
+     * <p>
+     * The callback of a spooled publish completes as soon as the message is
+     * on disk, whatever its QoS, without waiting for the server to ack it.
+     * A future returned for a QoS 1 or 2 publish is then no proof that the
+     * server has the message.  The spool itself keeps the message until the
+     * server acked it.
+     * </p>
+     */
+    public void setOfflineSpool(DiskSpool offlineSpool) {
+        this.offlineSpool = offlineSpool;
+    }
+
     public long getReconnectAttemptsMax() {
         return reconnectAttemptsMax;
     }
@@ -358,6 +647,31 @@ public class MQTT {
         this.reconnectAttemptsMax = reconnectAttemptsMax;
     }
 
+    public int getReplayRate() {
+        return replayRate;
+    }
+
+    /**
+     * Sets how many messages per second are resent after a reconnect.  The
+     * subscriptions are restored first and are not limited.  Messages
+     * published meanwhile queue up behind the replay.  Defaults to 0, no limit.
+     */
+    public void setReplayRate(int replayRate) {
+        this.replayRate = replayRate;
+    }
+
+    public int getReplayByteRate() {
+        return replayByteRate;
+    }
+
+    /**
+     * Sets how many bytes per second are resent after a reconnect, like
+     * {@link #setReplayRate(int)}.  Defaults to 0, no limit.
+     */
+    public void setReplayByteRate(int replayByteRate) {
+        this.replayByteRate = replayByteRate;
+    }
+
     public double getReconnectBackOffMultiplier() {
         return reconnectBackOffMultiplier;
     }
@@ -382,6 +696,83 @@ public class MQTT {
         this.reconnectDelayMax = reconnectDelayMax;
     }
 
+    public ReconnectStrategy getReconnectStrategy() {
+        return reconnectStrategy;
+    }
+
+    /**
+     * Sets how long to wait before each reconnect attempt.  Defaults to null
+     * which backs off exponentially from the reconnect delay by the back off
+     * multiplier, up to the maximum reconnect delay, without jitter.  Use an
+     * {@link ExponentialBackoff} with jitter to keep many clients from
+     * reconnecting in lockstep after a server restart.
+     */
+    public void setReconnectStrategy(ReconnectStrategy reconnectStrategy) {
+        this.reconnectStrategy = reconnectStrategy;
+    }
+
+    public long getReconnectStableUptime() {
+        return reconnectStableUptime;
+    }
+
+    /**
+     * Sets how many ms a connection has to stay up before the reconnect
+     * attempts and delays start over from the beginning when it is lost.
+     * Set to -1 to never start over.  Defaults to 60,000.
+     */
+    public void setReconnectStableUptime(long reconnectStableUptime) {
+        this.reconnectStableUptime = reconnectStableUptime;
+    }
+
+    ReconnectStrategy reconnectStrategy() {
+        if( reconnectStrategy != null ) {
+            return reconnectStrategy;
+        }
+        return new ExponentialBackoff(reconnectDelay, reconnectDelayMax, Math.max(1.0, reconnectBackOffMultiplier), ExponentialBackoff.Jitter.NONE);
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets where connections report their frame counts, queue depths,
+     * reconnects, ping round trips and publish to ack latencies.  A
+     * {@link DefaultClientMetrics} keeps them and can expose them over JMX.
+     * Defaults to null, which measures nothing.
+     */
+    public void setMetrics(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public PublishTraceListener getPublishTraceListener() {
+        return publishTraceListener;
+    }
+
+    /**
+     * Sets a listener which gets the time each publish spent queued, in
+     * the transport and waiting on the server.  A {@link PublishStageHistograms}
+     * keeps them in histograms.  Defaults to null, which traces nothing.
+     */
+    public void setPublishTraceListener(PublishTraceListener publishTraceListener) {
+        this.publishTraceListener = publishTraceListener;
+    }
+
+    public int getPublishTraceInterval() {
+        return publishTraceInterval;
+    }
+
+    /**
+     * Sets how many publishes go by for each one traced, 1 traces them all.
+     * Defaults to 1.
+     */
+    public void setPublishTraceInterval(int publishTraceInterval) {
+        if( publishTraceInterval < 1 ) {
+            throw new IllegalArgumentException("The interval must be at least 1");
+        }
+        this.publishTraceInterval = publishTraceInterval;
+    }
+
     public Tracer getTracer() {
         return tracer;
     }
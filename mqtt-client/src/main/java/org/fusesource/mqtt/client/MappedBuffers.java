@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * <p>
+ * Unmaps memory mapped files.  A mapping otherwise lasts until its buffer
+ * is garbage collected, which keeps the file from being deleted on some
+ * platforms and holds on to the address space.  There is no public API
+ * for it, so it uses Unsafe.invokeCleaner on Java 9 and later and the
+ * buffer's cleaner before that.  When neither is available the mapping is
+ * left to the GC.
+ * </p>
+ * <p>
+ * The buffer must not be used once it is unmapped.
+ * </p>
+ */
+final class MappedBuffers {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Throwable e) {
+            // Before Java 9.
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private MappedBuffers() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            if( INVOKE_CLEANER!=null ) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if( cleaner!=null ) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Throwable e) {
+            // Left to the GC.
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Remembers which received QoS 2 messages have been handed to the
+ * application and are waiting on the server's PUBREL.  If the server
+ * redelivers one of them after the process restarts, the connection acks
+ * it without delivering it a second time.  See
+ * {@link MQTT#setDedupJournal(MappedDedupJournal)}.
+ * </p>
+ * <p>
+ * The journal is a memory mapped file holding one bit per message id, so
+ * recording an id is a single byte write which survives the JVM crashing.
+ * The {@link SyncPolicy} controls when the writes are forced to disk,
+ * with {@link SyncPolicy#PERIODIC} committing the writes made within the
+ * sync interval together, on the {@link MQTT#getBlockingThreadPool()
+ * blocking thread pool}.  A sync does not hold the journal's lock while
+ * it forces the file, so recording ids does not wait on the disk.  Use one
+ * journal per client id.
+ * </p>
+ */
+public class MappedDedupJournal {
+
+    private static final int SIZE = 0x10000 / 8;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer bits;
+    private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+    private long syncInterval = 100;
+    private boolean dirty;
+    private boolean syncScheduled;
+    private boolean closed;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Set while a sync forces the file without holding the lock.
+    private boolean syncing;
+    private final Condition synced = lock.newCondition();
+
+    private final Task syncTask = new Task() {
+        public void run() {
+            lock.lock();
+            try {
+                syncScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+            sync();
+        }
+    };
+
+    // Hands the periodic sync off to a thread which can block on the disk.
+    private final Task scheduleSync = new Task() {
+        public void run() {
+            MQTT.getBlockingThreadPool().execute(syncTask);
+        }
+    };
+
+    public MappedDedupJournal(File file) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if( !parent.isDirectory() && !parent.mkdirs() ) {
+            throw new IOException("Could not create " + parent);
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.bits = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Defaults to {@link SyncPolicy#PERIODIC}.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Sets how many milliseconds a write can wait for a periodic sync.  Defaults to 100.
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @return the recorded message ids, as unsigned values.
+     */
+    public BitSet load() {
+        lock.lock();
+        try {
+            checkOpen();
+            BitSet rc = new BitSet();
+            for (int i = 0; i < SIZE; i++) {
+                byte b = bits.get(i);
+                if( b != 0 ) {
+                    for (int bit = 0; bit < 8; bit++) {
+                        if( (b & (1 << bit)) != 0 ) {
+                            rc.set(i * 8 + bit);
+                        }
+                    }
+                }
+            }
+            return rc;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean get(short messageId) {
+        lock.lock();
+        try {
+            checkOpen();
+            int id = messageId & 0xFFFF;
+            return (bits.get(id >>> 3) & (1 << (id & 7))) != 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void set(short messageId) {
+        lock.lock();
+        try {
+            checkOpen();
+            int id = messageId & 0xFFFF;
+            int index = id >>> 3;
+            bits.put(index, (byte) (bits.get(index) | (1 << (id & 7))));
+            written();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear(short messageId) {
+        lock.lock();
+        try {
+            checkOpen();
+            int id = messageId & 0xFFFF;
+            int index = id >>> 3;
+            bits.put(index, (byte) (bits.get(index) & ~(1 << (id & 7))));
+            written();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clearAll() {
+        lock.lock();
+        try {
+            checkOpen();
+            for (int i = 0; i < SIZE; i++) {
+                bits.put(i, (byte) 0);
+            }
+            written();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the recorded ids to the disk.  Ids can be recorded while it does.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            // One sync at a time, so the file is never unmapped while it is forced.
+            while( syncing ) {
+                synced.awaitUninterruptibly();
+            }
+            if( closed || !dirty ) {
+                return;
+            }
+            dirty = false;
+            syncing = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            bits.force();
+        } finally {
+            lock.lock();
+            try {
+                syncing = false;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if( syncPolicy!=SyncPolicy.NEVER ) {
+            sync();
+        }
+        lock.lock();
+        try {
+            while( syncing ) {
+                synced.awaitUninterruptibly();
+            }
+            if( closed ) {
+                return;
+            }
+            closed = true;
+            MappedBuffers.unmap(bits);
+            raf.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if( closed ) {
+            throw new IllegalStateException("The journal is closed");
+        }
+    }
+
+    private void written() {
+        dirty = true;
+        switch( syncPolicy ) {
+            case ALWAYS:
+                dirty = false;
+                bits.force();
+                break;
+            case PERIODIC:
+                if( !syncScheduled ) {
+                    syncScheduled = true;
+                    Dispatch.getGlobalQueue().executeAfter(syncInterval, TimeUnit.MILLISECONDS, scheduleSync);
+                }
+                break;
+            case NEVER:
+        }
+    }
+}
@@ -0,0 +1,544 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.DataByteArrayOutputStream;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * A {@link MessageStore} which appends to a log of memory mapped segment
+ * files in a directory.  Adding a message appends a record holding it and
+ * removing one appends a removal record, so neither rewrites earlier data.
+ * Since the log is mapped, a write is safe from the JVM going down as soon
+ * as it is made and the {@link SyncPolicy} only decides how much can be lost
+ * if the machine goes down.  Records carry a checksum so that a record torn
+ * by a crash ends the log instead of being replayed.
+ * </p>
+ * <p>
+ * Once every message of the oldest segment has been removed the segment
+ * file is deleted.  When a few unacknowledged messages keep more than
+ * {@link #setMaxSegments(int) maxSegments} segments around, they are copied
+ * to the newest segment so that the oldest can go.  Use one store, and so
+ * one directory, per client id.  The store is not closed by the
+ * connections which use it.
+ * </p>
+ * <p>
+ * Syncs force the segments to disk without holding the store's lock, so
+ * adding and removing messages does not wait on the disk.  Periodic syncs
+ * run on the {@link MQTT#getBlockingThreadPool() blocking thread pool}.
+ * </p>
+ */
+public class MappedMessageStore implements MessageStore {
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    // The body length and checksum in front of each record.
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".log";
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+        // Messages written to the segment, and those of them not yet removed.
+        int messages;
+        int live;
+        boolean dirty;
+
+        Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            long length = Math.max(raf.length(), size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+
+        void close() throws IOException {
+            MappedBuffers.unmap(buffer);
+            raf.close();
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int position;
+
+        Location(Segment segment, int position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    private final File directory;
+    private int segmentSize = 8 * 1024 * 1024;
+    private int maxSegments = 4;
+    private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+    private long syncInterval = 100;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final HashMap<Long, Location> index = new HashMap<Long, Location>();
+    private Segment current;
+    private long nextKey = 1;
+    private boolean opened;
+    private boolean closed;
+    private boolean syncScheduled;
+    private final CRC32 crc = new CRC32();
+    private final DataByteArrayOutputStream scratch = new DataByteArrayOutputStream(256);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Set while a sync forces segments without holding the lock.
+    private boolean syncing;
+    private final Condition synced = lock.newCondition();
+    // Segments compacted away while a sync was forcing them, they are deleted once it is done.
+    private final ArrayList<Segment> retired = new ArrayList<Segment>();
+
+    private final Task syncTask = new Task() {
+        public void run() {
+            lock.lock();
+            try {
+                syncScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+            sync();
+        }
+    };
+
+    // Hands the periodic sync off to a thread which can block on the disk.
+    private final Task scheduleSync = new Task() {
+        public void run() {
+            MQTT.getBlockingThreadPool().execute(syncTask);
+        }
+    };
+
+    public MappedMessageStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size of the segment files.  A message which does not fit
+     * gets a segment of its own.  Defaults to 8 MB.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * Sets how many segments can pile up behind a few unacknowledged
+     * messages before they are copied forward.  Defaults to 4.
+     */
+    public void setMaxSegments(int maxSegments) {
+        if( maxSegments < 2 ) {
+            throw new IllegalArgumentException("maxSegments must be at least 2");
+        }
+        this.maxSegments = maxSegments;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Defaults to {@link SyncPolicy#PERIODIC}.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Sets how many milliseconds a write can wait for a periodic sync.  Defaults to 100.
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public List<StoredMessage> load() throws IOException {
+        lock.lock();
+        try {
+            open();
+            // Keys are handed out in order, and messages copied forward keep theirs.
+            TreeMap<Long, Location> ordered = new TreeMap<Long, Location>(index);
+            ArrayList<StoredMessage> rc = new ArrayList<StoredMessage>(ordered.size());
+            for (Map.Entry<Long, Location> entry : ordered.entrySet()) {
+                rc.add(decode(entry.getKey(), read(entry.getValue())));
+            }
+            return rc;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long add(PublishRequest message) throws IOException {
+        lock.lock();
+        try {
+            open();
+            long key = nextKey++;
+            scratch.reset();
+            scratch.writeByte(ADD);
+            scratch.writeLong(key);
+            scratch.writeByte(message.getQos().ordinal() | (message.isRetain() ? 4 : 0));
+            scratch.writeShort(message.getTopic().length);
+            scratch.write(message.getTopic());
+            scratch.writeInt(message.getPayload().length);
+            scratch.write(message.getPayload());
+            Location location = append(scratch.toBuffer());
+            index.put(key, location);
+            location.segment.messages++;
+            location.segment.live++;
+            written();
+            return key;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(long key) throws IOException {
+        lock.lock();
+        try {
+            open();
+            Location location = index.remove(key);
+            if( location==null ) {
+                return;
+            }
+            scratch.reset();
+            scratch.writeByte(REMOVE);
+            scratch.writeLong(key);
+            append(scratch.toBuffer());
+            location.segment.live--;
+            written();
+            compact();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of stored messages.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    public int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the written data to the disk.  Writes can go on while it does.
+     */
+    public void sync() {
+        ArrayList<MappedByteBuffer> dirty = new ArrayList<MappedByteBuffer>();
+        lock.lock();
+        try {
+            // One sync at a time, so a segment is never unmapped while it is forced.
+            while( syncing ) {
+                synced.awaitUninterruptibly();
+            }
+            if( closed ) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                if( segment.dirty ) {
+                    segment.dirty = false;
+                    dirty.add(segment.buffer);
+                }
+            }
+            if( dirty.isEmpty() ) {
+                return;
+            }
+            syncing = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (MappedByteBuffer buffer : dirty) {
+                buffer.force();
+            }
+        } finally {
+            lock.lock();
+            try {
+                syncing = false;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if( syncPolicy!=SyncPolicy.NEVER ) {
+            sync();
+        }
+        lock.lock();
+        try {
+            while( syncing ) {
+                synced.awaitUninterruptibly();
+            }
+            if( closed ) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            index.clear();
+            deleteRetired();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void open() throws IOException {
+        if( closed ) {
+            throw new IllegalStateException("The store is closed");
+        }
+        if( opened ) {
+            return;
+        }
+        if( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Could not create " + directory);
+        }
+        File[] files = directory.listFiles();
+        TreeMap<Long, File> found = new TreeMap<Long, File>();
+        for (File file : files) {
+            String name = file.getName();
+            if( name.endsWith(SUFFIX) ) {
+                try {
+                    found.put(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        for (Map.Entry<Long, File> entry : found.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue(), 0);
+            segments.put(segment.id, segment);
+            recover(segment);
+            current = segment;
+        }
+        if( current!=null ) {
+            // Zero what is left after the last good record so that nothing
+            // written before a crash can look valid once we append again.
+            ByteBuffer buffer = current.buffer;
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        opened = true;
+        compact();
+    }
+
+    /**
+     * Indexes the records of a segment and leaves its position after the last good one.
+     */
+    private void recover(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        buffer.position(0);
+        while( buffer.remaining() >= HEADER_SIZE ) {
+            int position = buffer.position();
+            int length = buffer.getInt(position);
+            if( length < 9 || length > buffer.remaining() - HEADER_SIZE ) {
+                break;
+            }
+            byte[] body = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(position + HEADER_SIZE);
+            slice.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if( buffer.getInt(position + 4) != (int) crc.getValue() ) {
+                break;
+            }
+            long key = ByteBuffer.wrap(body, 1, 8).getLong();
+            if( body[0]==ADD ) {
+                // A message copied forward by compact() shows up again.
+                Location previous = index.put(key, new Location(segment, position));
+                if( previous!=null ) {
+                    previous.segment.live--;
+                }
+                segment.messages++;
+                segment.live++;
+                nextKey = Math.max(nextKey, key + 1);
+            } else if( body[0]==REMOVE ) {
+                Location location = index.remove(key);
+                if( location!=null ) {
+                    location.segment.live--;
+                }
+            } else {
+                break;
+            }
+            buffer.position(position + HEADER_SIZE + length);
+        }
+    }
+
+    private Location append(Buffer body) throws IOException {
+        int size = HEADER_SIZE + body.length;
+        if( current==null || current.buffer.remaining() < size ) {
+            // The segment left behind is still dirty, so the next sync forces it.
+            long id = current==null ? 0 : current.id + 1;
+            current = new Segment(id, new File(directory, String.format("%016x", id) + SUFFIX), Math.max(segmentSize, size));
+            segments.put(id, current);
+        }
+        crc.reset();
+        crc.update(body.data, body.offset, body.length);
+        MappedByteBuffer buffer = current.buffer;
+        int position = buffer.position();
+        buffer.putInt(body.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body.data, body.offset, body.length);
+        current.dirty = true;
+        return new Location(current, position);
+    }
+
+    private Buffer read(Location location) {
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.position);
+        byte[] body = new byte[buffer.getInt()];
+        buffer.getInt();
+        buffer.get(body);
+        return new Buffer(body);
+    }
+
+    private static StoredMessage decode(long key, Buffer body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body.data, body.offset, body.length);
+        buffer.position(buffer.position() + 9);
+        byte flags = buffer.get();
+        int topicLength = buffer.getShort() & 0xFFFF;
+        UTF8Buffer topic = new UTF8Buffer(body.data, buffer.position(), topicLength);
+        buffer.position(buffer.position() + topicLength);
+        int payloadLength = buffer.getInt();
+        Buffer payload = new Buffer(body.data, buffer.position(), payloadLength);
+        return new StoredMessage(key, topic, payload, QoS.values()[flags & 3], (flags & 4) != 0);
+    }
+
+    private void written() {
+        switch( syncPolicy ) {
+            case ALWAYS:
+                current.dirty = false;
+                current.buffer.force();
+                break;
+            case PERIODIC:
+                if( !syncScheduled ) {
+                    syncScheduled = true;
+                    Dispatch.getGlobalQueue().executeAfter(syncInterval, TimeUnit.MILLISECONDS, scheduleSync);
+                }
+                break;
+            case NEVER:
+        }
+    }
+
+    private void compact() throws IOException {
+        if( !syncing ) {
+            deleteRetired();
+        }
+        // Only the oldest segment can be deleted, a newer one may hold the
+        // removal records of messages in older segments.
+        while( segments.size() > 1 ) {
+            Segment head = segments.firstEntry().getValue();
+            if( head==current ) {
+                break;
+            }
+            if( head.live > 0 ) {
+                // Copying a segment that is mostly live would not shrink the log.
+                if( segments.size() <= maxSegments || head.live * 2 > head.messages ) {
+                    break;
+                }
+                // Copy the messages still waiting on an ack ahead so the segment can go.
+                for (Map.Entry<Long, Location> entry : index.entrySet()) {
+                    if( entry.getValue().segment==head ) {
+                        Location location = append(read(entry.getValue()));
+                        entry.setValue(location);
+                        location.segment.messages++;
+                        location.segment.live++;
+                    }
+                }
+                written();
+            }
+            segments.remove(head.id);
+            retired.add(head);
+            if( !syncing ) {
+                deleteRetired();
+            }
+        }
+    }
+
+    /**
+     * Unmaps the segments compacted away and deletes their files.
+     */
+    private void deleteRetired() throws IOException {
+        while( !retired.isEmpty() ) {
+            Segment segment = retired.remove(retired.size() - 1);
+            segment.close();
+            if( !segment.file.delete() ) {
+                throw new IOException("Could not delete " + segment.file);
+            }
+        }
+    }
+}
@@ -23,6 +23,8 @@ import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.TaskWrapper;
 
+import java.nio.ByteBuffer;
+
 /**
  * <p>
  * </p>
@@ -56,6 +58,14 @@ public class Message {
         return payload;
     }
 
+    /**
+     * A read only ByteBuffer view of the payload, which avoids the copy
+     * done by getPayload().
+     */
+    public ByteBuffer getPayloadByteBuffer() {
+        return ByteBuffer.wrap(payload.data, payload.offset, payload.length).slice().asReadOnlyBuffer();
+    }
+
     public String getTopic() {
         return topic.toString();
     }
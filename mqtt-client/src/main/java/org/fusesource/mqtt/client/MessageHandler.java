@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Receives the messages of a subscription.  The message is acknowledged
+ * by calling {@link Message#ack()}, which may be done from any thread.
+ * </p>
+ */
+public interface MessageHandler {
+
+    public void onMessage(Message message);
+
+    /**
+     * Called when the connection delivering the messages fails, or when
+     * onMessage throws, in which case the message is acked for this handler.
+     */
+    public void onFailure(Throwable value);
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * A map keyed by MQTT message id which does not box the keys.
+ * </p>
+ * <p>
+ * Entries live in the slot <code>id & (capacity-1)</code>.  Since message ids
+ * are handed out sequentially, the in-flight ids of a connection map to
+ * distinct slots until more messages are in flight than there are slots, at
+ * which point the table doubles.  At the maximum capacity of 65536 every id
+ * has its own slot.  Not thread safe, it is only used from the connection's
+ * dispatch queue.
+ * </p>
+ */
+final class MessageIdMap<V> {
+
+    static final int MAX_CAPACITY = 0x10000;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    private short[] ids = new short[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size;
+
+    /**
+     * @return the previous value for the id, or null if there was none.
+     */
+    public V put(short id, V value) {
+        int slot = id & mask;
+        while (values[slot] != null && ids[slot] != id) {
+            grow();
+            slot = id & mask;
+        }
+        @SuppressWarnings("unchecked")
+        V previous = (V) values[slot];
+        values[slot] = value;
+        ids[slot] = id;
+        if (previous == null) {
+            size++;
+        }
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(short id) {
+        int slot = id & mask;
+        if (values[slot] != null && ids[slot] == id) {
+            return (V) values[slot];
+        }
+        return null;
+    }
+
+    public boolean containsKey(short id) {
+        return get(id) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(short id) {
+        int slot = id & mask;
+        if (values[slot] != null && ids[slot] == id) {
+            V previous = (V) values[slot];
+            values[slot] = null;
+            size--;
+            return previous;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of entries the table can hold before it has to grow.
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    public void clear() {
+        if (size > 0) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * @return a snapshot of the values.
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        ArrayList<V> rc = new ArrayList<V>(size);
+        for (Object value : values) {
+            if (value != null) {
+                rc.add((V) value);
+            }
+        }
+        return rc;
+    }
+
+    private void grow() {
+        if (values.length == MAX_CAPACITY) {
+            // Can't happen, every id has a dedicated slot at this size.
+            throw new IllegalStateException("Message id table is full");
+        }
+        Object[] oldValues = values;
+        short[] oldIds = ids;
+        int capacity = oldValues.length << 1;
+        values = new Object[capacity];
+        ids = new short[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = oldIds[i] & mask;
+                values[slot] = oldValues[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>
+ * Keeps the QoS 1 and 2 messages a connection publishes until the server
+ * has acknowledged them, so that they can be published again after the
+ * process restarts.  See {@link MQTT#setMessageStore(MessageStore)}.
+ * </p>
+ * <p>
+ * The connection only calls the store from its dispatch queue, so the
+ * calls should not block for long.
+ * </p>
+ * <p>
+ * Only the messages are stored, not their message ids or how far their
+ * QoS 2 handshake got.  Messages are published again with new message
+ * ids, so across a restart QoS 2 only gives at least once delivery: a
+ * message the server had already received before the restart is
+ * delivered twice.
+ * </p>
+ */
+public interface MessageStore {
+
+    /**
+     * @return the messages which were added but not removed, in the order they were added.
+     */
+    public List<StoredMessage> load() throws IOException;
+
+    /**
+     * Stores a message that is about to be published.
+     * @return the key to remove the message with.
+     */
+    public long add(PublishRequest message) throws IOException;
+
+    /**
+     * Removes a message once the server has acknowledged it.
+     */
+    public void remove(long key) throws IOException;
+
+    public void close() throws IOException;
+}
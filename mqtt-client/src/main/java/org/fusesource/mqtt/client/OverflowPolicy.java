@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * What a connection does with a publish once its overflow queue holds
+ * {@link MQTT#setOverflowCapacity(int)} requests.  The queue fills up
+ * while the transport can't keep up or while the connection is down.
+ * Acks and messages being redelivered are always queued.
+ * </p>
+ * <p>
+ * Only QoS 0 publishes are ever dropped.  Their callbacks still succeed,
+ * since QoS 0 makes no delivery promise, and they are counted by
+ * {@link CallbackConnection#overflowDropped()}.  A QoS 1 or 2 publish
+ * which does not fit fails with a {@link QueueFullException}.
+ * </p>
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Threads publishing through a FutureConnection or BlockingConnection
+     * wait until there is room.  Publishes issued from the connection's
+     * dispatch queue can't wait there, so they are queued anyway.
+     */
+    BLOCK,
+
+    /**
+     * The publish fails with a {@link QueueFullException}.
+     */
+    FAIL,
+
+    /**
+     * The oldest queued QoS 0 publish is discarded to make room.  If none
+     * are queued the publish fails with a {@link QueueFullException}.
+     */
+    DROP_OLDEST_QOS0,
+
+    /**
+     * A QoS 0 publish is discarded and its callback completes successfully.
+     * A QoS 1 or 2 publish fails with a {@link QueueFullException}.
+     */
+    DROP_NEWEST
+}
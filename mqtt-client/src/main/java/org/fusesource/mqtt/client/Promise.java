@@ -21,9 +21,15 @@ package org.fusesource.mqtt.client;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>
+ * A future which is completed by the callback it implements.
+ * </p>
+ * <p>
+ * Only j.u.c. locks are used, never a monitor, so a virtual thread waiting
+ * on or completing a promise does not pin its carrier thread.
  * </p>
  *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -31,16 +37,20 @@ import java.util.concurrent.TimeoutException;
 public class Promise<T> implements Callback<T>, Future<T> {
 
     private final CountDownLatch latch = new CountDownLatch(1);
+    private final ReentrantLock lock = new ReentrantLock();
     Callback<T> next;
     Throwable error;
     T value;
 
     public void onFailure(Throwable value) {
         Callback<T> callback = null;
-        synchronized(this)  {
+        lock.lock();
+        try {
             error = value;
             latch.countDown();
             callback = next;
+        } finally {
+            lock.unlock();
         }
         if( callback!=null ) {
             callback.onFailure(value);
@@ -49,10 +59,13 @@ public class Promise<T> implements Callback<T>, Future<T> {
 
     public void onSuccess(T value) {
         Callback<T> callback = null;
-        synchronized(this)  {
+        lock.lock();
+        try {
             this.value = value;
             latch.countDown();
             callback = next;
+        } finally {
+            lock.unlock();
         }
         if( callback!=null ) {
             callback.onSuccess(value);
@@ -61,11 +74,14 @@ public class Promise<T> implements Callback<T>, Future<T> {
 
     public void then(Callback<T> callback) {
         boolean fire = false;
-        synchronized(this)  {
+        lock.lock();
+        try {
             next = callback;
             if( latch.getCount() == 0 ) {
                 fire = true;
             }
+        } finally {
+            lock.unlock();
         }
         if( fire ) {
             if( error!=null ) {
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * A message to publish as part of a batch.
+ * </p>
+ */
+public class PublishRequest {
+
+    private final UTF8Buffer topic;
+    private final Buffer payload;
+    private final QoS qos;
+    private final boolean retain;
+
+    public PublishRequest(String topic, byte[] payload, QoS qos, boolean retain) {
+        this(utf8(topic), new Buffer(payload), qos, retain);
+    }
+
+    public PublishRequest(UTF8Buffer topic, Buffer payload, QoS qos, boolean retain) {
+        this.topic = topic;
+        this.payload = payload;
+        this.qos = qos;
+        this.retain = retain;
+    }
+
+    public UTF8Buffer getTopic() {
+        return topic;
+    }
+
+    public Buffer getPayload() {
+        return payload;
+    }
+
+    public QoS getQos() {
+        return qos;
+    }
+
+    public boolean isRetain() {
+        return retain;
+    }
+}
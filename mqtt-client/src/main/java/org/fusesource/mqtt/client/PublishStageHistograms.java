@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * A {@link PublishTraceListener} which records the time the traced
+ * publishes spent in each stage in {@link LatencyHistogram}s, so that a
+ * latency spike can be pinned on the client side queues, the transport
+ * or the server.  Like the histograms it can be shared by connections
+ * running on different threads.
+ * </p>
+ */
+public class PublishStageHistograms implements PublishTraceListener {
+
+    private final LatencyHistogram queue = new LatencyHistogram();
+    private final LatencyHistogram transport = new LatencyHistogram();
+    private final LatencyHistogram broker = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    public void onPublishTraced(PublishTrace trace) {
+        queue.record(trace.getQueueTime());
+        transport.record(trace.getTransportTime());
+        if( trace.getAckedAt() != 0 ) {
+            broker.record(trace.getBrokerTime());
+        }
+        total.record(trace.getTotalTime());
+    }
+
+    /**
+     * @return the time from the publish call until the transport took the frame.
+     */
+    public LatencyHistogram getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return the time the frame spent in the transport's write buffer.
+     */
+    public LatencyHistogram getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the time from the frame reaching the socket until its ack arrived.
+     */
+    public LatencyHistogram getBroker() {
+        return broker;
+    }
+
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    public void reset() {
+        queue.reset();
+        transport.reset();
+        broker.reset();
+        total.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "PublishStageHistograms{" +
+                "queue=" + queue.snapshot() +
+                ", transport=" + transport.snapshot() +
+                ", broker=" + broker.snapshot() +
+                ", total=" + total.snapshot() +
+                '}';
+    }
+}
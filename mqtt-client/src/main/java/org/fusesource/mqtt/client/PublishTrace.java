@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+/**
+ * <p>
+ * The times a traced publish went through each stage of the send
+ * pipeline, as {@link System#nanoTime()} values:
+ * </p>
+ * <ol>
+ * <li>issued: the publish call.</li>
+ * <li>queued: the publish had to wait in the overflow queue, or for room in
+ * the in flight window.  0 if it went straight to the transport.</li>
+ * <li>offered: the transport accepted the frame into its write buffer.</li>
+ * <li>flushed: the write buffer holding the frame was written to the
+ * socket.</li>
+ * <li>acked: the PUBACK or PUBCOMP arrived.  0 for QoS 0 publishes, whose
+ * trace is complete once flushed.</li>
+ * </ol>
+ * <p>
+ * When a publish is sent again after a reconnect the offered and flushed
+ * times are those of the last send.
+ * </p>
+ */
+public class PublishTrace {
+
+    final UTF8Buffer topic;
+    final QoS qos;
+    final long issuedAt;
+    long queuedAt;
+    long offeredAt;
+    long flushedAt;
+    long ackedAt;
+    // Where the frame ends in the codec's output, see MQTTProtocolCodec.getEncodedCounter().
+    long end;
+
+    PublishTrace(UTF8Buffer topic, QoS qos, long issuedAt) {
+        this.topic = topic;
+        this.qos = qos;
+        this.issuedAt = issuedAt;
+    }
+
+    public UTF8Buffer getTopic() {
+        return topic;
+    }
+
+    public QoS getQos() {
+        return qos;
+    }
+
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    public long getOfferedAt() {
+        return offeredAt;
+    }
+
+    public long getFlushedAt() {
+        return flushedAt;
+    }
+
+    public long getAckedAt() {
+        return ackedAt;
+    }
+
+    /**
+     * @return the nanoseconds from the publish call until the transport took the frame.
+     */
+    public long getQueueTime() {
+        return offeredAt - issuedAt;
+    }
+
+    /**
+     * @return the nanoseconds the frame spent in the transport's write buffer.
+     */
+    public long getTransportTime() {
+        return flushedAt - offeredAt;
+    }
+
+    /**
+     * @return the nanoseconds from the frame reaching the socket until the ack arrived, 0 for QoS 0.
+     */
+    public long getBrokerTime() {
+        return ackedAt == 0 ? 0 : ackedAt - flushedAt;
+    }
+
+    /**
+     * @return the nanoseconds from the publish call until the ack arrived, or until it was flushed for QoS 0.
+     */
+    public long getTotalTime() {
+        return (ackedAt == 0 ? flushedAt : ackedAt) - issuedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishTrace{" +
+                "topic=" + topic +
+                ", qos=" + qos +
+                ", queue=" + getQueueTime() +
+                ", transport=" + getTransportTime() +
+                ", broker=" + getBrokerTime() +
+                ", total=" + getTotalTime() +
+                '}';
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Receives the {@link PublishTrace} of each traced publish once it is
+ * complete, set with {@link MQTT#setPublishTraceListener(PublishTraceListener)}.
+ * Called from the connection's dispatch queue, so it should be quick.
+ * </p>
+ *
+ * @see PublishStageHistograms
+ */
+public interface PublishTraceListener {
+
+    void onPublishTraced(PublishTrace trace);
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * A source of elements which are only sent as fast as its subscribers ask
+ * for them.  It has the same contract as the Reactive Streams
+ * <code>org.reactivestreams.Publisher</code>, which the client can't depend
+ * on since it still supports Java 7, so adapting it to a Reactive Streams
+ * library is a matter of delegating the methods.
+ * </p>
+ *
+ * @see ReactiveConnection#subscribe(Topic)
+ */
+public interface Publisher<T> {
+
+    /**
+     * Starts a new subscription.  The subscriber is first given its
+     * {@link Subscription} and receives nothing until it requests elements.
+     */
+    public void subscribe(Subscriber<? super T> subscriber);
+}
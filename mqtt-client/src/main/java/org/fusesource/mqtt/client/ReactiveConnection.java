@@ -0,0 +1,423 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * A Connection interface to MQTT where subscriptions are {@link Publisher}s
+ * of messages which only read from the socket as fast as their subscribers
+ * request messages.
+ * </p>
+ * <p>
+ * The connection has one socket, so while any subscriber has no outstanding
+ * demand, reads are {@link CallbackConnection#suspend() suspended} for the
+ * whole connection, and resumed once it requests more.  A subscriber only
+ * holds back the reads once the server has acknowledged its subscription,
+ * so subscribing never waits on its demand.  The slowest subscriber sets
+ * the pace: nothing is buffered beyond the few messages which were already
+ * read when the reads got suspended.  Acknowledgements
+ * are not read while suspended either, so publishes on the connection wait
+ * for the subscribers too.  Since pings can't be answered while suspended,
+ * a subscriber which does not request messages for longer than the keep
+ * alive interval fails the connection.
+ * </p>
+ * <p>
+ * Received messages still have to be {@link Message#ack() acked}.  Messages
+ * which do not match any subscription, like the ones left in a persistent
+ * session, are acked and dropped.
+ * </p>
+ */
+public class ReactiveConnection {
+
+    final static Logger logger = LoggerFactory.getLogger(ReactiveConnection.class);
+
+    private final CallbackConnection next;
+
+    // The following are only used from the dispatch queue.
+    private final ArrayList<MessageSubscription> subscriptions = new ArrayList<MessageSubscription>();
+    // How many subscriptions use each filter, the server side subscription is dropped with the last one.
+    private final HashMap<UTF8Buffer, Integer> filterUsers = new HashMap<UTF8Buffer, Integer>();
+    // The subscriptions without demand, reads are suspended while there are any.
+    private int starved;
+
+    volatile boolean connected;
+
+    public ReactiveConnection(CallbackConnection next) {
+        this.next = next;
+        this.next.listener(new Listener() {
+
+            public void onConnected() {
+                connected = true;
+            }
+
+            public void onDisconnected() {
+                connected = false;
+            }
+
+            public void onPublish(UTF8Buffer topic, Buffer payload, Runnable ack) {
+                logger.debug("Dropping a message for {}, it does not match any subscription", topic);
+                ack.run();
+            }
+
+            public void onFailure(Throwable value) {
+                // The subscriptions are failed by their handlers.
+                connected = false;
+            }
+        });
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return next.getDispatchQueue();
+    }
+
+    public Future<Void> connect() {
+        final Promise<Void> future = new Promise<Void>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                next.connect(future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Disconnects and completes the subscriptions.
+     */
+    public Future<Void> disconnect() {
+        final Promise<Void> future = new Promise<Void>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                next.disconnect(new ProxyCallback<Void>(future) {
+                    @Override
+                    public void onSuccess(Void value) {
+                        completeSubscriptions();
+                        super.onSuccess(value);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Kills the connection and completes the subscriptions.
+     */
+    public Future<Void> kill() {
+        final Promise<Void> future = new Promise<Void>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                next.kill(new ProxyCallback<Void>(future) {
+                    @Override
+                    public void onSuccess(Void value) {
+                        completeSubscriptions();
+                        super.onSuccess(value);
+                    }
+                });
+            }
+        });
+        return future;
+    }
+
+    private void completeSubscriptions() {
+        for (MessageSubscription subscription : new ArrayList<MessageSubscription>(subscriptions)) {
+            subscription.complete();
+        }
+    }
+
+    public Future<Void> publish(String topic, byte[] payload, QoS qos, boolean retain) {
+        return publish(utf8(topic), new Buffer(payload), qos, retain);
+    }
+
+    /**
+     * Unlike {@link FutureConnection#publish(UTF8Buffer, Buffer, QoS, boolean)}
+     * this never blocks the caller, with the BLOCK overflow policy the
+     * overflow queue can go over its capacity.
+     *
+     * @return completed once the message is acknowledged as its QoS requires.
+     */
+    public Future<Void> publish(final UTF8Buffer topic, final Buffer payload, final QoS qos, final boolean retain) {
+        final Promise<Void> future = new Promise<Void>();
+        getDispatchQueue().execute(new Task() {
+            public void run() {
+                next.publish(topic, payload, qos, retain, future);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * <p>
+     * Returns a publisher of the messages matching the topic filter.  Each
+     * subscriber gets its own server side subscription (shared with the
+     * other subscribers of the same filter) which is made when it
+     * subscribes and dropped when it cancels.  A message matching the
+     * filters of several subscribers is given to all of them and
+     * acknowledged once they have all acked it.
+     * </p>
+     * <p>
+     * The subscription fails if the server refuses it or the connection
+     * fails, and completes when the connection is disconnected.
+     * </p>
+     */
+    public Publisher<Message> subscribe(final Topic topic) {
+        return new Publisher<Message>() {
+            public void subscribe(Subscriber<? super Message> subscriber) {
+                final MessageSubscription subscription = new MessageSubscription(topic, subscriber);
+                getDispatchQueue().execute(new Task() {
+                    public void run() {
+                        subscription.start();
+                    }
+                });
+            }
+        };
+    }
+
+    private void addFilterUser(UTF8Buffer filter) {
+        Integer users = filterUsers.get(filter);
+        filterUsers.put(filter, users == null ? 1 : users + 1);
+    }
+
+    /**
+     * @return how many subscriptions still use the filter.
+     */
+    private int dropFilterUser(UTF8Buffer filter) {
+        int users = filterUsers.get(filter) - 1;
+        if( users > 0 ) {
+            filterUsers.put(filter, users);
+        } else {
+            filterUsers.remove(filter);
+        }
+        return users;
+    }
+
+    private void removeFilterUser(UTF8Buffer filter, MessageHandler handler) {
+        if( dropFilterUser(filter) > 0 || next.failure()!=null ) {
+            next.removeHandler(filter, handler);
+        } else {
+            // Also removes the handler.
+            next.unsubscribe(new UTF8Buffer[]{filter}, new Callback<Void>() {
+                public void onSuccess(Void value) {
+                }
+                public void onFailure(Throwable value) {
+                    logger.debug("Could not unsubscribe: {}", value.toString());
+                }
+            });
+        }
+    }
+
+    /**
+     * A subscription to a topic filter, it is only changed from the
+     * dispatch queue.
+     */
+    private class MessageSubscription implements Subscription, MessageHandler {
+
+        private final Topic topic;
+        private final Subscriber<? super Message> subscriber;
+        // The messages read before the reads got suspended.
+        private final ArrayDeque<Message> received = new ArrayDeque<Message>();
+        private long demand;
+        private boolean starving;
+        private boolean draining;
+        private boolean subscribed;
+        // Set once the server acknowledged the subscription, reads are not held back before.
+        private boolean acknowledged;
+        private boolean done;
+
+        MessageSubscription(Topic topic, Subscriber<? super Message> subscriber) {
+            this.topic = topic;
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            subscriptions.add(this);
+            subscriber.onSubscribe(this);
+            if( done ) {
+                return;
+            }
+            subscribed = true;
+            addFilterUser(topic.name());
+            next.subscribe(topic, this, new Callback<byte[]>() {
+                public void onSuccess(byte[] granted) {
+                    if( granted.length > 0 && (granted[0] & 0xFF) == 0x80 ) {
+                        fail(new IOException("The server refused the subscription to " + topic.name()));
+                    } else if( !done ) {
+                        // From now on reads stop while the subscriber has no demand.
+                        acknowledged = true;
+                        drain();
+                    }
+                }
+                public void onFailure(Throwable value) {
+                    // The connection has already forgotten the handler.
+                    subscribed = false;
+                    dropFilterUser(topic.name());
+                    fail(value);
+                }
+            });
+        }
+
+        public void request(final long n) {
+            if( getDispatchQueue().isExecuting() ) {
+                addDemand(n);
+            } else {
+                getDispatchQueue().execute(new Task() {
+                    public void run() {
+                        addDemand(n);
+                    }
+                });
+            }
+        }
+
+        public void cancel() {
+            if( getDispatchQueue().isExecuting() ) {
+                terminate();
+            } else {
+                getDispatchQueue().execute(new Task() {
+                    public void run() {
+                        terminate();
+                    }
+                });
+            }
+        }
+
+        private void addDemand(long n) {
+            if( done ) {
+                return;
+            }
+            if( n <= 0 ) {
+                fail(new IllegalArgumentException("Requested " + n + " messages, the demand has to be positive"));
+                return;
+            }
+            demand += n;
+            if( demand < 0 ) {
+                // Long.MAX_VALUE stands for unbounded demand.
+                demand = Long.MAX_VALUE;
+            }
+            drain();
+        }
+
+        public void onMessage(Message message) {
+            if( done ) {
+                message.ack();
+                return;
+            }
+            received.add(message);
+            drain();
+        }
+
+        public void onFailure(Throwable value) {
+            fail(value);
+        }
+
+        private void drain() {
+            // onNext can request more, the outer call keeps delivering.
+            if( draining ) {
+                return;
+            }
+            draining = true;
+            try {
+                while( !done && demand > 0 && !received.isEmpty() ) {
+                    if( demand != Long.MAX_VALUE ) {
+                        demand--;
+                    }
+                    subscriber.onNext(received.poll());
+                }
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                draining = false;
+            }
+            if( !done ) {
+                if( demand == 0 ) {
+                    if( acknowledged ) {
+                        starve();
+                    }
+                } else {
+                    feed();
+                }
+            }
+        }
+
+        private void starve() {
+            if( !starving ) {
+                starving = true;
+                if( starved++ == 0 ) {
+                    next.suspend();
+                }
+            }
+        }
+
+        private void feed() {
+            if( starving ) {
+                starving = false;
+                if( --starved == 0 ) {
+                    next.resume();
+                }
+            }
+        }
+
+        void complete() {
+            if( !done ) {
+                terminate();
+                subscriber.onComplete();
+            }
+        }
+
+        private void fail(Throwable error) {
+            if( !done ) {
+                terminate();
+                subscriber.onError(error);
+            }
+        }
+
+        private void terminate() {
+            if( done ) {
+                return;
+            }
+            done = true;
+            subscriptions.remove(this);
+            feed();
+            if( subscribed ) {
+                subscribed = false;
+                removeFilterUser(topic.name(), this);
+            }
+            // Nobody will process them.
+            Message message;
+            while( (message = received.poll())!=null ) {
+                message.ack();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Decides how long a connection waits before each attempt to connect to
+ * the server again.  A connection asks its strategy for a delay before
+ * every attempt that follows a failed one, and starts counting attempts
+ * from zero again once a session has stayed up for the stable uptime
+ * configured on {@link MQTT#setReconnectStableUptime(long)}.
+ * </p>
+ * <p>
+ * Implementations are shared by every connection created from the same
+ * {@link MQTT}, and are called from their dispatch queues concurrently, so
+ * they should keep no state of their own.
+ * </p>
+ *
+ * @see ExponentialBackoff
+ */
+public interface ReconnectStrategy {
+
+    /**
+     * @param attempt the number of attempts already made since the connection was lost, starting at 0.
+     * @param previousDelay the delay returned for the previous attempt, 0 before the first one.
+     * @return how many milliseconds to wait before the next attempt.
+     */
+    long delay(long attempt, long previousDelay);
+
+}
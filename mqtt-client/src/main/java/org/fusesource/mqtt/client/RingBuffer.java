@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * An array backed FIFO queue.  Unlike a LinkedList it does not allocate a
+ * node per entry, and it doubles its array when it fills up.  Not thread
+ * safe, it is only used from the connection's dispatch queue.
+ * </p>
+ */
+final class RingBuffer<E> {
+
+    private Object[] elements = new Object[16];
+    private int head;
+    private int size;
+
+    public void addLast(E element) {
+        if( size == elements.length ) {
+            grow();
+        }
+        elements[(head + size) & (elements.length - 1)] = element;
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        return size == 0 ? null : (E) elements[head];
+    }
+
+    public E poll() {
+        if( size == 0 ) {
+            return null;
+        }
+        return removeFirst();
+    }
+
+    @SuppressWarnings("unchecked")
+    public E removeFirst() {
+        if( size == 0 ) {
+            throw new IllegalStateException("empty");
+        }
+        E rc = (E) elements[head];
+        elements[head] = null;
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        return rc;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        return (E) elements[(head + index) & (elements.length - 1)];
+    }
+
+    /**
+     * Removes the entry at the index, shifting the entries behind it forward.
+     */
+    public E remove(int index) {
+        E rc = get(index);
+        int mask = elements.length - 1;
+        for (int i = index; i < size - 1; i++) {
+            elements[(head + i) & mask] = elements[(head + i + 1) & mask];
+        }
+        elements[(head + size - 1) & mask] = null;
+        size--;
+        return rc;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        while( size > 0 ) {
+            removeFirst();
+        }
+        head = 0;
+    }
+
+    /**
+     * @return a snapshot of the entries in FIFO order.
+     */
+    public ArrayList<E> values() {
+        ArrayList<E> rc = new ArrayList<E>(size);
+        for (int i = 0; i < size; i++) {
+            rc.add(get(i));
+        }
+        return rc;
+    }
+
+    private void grow() {
+        Object[] grown = new Object[elements.length << 1];
+        for (int i = 0; i < size; i++) {
+            grown[i] = elements[(head + i) & (elements.length - 1)];
+        }
+        elements = grown;
+        head = 0;
+    }
+}
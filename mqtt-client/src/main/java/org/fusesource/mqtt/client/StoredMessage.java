@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+/**
+ * <p>
+ * A message loaded from a {@link MessageStore}, along with the key it is
+ * stored under.
+ * </p>
+ */
+public class StoredMessage extends PublishRequest {
+
+    private final long key;
+
+    public StoredMessage(long key, UTF8Buffer topic, Buffer payload, QoS qos, boolean retain) {
+        super(topic, payload, qos, retain);
+        this.key = key;
+    }
+
+    public long getKey() {
+        return key;
+    }
+}
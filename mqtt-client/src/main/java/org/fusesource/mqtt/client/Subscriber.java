@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Receives the elements of a {@link Publisher}, with the same contract as
+ * the Reactive Streams <code>org.reactivestreams.Subscriber</code>.  The
+ * methods of a subscription are never called concurrently.
+ * </p>
+ */
+public interface Subscriber<T> {
+
+    public void onSubscribe(Subscription subscription);
+
+    /**
+     * Called at most as many times as elements were requested.
+     */
+    public void onNext(T value);
+
+    /**
+     * Ends the subscription with a failure, nothing is sent after it.
+     */
+    public void onError(Throwable error);
+
+    /**
+     * Ends the subscription, nothing is sent after it.
+     */
+    public void onComplete();
+}
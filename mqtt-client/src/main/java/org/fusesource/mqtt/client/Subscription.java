@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * The link between a {@link Publisher} and one of its {@link Subscriber}s,
+ * with the same contract as the Reactive Streams
+ * <code>org.reactivestreams.Subscription</code>.  Its methods can be called
+ * from any thread.
+ * </p>
+ */
+public interface Subscription {
+
+    /**
+     * Asks for n more elements.  Demand adds up, a non positive n fails the
+     * subscription with an IllegalArgumentException.
+     */
+    public void request(long n);
+
+    /**
+     * Stops the flow of elements.  Some may still arrive if they were
+     * already on their way.
+     */
+    public void cancel();
+}
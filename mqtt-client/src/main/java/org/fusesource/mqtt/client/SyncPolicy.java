@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * When a file backed store forces its writes to the disk.  Writes to a
+ * memory mapped file survive the JVM crashing or being killed as soon as
+ * they are made, syncing only matters if the machine itself goes down.
+ * </p>
+ */
+public enum SyncPolicy {
+
+    /**
+     * Leaves it to the operating system to write the data back.
+     */
+    NEVER,
+
+    /**
+     * Syncs a little while after a write, so that the writes made within
+     * the sync interval share one sync.
+     */
+    PERIODIC,
+
+    /**
+     * Syncs after every write.
+     */
+    ALWAYS
+}
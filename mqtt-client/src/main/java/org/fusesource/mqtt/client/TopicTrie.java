@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Maps topic filters, which may use the <code>+</code> and <code>#</code>
+ * wildcards, to values and finds the values of the filters matching a
+ * topic.  Each node of the trie is a topic level, with the wildcards kept
+ * apart from the literal levels, so a match visits at most a few nodes per
+ * level of the topic no matter how many filters there are.
+ * </p>
+ * <p>
+ * The results for the most recently matched topics are cached until the
+ * filters change.  Levels are split on the '/' byte, which never occurs
+ * inside a multi-byte UTF-8 character.  Not thread safe, it is only used
+ * from the connection's dispatch queue.
+ * </p>
+ */
+final class TopicTrie<V> {
+
+    static final int CACHE_SIZE = 1024;
+    private static final byte SEPARATOR = '/';
+
+    private static final class Node<V> {
+        HashMap<Buffer, Node<V>> children;
+        Node<V> plus;
+        Node<V> hash;
+        ArrayList<V> values;
+
+        boolean isEmpty() {
+            return (children==null || children.isEmpty()) && plus==null && hash==null && (values==null || values.isEmpty());
+        }
+    }
+
+    private final Node<V> root = new Node<V>();
+    private int size;
+    private final LinkedHashMap<UTF8Buffer, List<V>> cache = new LinkedHashMap<UTF8Buffer, List<V>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UTF8Buffer, List<V>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public void add(UTF8Buffer filter, V value) {
+        Node<V> node = root;
+        for (Buffer level : levels(filter)) {
+            node = child(node, level, true);
+        }
+        if( node.values==null ) {
+            node.values = new ArrayList<V>(1);
+        }
+        node.values.add(value);
+        size++;
+        cache.clear();
+    }
+
+    /**
+     * @return true if the value was mapped to the filter.
+     */
+    public boolean remove(UTF8Buffer filter, V value) {
+        List<V> removed = remove(filter, value, false);
+        return !removed.isEmpty();
+    }
+
+    /**
+     * Removes all the values of the filter.
+     * @return the removed values.
+     */
+    public List<V> removeAll(UTF8Buffer filter) {
+        return remove(filter, null, true);
+    }
+
+    private List<V> remove(UTF8Buffer filter, V value, boolean all) {
+        ArrayList<Buffer> levels = levels(filter);
+        ArrayList<Node<V>> path = new ArrayList<Node<V>>(levels.size() + 1);
+        Node<V> node = root;
+        path.add(node);
+        for (Buffer level : levels) {
+            node = child(node, level, false);
+            if( node==null ) {
+                return Collections.emptyList();
+            }
+            path.add(node);
+        }
+        if( node.values==null ) {
+            return Collections.emptyList();
+        }
+        List<V> removed;
+        if( all ) {
+            removed = node.values;
+            node.values = null;
+        } else if( node.values.remove(value) ) {
+            removed = Collections.singletonList(value);
+        } else {
+            return Collections.emptyList();
+        }
+        size -= removed.size();
+        cache.clear();
+        // Prune the nodes which no longer lead to a value.
+        for (int i = levels.size(); i > 0 && path.get(i).isEmpty(); i--) {
+            Node<V> parent = path.get(i - 1);
+            Buffer level = levels.get(i - 1);
+            if( isPlus(level) ) {
+                parent.plus = null;
+            } else if( isHash(level) ) {
+                parent.hash = null;
+            } else {
+                parent.children.remove(level);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the values of all the filters matching the topic, in no particular order.
+     */
+    public List<V> match(UTF8Buffer topic) {
+        List<V> rc = cache.get(topic);
+        if( rc==null ) {
+            ArrayList<V> matches = new ArrayList<V>();
+            ArrayList<Buffer> levels = levels(topic);
+            // Wildcards at the first level don't match topics starting with '$'.
+            boolean system = topic.length > 0 && topic.get(0) == '$';
+            match(root, levels, 0, system, matches);
+            rc = matches.isEmpty() ? Collections.<V>emptyList() : matches;
+            cache.put(new UTF8Buffer(topic.deepCopy()), rc);
+        }
+        return rc;
+    }
+
+    private void match(Node<V> node, ArrayList<Buffer> levels, int depth, boolean system, ArrayList<V> matches) {
+        if( node.hash!=null && !system ) {
+            addAll(node.hash, matches);
+        }
+        if( depth == levels.size() ) {
+            addAll(node, matches);
+            return;
+        }
+        if( node.plus!=null && !system ) {
+            match(node.plus, levels, depth + 1, false, matches);
+        }
+        if( node.children!=null ) {
+            Node<V> child = node.children.get(levels.get(depth));
+            if( child!=null ) {
+                match(child, levels, depth + 1, false, matches);
+            }
+        }
+    }
+
+    private static <V> void addAll(Node<V> node, ArrayList<V> matches) {
+        if( node.values!=null ) {
+            matches.addAll(node.values);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a snapshot of the values.
+     */
+    public ArrayList<V> values() {
+        ArrayList<V> rc = new ArrayList<V>(size);
+        values(root, rc);
+        return rc;
+    }
+
+    private static <V> void values(Node<V> node, ArrayList<V> rc) {
+        addAll(node, rc);
+        if( node.children!=null ) {
+            for (Node<V> child : node.children.values()) {
+                values(child, rc);
+            }
+        }
+        if( node.plus!=null ) {
+            values(node.plus, rc);
+        }
+        if( node.hash!=null ) {
+            values(node.hash, rc);
+        }
+    }
+
+    private static <V> Node<V> child(Node<V> node, Buffer level, boolean create) {
+        Node<V> child;
+        if( isPlus(level) ) {
+            child = node.plus;
+            if( child==null && create ) {
+                child = node.plus = new Node<V>();
+            }
+        } else if( isHash(level) ) {
+            child = node.hash;
+            if( child==null && create ) {
+                child = node.hash = new Node<V>();
+            }
+        } else {
+            if( node.children==null ) {
+                if( !create ) {
+                    return null;
+                }
+                node.children = new HashMap<Buffer, Node<V>>();
+            }
+            child = node.children.get(level);
+            if( child==null && create ) {
+                child = new Node<V>();
+                node.children.put(level.deepCopy(), child);
+            }
+        }
+        return child;
+    }
+
+    private static boolean isPlus(Buffer level) {
+        return level.length == 1 && level.get(0) == '+';
+    }
+
+    private static boolean isHash(Buffer level) {
+        return level.length == 1 && level.get(0) == '#';
+    }
+
+    private static ArrayList<Buffer> levels(Buffer topic) {
+        ArrayList<Buffer> rc = new ArrayList<Buffer>(8);
+        int start = topic.offset;
+        int end = topic.offset + topic.length;
+        for (int i = start; i < end; i++) {
+            if( topic.data[i] == SEPARATOR ) {
+                rc.add(new Buffer(topic.data, start, i - start));
+                start = i + 1;
+            }
+        }
+        rc.add(new Buffer(topic.data, start, end - start));
+        return rc;
+    }
+}
@@ -18,20 +18,30 @@
 package org.fusesource.mqtt.client;
 
 import org.fusesource.mqtt.codec.MQTTFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A subclass of this can be configured on an MQTT connection to
  * get more insight into what it's doing.
+ *
+ * @see FrameCapture
  */
 public class Tracer {
 
+    final static Logger logger = LoggerFactory.getLogger(Tracer.class);
+
     /**
-     * Override to log/capture debug level messages
-     * @param message
+     * Override to log/capture debug level messages.  By default they go to
+     * the debug level of the org.fusesource.mqtt.client.Tracer logger, and
+     * are only formatted when that is enabled.
+     * @param message a {@link String#format(String, Object...)} format
      * @param args
      */
     public void debug(String message, Object...args) {
-        System.out.println("MQTT tracer debug: " + message); //xcy        
+        if( logger.isDebugEnabled() ) {
+            logger.debug(args.length == 0 ? message : String.format(message, args));
+        }
     }
 
     /**
@@ -39,7 +49,6 @@ public class Tracer {
      * @param frame
      */
     public void onSend(MQTTFrame frame) {
-        //System.out.println("MQTT tracer onSend: " + frame); //xcy  
     }
 
     /**
@@ -47,7 +56,6 @@ public class Tracer {
      * @param frame
      */
     public void onReceive(MQTTFrame frame) {
-        //System.out.println("MQTT tracer onReceive: " + frame); //xcy  
     }
 
 }
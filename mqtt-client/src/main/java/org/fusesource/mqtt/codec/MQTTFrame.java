@@ -105,55 +105,62 @@ public class MQTTFrame extends MessageSupport.HeaderBase {
         return (MQTTFrame) super.retain(retain);
     }
 
-    @Override
-    public String toString() {
-        String type = "unknown";
-        switch(messageType()) {
+    /**
+     * @return the size of the frame once encoded: the header byte, the remaining length and the body.
+     */
+    public int encodedLength() {
+        int body = 0;
+        for (Buffer buffer : buffers) {
+            body += buffer.length;
+        }
+        int lengthBytes = 1;
+        for (int remaining = body >>> 7; remaining > 0; remaining >>>= 7) {
+            lengthBytes++;
+        }
+        return 1 + lengthBytes + body;
+    }
+
+    /**
+     * @return the name of an MQTT message type, "unknown" if it is not one.
+     */
+    public static String typeName(int type) {
+        switch(type) {
             case CONNECT.TYPE:
-                type = "CONNECT";
-                break;
+                return "CONNECT";
             case CONNACK.TYPE:
-                type = "CONNACK";
-                break;
+                return "CONNACK";
             case DISCONNECT.TYPE:
-                type = "DISCONNECT";
-                break;
+                return "DISCONNECT";
             case PINGREQ.TYPE:
-                type = "PINGREQ";
-                break;
+                return "PINGREQ";
             case PINGRESP.TYPE:
-                type = "PINGRESP";
-                break;
+                return "PINGRESP";
             case SUBSCRIBE.TYPE:
-                type = "SUBSCRIBE";
-                break;
+                return "SUBSCRIBE";
             case UNSUBSCRIBE.TYPE:
-                type = "UNSUBSCRIBE";
-                break;
+                return "UNSUBSCRIBE";
             case UNSUBACK.TYPE:
-                type = "UNSUBACK";
-                break;
+                return "UNSUBACK";
             case PUBLISH.TYPE:
-                type = "PUBLISH";
-                break;
+                return "PUBLISH";
             case SUBACK.TYPE:
-                type = "SUBACK";
-                break;
+                return "SUBACK";
             case PUBACK.TYPE:
-                type = "PUBACK";
-                break;
+                return "PUBACK";
             case PUBREC.TYPE:
-                type = "PUBREC";
-                break;
+                return "PUBREC";
             case PUBREL.TYPE:
-                type = "PUBREL";
-                break;
+                return "PUBREL";
             case PUBCOMP.TYPE:
-                type = "PUBCOMP";
-                break;
+                return "PUBCOMP";
             default:
+                return "unknown";
         }
+    }
 
+    @Override
+    public String toString() {
+        String type = typeName(messageType());
         return "MQTTFrame { type: "+type+", qos: "+qos()+", dup:"+dup()+" }";
     }
 }
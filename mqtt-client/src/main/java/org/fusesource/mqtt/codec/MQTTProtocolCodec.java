@@ -19,11 +19,14 @@
 package org.fusesource.mqtt.codec;
 
 import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.hawtdispatch.transport.AbstractProtocolCodec;
 import org.fusesource.hawtdispatch.util.BufferPools;
+import org.fusesource.mqtt.client.QoS;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
  * <p>
@@ -35,8 +38,20 @@ public class MQTTProtocolCodec extends AbstractProtocolCodec {
 
     private static final BufferPools BUFFER_POOLS = new BufferPools();
 
+    // Buffers up to this size are always copied into the write buffer.
+    private static final int MAX_COPY_LENGTH = 64;
+
     private int maxMessageLength = 1024*1024*100;
 
+    // Pooled write buffer arrays queued for the socket, in write order.
+    private final ArrayDeque<byte[]> flushingArrays = new ArrayDeque<byte[]>();
+
+    // The number of bytes encoded so far, compared to the write counter it tells which frames reached the socket.
+    private long encodedCounter;
+    // The encoded counter at the end of the last frame which references a caller's buffer.
+    private long referencedCounter;
+    private Runnable flushListener;
+
     public MQTTProtocolCodec() {
         this.bufferPools = BUFFER_POOLS;
     }
@@ -49,8 +64,42 @@ public class MQTTProtocolCodec extends AbstractProtocolCodec {
         this.maxMessageLength = maxMessageLength;
     }
 
+    /**
+     * @return the number of bytes of the frames written to the codec so far.
+     * A frame has been written to the socket once {@link #getWriteCounter()}
+     * reaches the value this had right after the frame was written.
+     */
+    public long getEncodedCounter() {
+        return encodedCounter;
+    }
+
+    /**
+     * Large payloads are not copied, the codec keeps a reference to the
+     * caller's buffer until the socket has taken it.  The buffers of the
+     * frames written to the codec so far must not be modified until
+     * {@link #getWriteCounter()} reaches this value.
+     *
+     * @return the encoded counter at the end of the last frame which
+     * references one of the caller's buffers.
+     */
+    public long getReferencedCounter() {
+        return referencedCounter;
+    }
+
+    /**
+     * Sets a task run every time one of the write buffers has been fully
+     * written to the socket, after the write counter was updated.
+     */
+    public void setFlushListener(Runnable flushListener) {
+        this.flushListener = flushListener;
+    }
+
     @Override
     protected void encode(Object value) throws IOException {
+        if( value instanceof PUBLISH ) {
+            encode((PUBLISH) value);
+            return;
+        }
         MQTTFrame frame = (MQTTFrame) value;
         nextWriteBuffer.write(frame.header());
 
@@ -58,6 +107,46 @@ public class MQTTProtocolCodec extends AbstractProtocolCodec {
         for(Buffer buffer : frame.buffers) {
             remaining += buffer.length;
         }
+        encodedCounter += 1 + writeRemainingLength(remaining) + remaining;
+        for(Buffer buffer : frame.buffers) {
+            writeBuffer(buffer);
+        }
+    }
+
+    /**
+     * Serializes a PUBLISH straight into the write buffer without first
+     * building an intermediate MQTTFrame and variable header buffer.
+     */
+    private void encode(PUBLISH publish) throws IOException {
+        UTF8Buffer topicName = publish.topicName();
+        Buffer payload = publish.payload();
+        boolean hasMessageId = publish.qos() != QoS.AT_MOST_ONCE;
+
+        int remaining = 2 + topicName.length;
+        if( hasMessageId ) {
+            remaining += 2;
+        }
+        if( payload!=null ) {
+            remaining += payload.length;
+        }
+
+        nextWriteBuffer.write((publish.header() & 0x0F) | (PUBLISH.TYPE << 4));
+        encodedCounter += 1 + writeRemainingLength(remaining) + remaining;
+        nextWriteBuffer.writeShort(topicName.length);
+        nextWriteBuffer.write(topicName.data, topicName.offset, topicName.length);
+        if( hasMessageId ) {
+            nextWriteBuffer.writeShort(publish.messageId());
+        }
+        if( payload!=null && payload.length > 0 ) {
+            writeBuffer(payload);
+        }
+    }
+
+    /**
+     * @return the number of bytes the length took.
+     */
+    private int writeRemainingLength(int remaining) throws IOException {
+        int rc = 0;
         do {
             byte digit = (byte) (remaining & 0x7F);
             remaining >>>= 7;
@@ -65,9 +154,57 @@ public class MQTTProtocolCodec extends AbstractProtocolCodec {
                 digit |= 0x80;
             }
             nextWriteBuffer.write(digit);
+            rc++;
         } while (remaining > 0);
-        for(Buffer buffer : frame.buffers) {
+        return rc;
+    }
+
+    /**
+     * Copies the buffer into the write buffer if it fits in the remaining space.
+     * Otherwise the buffer is queued as is for a gathering write which avoids
+     * growing (and copying) the write buffer. Since the data may be written
+     * to the socket after the frame is accepted, the buffer must not be
+     * modified until the write counter reaches {@link #getReferencedCounter()}.
+     * Small buffers are always copied so frames like acks can be reused once
+     * they are written.
+     */
+    private void writeBuffer(Buffer buffer) throws IOException {
+        int available = nextWriteBuffer.getData().length - nextWriteBuffer.position();
+        if( buffer.length <= available || buffer.length <= MAX_COPY_LENGTH ) {
             nextWriteBuffer.write(buffer.data, buffer.offset, buffer.length);
+        } else {
+            writeDirect(buffer.toByteBuffer());
+            referencedCounter = encodedCounter;
+        }
+    }
+
+    @Override
+    protected void flushNextWriteBuffer() {
+        if( writeBufferPool!=null ) {
+            byte[] data = nextWriteBuffer.getData();
+            if( data.length == writeBufferPool.getBufferSize() ) {
+                flushingArrays.addLast(data);
+            }
+        }
+        super.flushNextWriteBuffer();
+    }
+
+    /**
+     * AbstractProtocolCodec checks out a new write buffer from the pool on
+     * every flush but never checks the written one back in, so each flush
+     * allocated a fresh write buffer.  Return the arrays once the socket
+     * has taken them.  Arrays of buffers queued by writeDirect belong to the
+     * caller and are never in flushingArrays.
+     */
+    @Override
+    protected void onBufferFlushed(ByteBuffer buffer) {
+        byte[] next = flushingArrays.peekFirst();
+        if( next!=null && buffer.hasArray() && buffer.array() == next ) {
+            flushingArrays.removeFirst();
+            writeBufferPool.checkin(next);
+        }
+        if( flushListener!=null ) {
+            flushListener.run();
         }
     }
 
@@ -65,6 +65,18 @@ public class MessageSupport {
         return buffer.utf8();
     }
 
+    /**
+     * Reads a big endian short at the position relative to the start of the
+     * buffer, without wrapping the buffer in an input stream.
+     */
+    static protected short readShort(Buffer buffer, int pos) throws ProtocolException {
+        if( pos + 2 > buffer.length ) {
+            throw new ProtocolException("Invalid message encoding");
+        }
+        int offset = buffer.offset + pos;
+        return (short) (((buffer.data[offset] & 0xFF) << 8) | (buffer.data[offset+1] & 0xFF));
+    }
+
     static protected void writeUTF(DataByteArrayOutputStream os, Buffer buffer) throws IOException {
         os.writeShort(buffer.length);
         os.write(buffer);
@@ -78,8 +90,7 @@ public class MessageSupport {
 
         protected AckBase decode(MQTTFrame frame) throws ProtocolException {
             assert(frame.buffers.length == 1);
-            DataByteArrayInputStream is = new DataByteArrayInputStream(frame.buffers[0]);
-            messageId = is.readShort();
+            messageId = readShort(frame.buffers[0], 0);
             return this;
         }
 
@@ -133,6 +144,9 @@ public class MessageSupport {
     */
    static public class HeaderBase {
 
+       // QoS.values() clones the array on every call.
+       private static final QoS[] QOS_VALUES = QoS.values();
+
        protected byte header;
 
        protected byte header() {
@@ -153,7 +167,7 @@ public class MessageSupport {
        }
 
        protected QoS qos() {
-           return QoS.values()[((header & 0x06) >>> 1)];
+           return QOS_VALUES[((header & 0x06) >>> 1)];
        }
        protected HeaderBase qos(QoS qos) {
            this.header &= 0xF9;
@@ -19,7 +19,6 @@
 package org.fusesource.mqtt.codec;
 
 import org.fusesource.hawtbuf.Buffer;
-import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
 import org.fusesource.hawtbuf.UTF8Buffer;
 import org.fusesource.mqtt.client.QoS;
@@ -51,18 +50,38 @@ public class PUBLISH extends MessageSupport.HeaderBase implements Message, Acked
     }
 
     public PUBLISH decode(MQTTFrame frame) throws ProtocolException {
+        return decode(frame, null);
+    }
+
+    /**
+     * Decodes the frame, taking the topic name from the cache when it is not null.
+     */
+    public PUBLISH decode(MQTTFrame frame, TopicCache topics) throws ProtocolException {
         assert(frame.buffers.length == 1);
         header(frame.header());
 
-        DataByteArrayInputStream is = new DataByteArrayInputStream(frame.buffers[0]);
-        topicName = MessageSupport.readUTF(is);
-        
+        // Slice the fields straight out of the frame's buffer.
+        Buffer buffer = frame.buffers[0];
+        int size = MessageSupport.readShort(buffer, 0) & 0xFFFF;
+        int pos = 2;
+        if( pos + size > buffer.length ) {
+            throw new ProtocolException("Invalid message encoding");
+        }
+        if( topics != null ) {
+            topicName = topics.intern(buffer.data, buffer.offset + pos, size);
+        } else {
+            topicName = new UTF8Buffer(buffer.data, buffer.offset + pos, size);
+        }
+        pos += size;
+
         QoS qos = qos();
         if(qos != QoS.AT_MOST_ONCE) {
-            messageId = is.readShort();
+            messageId = MessageSupport.readShort(buffer, pos);
+            pos += 2;
         }
-        payload = is.readBuffer(is.available());
-        if( payload == null ) {
+        if( pos < buffer.length ) {
+            payload = new Buffer(buffer.data, buffer.offset + pos, buffer.length - pos);
+        } else {
             payload = new Buffer(0);
         }
         return this;
@@ -70,9 +89,13 @@ public class PUBLISH extends MessageSupport.HeaderBase implements Message, Acked
     
     public MQTTFrame encode() {
         try {
-            DataByteArrayOutputStream variableHeader = new DataByteArrayOutputStream();
-            MessageSupport.writeUTF(variableHeader, topicName);
             QoS qos = qos();
+            int size = 2 + topicName.length;
+            if(qos != QoS.AT_MOST_ONCE) {
+                size += 2;
+            }
+            DataByteArrayOutputStream variableHeader = new DataByteArrayOutputStream(size);
+            MessageSupport.writeUTF(variableHeader, topicName);
             if(qos != QoS.AT_MOST_ONCE) {
                 variableHeader.writeShort(messageId);
             }
@@ -90,6 +113,25 @@ public class PUBLISH extends MessageSupport.HeaderBase implements Message, Acked
         }
     }
 
+    /**
+     * @return the size of the frame {@link #encode()} would build once
+     * it is encoded, without building it.
+     */
+    public int encodedLength() {
+        int body = 2 + topicName.length;
+        if(qos() != QoS.AT_MOST_ONCE) {
+            body += 2;
+        }
+        if(payload!=null) {
+            body += payload.length;
+        }
+        int lengthBytes = 1;
+        for (int remaining = body >>> 7; remaining > 0; remaining >>>= 7) {
+            lengthBytes++;
+        }
+        return 1 + lengthBytes + body;
+    }
+
     @Override
     public boolean dup() {
         return super.dup();
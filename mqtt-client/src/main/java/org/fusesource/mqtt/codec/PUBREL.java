@@ -18,7 +18,6 @@
 
 package org.fusesource.mqtt.codec;
 
-import org.fusesource.hawtbuf.DataByteArrayInputStream;
 import org.fusesource.hawtbuf.DataByteArrayOutputStream;
 import org.fusesource.mqtt.client.QoS;
 
@@ -49,8 +48,7 @@ public class PUBREL extends MessageSupport.HeaderBase implements Message, Acked
     public PUBREL decode(MQTTFrame frame) throws ProtocolException {
         assert(frame.buffers.length == 1);
         header(frame.header());
-        DataByteArrayInputStream is = new DataByteArrayInputStream(frame.buffers[0]);
-        messageId = is.readShort();
+        messageId = MessageSupport.readShort(frame.buffers[0], 0);
         return this;
     }
     
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fusesource.mqtt.codec;
+
+import org.fusesource.hawtbuf.UTF8Buffer;
+
+/**
+ * <p>
+ * Interns the topic names of received PUBLISH frames so that a topic seen
+ * before decodes to the same UTF8Buffer instead of a new one.  Since a
+ * UTF8Buffer caches its hash code and its String value, repeated topics
+ * are also hashed and UTF-8 decoded only once.
+ * </p>
+ * <p>
+ * Lookups hash the topic bytes where they sit in the frame, so a hit does
+ * not allocate.  The cached buffers are copies, which keeps them from
+ * holding on to the frames.  Holds at most <code>capacity</code> topics,
+ * evicting the least recently used.  Not thread safe, a connection only
+ * decodes from its dispatch queue.
+ * </p>
+ */
+public final class TopicCache {
+
+    private static final class Entry {
+        final UTF8Buffer topic;
+        final int hash;
+        Entry next;
+        Entry before;
+        Entry after;
+
+        Entry(UTF8Buffer topic, int hash) {
+            this.topic = topic;
+            this.hash = hash;
+        }
+    }
+
+    private final int capacity;
+    private final Entry[] table;
+    // Sentinel of the recently used list, most recent first.
+    private final Entry lru = new Entry(null, 0);
+    private int size;
+
+    public TopicCache(int capacity) {
+        if( capacity < 1 ) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        int buckets = Integer.highestOneBit(capacity) << 1;
+        this.table = new Entry[buckets];
+        lru.before = lru.after = lru;
+    }
+
+    /**
+     * @return the cached topic with the given bytes, adding it if it is not cached yet.
+     */
+    public UTF8Buffer intern(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        int bucket = (hash ^ (hash >>> 16)) & (table.length - 1);
+        for (Entry e = table[bucket]; e != null; e = e.next) {
+            if( e.hash == hash && matches(e.topic, data, offset, length) ) {
+                if( lru.after != e ) {
+                    unlink(e);
+                    link(e);
+                }
+                return e.topic;
+            }
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        UTF8Buffer topic = new UTF8Buffer(copy);
+        topic.hashCode();
+        Entry e = new Entry(topic, hash);
+        e.next = table[bucket];
+        table[bucket] = e;
+        link(e);
+        if( ++size > capacity ) {
+            evict(lru.before);
+        }
+        return topic;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private static boolean matches(UTF8Buffer topic, byte[] data, int offset, int length) {
+        if( topic.length != length ) {
+            return false;
+        }
+        byte[] cached = topic.data;
+        for (int i = 0; i < length; i++) {
+            if( cached[i] != data[offset + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void link(Entry e) {
+        e.after = lru.after;
+        e.before = lru;
+        lru.after.before = e;
+        lru.after = e;
+    }
+
+    private void unlink(Entry e) {
+        e.before.after = e.after;
+        e.after.before = e.before;
+    }
+
+    private void evict(Entry e) {
+        unlink(e);
+        int bucket = (e.hash ^ (e.hash >>> 16)) & (table.length - 1);
+        Entry prev = null;
+        for (Entry cur = table[bucket]; cur != null; prev = cur, cur = cur.next) {
+            if( cur == e ) {
+                if( prev == null ) {
+                    table[bucket] = e.next;
+                } else {
+                    prev.next = e.next;
+                }
+                break;
+            }
+        }
+        size--;
+    }
+}
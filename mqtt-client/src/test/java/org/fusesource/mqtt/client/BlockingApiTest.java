@@ -18,6 +18,7 @@
 
 package org.fusesource.mqtt.client;
 
+import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
 import static org.fusesource.hawtbuf.Buffer.utf8;
@@ -55,6 +56,60 @@ public class BlockingApiTest extends BrokerTestSupport {
         connection.disconnect();
     }
 
+    public void testPublishBatch() throws Exception {
+        MQTT mqtt = new MQTT();
+        mqtt.setHost("localhost", port);
+        mqtt.setMaxInflight(10);
+
+        BlockingConnection connection = mqtt.blockingConnection();
+        connection.connect();
+
+        Topic[] topics = {new Topic(utf8("foo"), QoS.AT_LEAST_ONCE)};
+        connection.subscribe(topics);
+
+        // More messages than the in flight window allows.
+        ArrayList<PublishRequest> batch = new ArrayList<PublishRequest>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(new PublishRequest("foo", ("Hello " + i).getBytes(), QoS.AT_LEAST_ONCE, false));
+        }
+        connection.publishBatch(batch);
+
+        for (int i = 0; i < 100; i++) {
+            Message message = connection.receive(5000, TimeUnit.MILLISECONDS);
+            assertNotNull(message);
+            assertEquals("Hello " + i, new String(message.getPayload()));
+            message.ack();
+        }
+
+        connection.disconnect();
+    }
+
+    public void testPublishAsync() throws Exception {
+        MQTT mqtt = new MQTT();
+        mqtt.setHost("localhost", port);
+
+        BlockingConnection connection = mqtt.blockingConnection();
+        connection.setPublishWindow(10);
+        connection.connect();
+
+        Topic[] topics = {new Topic(utf8("foo"), QoS.AT_LEAST_ONCE)};
+        connection.subscribe(topics);
+
+        for (int i = 0; i < 100; i++) {
+            connection.publishAsync("foo", ("Hello " + i).getBytes(), QoS.AT_LEAST_ONCE, false);
+        }
+        connection.flush();
+
+        for (int i = 0; i < 100; i++) {
+            Message message = connection.receive(5000, TimeUnit.MILLISECONDS);
+            assertNotNull(message);
+            assertEquals("Hello " + i, new String(message.getPayload()));
+            message.ack();
+        }
+
+        connection.disconnect();
+    }
+
     public void testInvalidClientId() throws Exception {
         MQTT mqtt = new MQTT();
         mqtt.setHost("localhost", port);
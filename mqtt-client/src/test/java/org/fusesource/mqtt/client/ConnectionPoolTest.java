@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks the pool gives its connections distinct queues, always routes a
+ * topic to the same connection and does not share per client state.
+ * </p>
+ */
+public class ConnectionPoolTest extends TestCase {
+
+    public void testPartitioning() {
+        MQTT mqtt = new MQTT();
+        mqtt.setClientId("producer");
+        ConnectionPool pool = new ConnectionPool(mqtt, 4);
+        assertEquals(4, pool.size());
+        for (int i = 0; i < pool.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                assertNotSame(pool.connection(j).getDispatchQueue(), pool.connection(i).getDispatchQueue());
+            }
+        }
+        assertEquals("producer", mqtt.getClientId().toString());
+
+        int[] used = new int[pool.size()];
+        for (int i = 0; i < 100; i++) {
+            int partition = pool.partition(utf8("sensors/" + i));
+            assertEquals(partition, pool.partition(utf8("sensors/" + i)));
+            used[partition]++;
+        }
+        for (int count : used) {
+            assertTrue(count > 0);
+        }
+    }
+
+    public void testPersistenceIsNotShared() throws Exception {
+        MQTT mqtt = new MQTT();
+        mqtt.setClientId("producer");
+        mqtt.setOfflineSpool(new DiskSpool(new File(System.getProperty("java.io.tmpdir"), "pool-spool")));
+        try {
+            new ConnectionPool(mqtt, 2);
+            fail("expected the shared spool to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+
+        // Copies never carry the per client id state.
+        assertNull(new MQTT(mqtt).getOfflineSpool());
+
+        mqtt.setOfflineSpool(null);
+        final String[] clientIds = new String[3];
+        new ConnectionPool(mqtt, 3, new ConnectionPool.Customizer() {
+            public void customize(int index, MQTT mqtt) {
+                assertNull(mqtt.getOfflineSpool());
+                clientIds[index] = mqtt.getClientId().toString();
+            }
+        });
+        assertEquals("producer-0", clientIds[0]);
+        assertEquals("producer-2", clientIds[2]);
+    }
+}
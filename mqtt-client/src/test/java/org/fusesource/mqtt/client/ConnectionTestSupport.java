@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Task;
+
+/**
+ * <p>
+ * Runs a CallbackConnection over a {@link TestTransport} so its behaviour
+ * can be checked without a broker.  The connection is used from its
+ * dispatch queue with {@link #run(Runnable)}.
+ * </p>
+ */
+public class ConnectionTestSupport extends TestCase {
+
+    protected MQTT mqtt;
+    protected CallbackConnection connection;
+    protected TestTransport transport;
+    // The messages the connection's listener got, acked once received unless ackReceived is cleared.
+    protected final List<Message> received = new ArrayList<Message>();
+    protected boolean ackReceived = true;
+
+    @Override
+    protected void setUp() throws Exception {
+        mqtt = new MQTT();
+        mqtt.setClientId("test");
+        mqtt.setKeepAlive((short) 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if( connection!=null && transport!=null ) {
+            run(new Runnable() {
+                public void run() {
+                    connection.kill(null);
+                }
+            });
+            connection = null;
+        }
+    }
+
+    /**
+     * Establishes the session of the connection over a new transport,
+     * creating the connection first unless a test already did.
+     */
+    protected void connect() throws Exception {
+        if( connection==null ) {
+            connection = mqtt.callbackConnection();
+        }
+        transport = new TestTransport(connection.getDispatchQueue());
+        run(new Runnable() {
+            public void run() {
+                connection.listener(new Listener() {
+                    public void onConnected() {
+                    }
+                    public void onDisconnected() {
+                    }
+                    public void onPublish(UTF8Buffer topic, Buffer body, Runnable ack) {
+                        Message message = new Message(connection.getDispatchQueue(), topic, body, ack);
+                        received.add(message);
+                        if( ackReceived ) {
+                            ack.run();
+                        }
+                    }
+                    public void onFailure(Throwable value) {
+                    }
+                });
+                connection.onSessionEstablished(transport);
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the connection's dispatch queue and waits for it,
+     * and for the tasks it queued, like the transport's flush.
+     */
+    protected void run(final Runnable task) throws Exception {
+        final Throwable[] error = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        connection.getDispatchQueue().execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        if( error[0] instanceof Exception ) {
+            throw (Exception) error[0];
+        } else if( error[0]!=null ) {
+            throw (Error) error[0];
+        }
+        drain();
+    }
+
+    /**
+     * Waits for the tasks already on the dispatch queue to run.
+     */
+    protected void drain() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        connection.getDispatchQueue().execute(new Task() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Records the outcome of a callback.
+     */
+    protected static class Result<T> implements Callback<T> {
+        public boolean succeeded;
+        public T value;
+        public Throwable failure;
+
+        public void onSuccess(T value) {
+            this.succeeded = true;
+            this.value = value;
+        }
+
+        public void onFailure(Throwable value) {
+            this.failure = value;
+        }
+
+        public boolean done() {
+            return succeeded || failure!=null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Runs a ConsumerGroup over {@link TestTransport}s to check how it hands
+ * messages to its workers and when it stops reading.
+ * </p>
+ */
+public class ConsumerGroupTest extends TestCase {
+
+    private ExecutorService executor;
+    private ConsumerGroup group;
+    private TestTransport[] transports;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if( group!=null ) {
+            for (int i = 0; i < transports.length; i++) {
+                final CallbackConnection connection = group.getConnectionPool().connection(i);
+                run(connection, new Runnable() {
+                    public void run() {
+                        connection.kill(null);
+                    }
+                });
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates the group and establishes the session of each connection
+     * over a TestTransport, without a server to subscribe to.
+     */
+    private void start(int connections, int workers, int maxOutstanding, MessageHandler handler) throws Exception {
+        MQTT mqtt = new MQTT();
+        mqtt.setClientId("group");
+        mqtt.setKeepAlive((short) 0);
+        group = new ConsumerGroup(mqtt, connections, workers, executor);
+        group.setMaxOutstanding(maxOutstanding);
+        group.listen(handler);
+        transports = new TestTransport[connections];
+        for (int i = 0; i < connections; i++) {
+            final CallbackConnection connection = group.getConnectionPool().connection(i);
+            final TestTransport transport = new TestTransport(connection.getDispatchQueue());
+            transports[i] = transport;
+            run(connection, new Runnable() {
+                public void run() {
+                    connection.onSessionEstablished(transport);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs the task on the connection's dispatch queue and waits for it.
+     */
+    private static void run(CallbackConnection connection, final Runnable task) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        connection.getDispatchQueue().execute(new Task() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Hands the frames to the connection from one task.
+     */
+    private void receive(int index, final List<MQTTFrame> frames) throws Exception {
+        final TestTransport transport = transports[index];
+        run(group.getConnectionPool().connection(index), new Runnable() {
+            public void run() {
+                for (MQTTFrame frame : frames) {
+                    transport.receive(frame);
+                }
+            }
+        });
+    }
+
+    private static MQTTFrame publish(String topic, int id) {
+        return new PUBLISH().qos(QoS.AT_LEAST_ONCE).messageId((short) id)
+                .topicName(utf8(topic)).payload(new Buffer(new byte[]{(byte) id})).encode();
+    }
+
+    private static void await(AtomicInteger counter, int value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( counter.get() < value && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(1);
+        }
+        assertEquals(value, counter.get());
+    }
+
+    public void testMessagesOfATopicAreHandledInOrder() throws Exception {
+        final Map<String, List<Integer>> handled = new HashMap<String, List<Integer>>();
+        final CountDownLatch done = new CountDownLatch(250);
+        start(1, 4, 1000, new MessageHandler() {
+            public void onMessage(Message message) {
+                Thread.yield();
+                synchronized (handled) {
+                    List<Integer> ids = handled.get(message.getTopic());
+                    if( ids==null ) {
+                        ids = new ArrayList<Integer>();
+                        handled.put(message.getTopic(), ids);
+                    }
+                    ids.add(message.getPayload()[0] & 0xFF);
+                }
+                message.ack();
+                done.countDown();
+            }
+            public void onFailure(Throwable value) {
+            }
+        });
+
+        ArrayList<MQTTFrame> frames = new ArrayList<MQTTFrame>();
+        for (int i = 1; i <= 50; i++) {
+            for (int topic = 0; topic < 5; topic++) {
+                frames.add(publish("t/" + topic, i));
+            }
+        }
+        receive(0, frames);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(5, handled.size());
+        for (List<Integer> ids : handled.values()) {
+            assertEquals(50, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                assertEquals(i + 1, ids.get(i).intValue());
+            }
+        }
+    }
+
+    public void testReadingSuspendsAtMaxOutstandingAndResumesAtHalf() throws Exception {
+        final Semaphore gate = new Semaphore(0);
+        final AtomicInteger handled = new AtomicInteger();
+        start(1, 1, 4, new MessageHandler() {
+            public void onMessage(Message message) {
+                gate.acquireUninterruptibly();
+                message.ack();
+                handled.incrementAndGet();
+            }
+            public void onFailure(Throwable value) {
+            }
+        });
+        TestTransport transport = transports[0];
+        ArrayList<MQTTFrame> frames = new ArrayList<MQTTFrame>();
+        for (int i = 1; i <= 3; i++) {
+            frames.add(publish("t", i));
+        }
+        receive(0, frames);
+        assertFalse(transport.suspended);
+
+        frames.clear();
+        frames.add(publish("t", 4));
+        receive(0, frames);
+        assertTrue(transport.suspended);
+
+        // Three left is still more than half.
+        gate.release();
+        await(handled, 1);
+        Thread.sleep(50);
+        run(group.getConnectionPool().connection(0), new Runnable() {
+            public void run() {
+            }
+        });
+        assertTrue(transport.suspended);
+
+        gate.release();
+        await(handled, 2);
+        long deadline = System.currentTimeMillis() + 5000;
+        while( transport.suspended && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(1);
+        }
+        assertFalse(transport.suspended);
+        gate.release(2);
+        await(handled, 4);
+    }
+
+    public void testTopicsArePartitionedWithoutAShareName() throws Exception {
+        final List<String> handled = new ArrayList<String>();
+        final AtomicInteger count = new AtomicInteger();
+        start(2, 2, 1000, new MessageHandler() {
+            public void onMessage(Message message) {
+                synchronized (handled) {
+                    handled.add(message.getTopic());
+                }
+                count.incrementAndGet();
+            }
+            public void onFailure(Throwable value) {
+            }
+        });
+
+        // Both connections get every message, as with a plain subscription.
+        ArrayList<MQTTFrame> frames = new ArrayList<MQTTFrame>();
+        for (int i = 1; i <= 20; i++) {
+            frames.add(publish("t/" + i, i));
+        }
+        receive(0, frames);
+        receive(1, frames);
+        await(count, 20);
+
+        Set<String> topics = new HashSet<String>(handled);
+        assertEquals(20, handled.size());
+        assertEquals(20, topics.size());
+
+        // Each connection acks the topics it does not own right away, the
+        // handler did not ack the ones it got.
+        for (int index = 0; index < 2; index++) {
+            Set<Short> acked = new HashSet<Short>();
+            for (MQTTFrame frame : transports[index].sent(PUBACK.TYPE)) {
+                acked.add(TestTransport.messageId(frame));
+            }
+            Set<Short> expected = new HashSet<Short>();
+            for (int i = 1; i <= 20; i++) {
+                if( ConnectionPool.partition(utf8("t/" + i), 2)!=index ) {
+                    expected.add((short) i);
+                }
+            }
+            assertEquals(expected, acked);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * Checks the default metrics add up what they are told and can be read
+ * over JMX.
+ * </p>
+ */
+public class DefaultClientMetricsTest extends TestCase {
+
+    public void testCounters() {
+        DefaultClientMetrics metrics = new DefaultClientMetrics();
+        metrics.onFrameSent(PUBLISH.TYPE, 100);
+        metrics.onFrameSent(PUBLISH.TYPE, 50);
+        metrics.onFrameReceived(PUBACK.TYPE, 4);
+        metrics.onInflightChanged(2);
+        metrics.onInflightChanged(-1);
+        metrics.onQueuedChanged(5);
+        metrics.onReconnect();
+        metrics.onPublishAcked(QoS.AT_LEAST_ONCE, TimeUnit.MILLISECONDS.toNanos(2));
+        metrics.onPublishAcked(QoS.EXACTLY_ONCE, TimeUnit.MILLISECONDS.toNanos(4));
+
+        assertEquals(2, metrics.getFramesSent());
+        assertEquals(2, metrics.getFramesSent(PUBLISH.TYPE));
+        assertEquals(150, metrics.getBytesSent());
+        assertEquals(Long.valueOf(150), metrics.getBytesSentByType().get("PUBLISH"));
+        assertEquals(1, metrics.getFramesReceived(PUBACK.TYPE));
+        assertEquals(4, metrics.getBytesReceived());
+        assertEquals(1, metrics.getInflight());
+        assertEquals(5, metrics.getQueued());
+        assertEquals(1, metrics.getReconnects());
+        assertEquals(1, metrics.getAtLeastOnceAckLatency().getCount());
+        assertEquals(2000, metrics.getAtLeastOnceAckLatency().getMax());
+        assertEquals(4000, metrics.getExactlyOnceAckLatency().getMax());
+
+        metrics.reset();
+        assertEquals(0, metrics.getFramesSent());
+        assertEquals(0, metrics.getAtLeastOnceAckLatency().getCount());
+        // The gauges are left alone.
+        assertEquals(1, metrics.getInflight());
+    }
+
+    public void testJmx() throws Exception {
+        DefaultClientMetrics metrics = new DefaultClientMetrics();
+        metrics.onFrameSent(PUBLISH.TYPE, 10);
+        metrics.onPingRoundTrip(TimeUnit.MILLISECONDS.toNanos(1));
+        ObjectName name = metrics.register("test client");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "FramesSent"));
+            CompositeData ping = (CompositeData) server.getAttribute(name, "PingRoundTrip");
+            assertEquals(1L, ping.get("count"));
+            assertEquals(1000L, ping.get("max"));
+            TabularData byType = (TabularData) server.getAttribute(name, "FramesSentByType");
+            assertEquals(14, byType.size());
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "FramesSent"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Checks the pooling and release of direct payload buffers.
+ * </p>
+ */
+public class DirectBufferPoolTest extends TestCase {
+
+    public void testReleasedBuffersAreReused() {
+        DirectBufferPool pool = new DirectBufferPool(1024, 4);
+
+        DirectBufferPool.Delivery first = pool.copy(new Buffer("Hello".getBytes()));
+        ByteBuffer payload = first.view;
+        assertTrue(payload.isDirect());
+        assertTrue(payload.isReadOnly());
+        assertEquals(5, payload.remaining());
+        byte[] data = new byte[5];
+        payload.get(data);
+        assertEquals("Hello", new String(data));
+        first.run();
+
+        DirectBufferPool.Delivery second = pool.copy(new Buffer("Hi".getBytes()));
+        assertSame(first.buffer, second.buffer);
+        assertEquals(2, second.view.remaining());
+
+        // Payloads bigger than the max pooled size are not pooled.
+        Buffer large = new Buffer(new byte[2048]);
+        DirectBufferPool.Delivery unpooled = pool.copy(large);
+        assertEquals(2048, unpooled.view.remaining());
+        unpooled.run();
+        assertNotSame(unpooled.buffer, pool.copy(large).buffer);
+    }
+
+    public void testStaleReleaseFails() {
+        DirectBufferPool pool = new DirectBufferPool(1024, 4);
+        DirectBufferPool.Delivery first = pool.copy(new Buffer(10));
+        first.run();
+        DirectBufferPool.Delivery second = pool.copy(new Buffer(10));
+        assertSame(first.buffer, second.buffer);
+
+        // Releasing the first delivery again must not free the buffer of the second.
+        try {
+            first.run();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        assertNotSame(second.buffer, pool.copy(new Buffer(10)).buffer);
+        second.run();
+    }
+
+    public void testConcurrentReleaseFreesOnce() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(1024, 4);
+        for (int round = 0; round < 100; round++) {
+            final DirectBufferPool.Delivery delivery = pool.copy(new Buffer(10));
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger released = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                            delivery.run();
+                            released.incrementAndGet();
+                        } catch (IllegalStateException e) {
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, released.get());
+        }
+    }
+
+    public void testDoubleRelease() {
+        DirectBufferPool.Delivery buffer = new DirectBufferPool().copy(new Buffer(10));
+        buffer.run();
+        try {
+            buffer.run();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+}
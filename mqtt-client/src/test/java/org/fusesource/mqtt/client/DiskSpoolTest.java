@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * Checks the spool hands messages back in order across segments and
+ * reopening, and drops the oldest segment once it is over its size.
+ * </p>
+ */
+public class DiskSpoolTest extends TestCase {
+
+    File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File("target/test-data/" + getName());
+        File[] files = directory.listFiles();
+        if( files!=null ) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private DiskSpool open() {
+        DiskSpool spool = new DiskSpool(directory);
+        spool.setSegmentSize(1024);
+        return spool;
+    }
+
+    public void testOrderAcrossReopen() throws Exception {
+        DiskSpool spool = open();
+        assertTrue(spool.isEmpty());
+        for (int i = 0; i < 50; i++) {
+            spool.offer(new PublishRequest("topic/" + i, new byte[100], QoS.AT_LEAST_ONCE, i == 0));
+        }
+        for (int i = 0; i < 20; i++) {
+            PublishRequest message = spool.poll();
+            assertEquals("topic/" + i, message.getTopic().toString());
+            if( i < 10 ) {
+                spool.ack(message);
+            }
+        }
+        spool.close();
+
+        // Only the segments read and acked so far are gone.
+        spool = open();
+        PublishRequest first = spool.poll();
+        assertTrue(Integer.parseInt(first.getTopic().toString().substring(6)) <= 10);
+        PublishRequest message;
+        int count = 1;
+        while( (message = spool.poll())!=null ) {
+            count++;
+            assertEquals(100, message.getPayload().length);
+        }
+        assertTrue(count >= 40);
+        assertTrue(spool.isEmpty());
+        spool.close();
+    }
+
+    public void testSegmentsAreKeptUntilAcked() throws Exception {
+        DiskSpool spool = open();
+        for (int i = 0; i < 50; i++) {
+            spool.offer(new PublishRequest("topic/" + i, new byte[100], QoS.AT_LEAST_ONCE, false));
+        }
+        int segments = directory.list().length;
+        assertTrue(segments > 2);
+        ArrayList<PublishRequest> polled = new ArrayList<PublishRequest>();
+        PublishRequest message;
+        while( (message = spool.poll())!=null ) {
+            polled.add(message);
+        }
+        assertEquals(50, polled.size());
+        assertTrue(spool.isEmpty());
+        assertEquals(segments, directory.list().length);
+
+        // Acks may come out of order, a segment goes once all of its messages are acked.
+        for (int i = polled.size() - 1; i > 0; i--) {
+            spool.ack(polled.get(i));
+        }
+        assertEquals(2, directory.list().length);
+        spool.ack(polled.get(0));
+        // The segment being written is kept.
+        assertEquals(1, directory.list().length);
+        spool.close();
+
+        // Only the messages of that segment come back.
+        spool = open();
+        int count = 0;
+        PublishRequest last = null;
+        while( (message = spool.poll())!=null ) {
+            last = message;
+            count++;
+        }
+        assertTrue(count > 0 && count < 10);
+        assertEquals("topic/49", last.getTopic().toString());
+        spool.close();
+    }
+
+    public void testRetryPollsAgain() throws Exception {
+        DiskSpool spool = open();
+        for (int i = 0; i < 3; i++) {
+            spool.offer(new PublishRequest("topic/" + i, new byte[10], QoS.AT_LEAST_ONCE, false));
+        }
+        PublishRequest first = spool.poll();
+        PublishRequest second = spool.poll();
+        PublishRequest third = spool.poll();
+        assertNull(spool.poll());
+        assertTrue(spool.isEmpty());
+
+        // A failed message comes back ahead of the rest, an acked one does not.
+        spool.ack(first);
+        spool.retry(first);
+        spool.retry(second);
+        assertFalse(spool.isEmpty());
+        assertSame(second, spool.poll());
+        assertNull(spool.poll());
+        spool.ack(second);
+        spool.ack(third);
+        assertTrue(spool.isEmpty());
+        assertEquals(1, directory.list().length);
+        spool.close();
+    }
+
+    public void testRetention() throws Exception {
+        DiskSpool spool = open();
+        spool.setMaxBytes(4096);
+        spool.setMinQoS(QoS.AT_LEAST_ONCE);
+        assertFalse(spool.offer(new PublishRequest("qos0", new byte[10], QoS.AT_MOST_ONCE, false)));
+        for (int i = 0; i < 100; i++) {
+            spool.offer(new PublishRequest("topic/" + i, new byte[100], QoS.EXACTLY_ONCE, false));
+        }
+        assertTrue(spool.bytes() <= 4096);
+        assertTrue(spool.droppedBytes() > 0);
+        assertEquals(1, spool.droppedMessages());
+        // The newest message is always kept.
+        PublishRequest last = null;
+        PublishRequest message;
+        while( (message = spool.poll())!=null ) {
+            last = message;
+        }
+        assertEquals("topic/99", last.getTopic().toString());
+        spool.close();
+    }
+}
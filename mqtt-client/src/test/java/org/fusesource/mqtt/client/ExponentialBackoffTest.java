@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import org.fusesource.mqtt.client.ExponentialBackoff.Jitter;
+
+/**
+ * <p>
+ * Checks the reconnect delays grow from the initial delay, stay under the
+ * maximum and that the jittered ones stay in their ranges.
+ * </p>
+ */
+public class ExponentialBackoffTest extends TestCase {
+
+    public void testExponential() {
+        ExponentialBackoff backoff = new ExponentialBackoff(10, 30000, 2.0, Jitter.NONE);
+        assertEquals(10, backoff.delay(0, 0));
+        assertEquals(20, backoff.delay(1, 10));
+        assertEquals(40, backoff.delay(2, 20));
+        assertEquals(10240, backoff.delay(10, 0));
+        assertEquals(30000, backoff.delay(12, 0));
+        // pow() overflows to infinity long before this.
+        assertEquals(30000, backoff.delay(5000, 0));
+    }
+
+    public void testFixedAndDisabled() {
+        assertEquals(500, new ExponentialBackoff(500, 30000, 1.0, Jitter.NONE).delay(100, 500));
+        assertEquals(0, new ExponentialBackoff(0, 30000, 2.0, Jitter.FULL).delay(3, 0));
+    }
+
+    public void testFullJitter() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, 2.0, Jitter.FULL);
+        boolean spread = false;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.delay(2, 0);
+            assertTrue(delay >= 0 && delay <= 400);
+            spread |= delay != backoff.delay(2, 0);
+            assertTrue(backoff.delay(20, 0) <= 1000);
+        }
+        assertTrue(spread);
+    }
+
+    public void testDecorrelatedJitter() {
+        ExponentialBackoff backoff = new ExponentialBackoff(100, 1000, 3.0, Jitter.DECORRELATED);
+        long previous = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.delay(i, previous);
+            assertTrue(delay >= 100);
+            assertTrue(delay <= Math.min(1000, Math.max(previous, 100) * 3));
+            previous = delay;
+        }
+    }
+
+    public void testDefaultStrategy() {
+        MQTT mqtt = new MQTT();
+        ReconnectStrategy strategy = mqtt.reconnectStrategy();
+        // The first delayed attempt used to wait 0 ms.
+        assertEquals(10, strategy.delay(0, 0));
+        assertEquals(20, strategy.delay(1, 10));
+        mqtt.setReconnectBackOffMultiplier(0.5);
+        assertEquals(10, mqtt.reconnectStrategy().delay(5, 10));
+    }
+}
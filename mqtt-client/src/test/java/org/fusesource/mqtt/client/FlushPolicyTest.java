@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+/**
+ * <p>
+ * Checks how each flush policy holds frames and packs them into socket writes.
+ * </p>
+ */
+public class FlushPolicyTest extends ConnectionTestSupport {
+
+    /**
+     * Publishes the messages from one task.
+     * @return how many frames the transport took by the end of the task.
+     */
+    private int publish(final int count, final int size) throws Exception {
+        final int[] offered = new int[1];
+        run(new Runnable() {
+            public void run() {
+                int before = transport.sent.size();
+                for (int i = 0; i < count; i++) {
+                    connection.publish("a/b", new byte[size], QoS.AT_MOST_ONCE, false, null);
+                }
+                offered[0] = transport.sent.size() - before;
+            }
+        });
+        return offered[0];
+    }
+
+    public void testWithoutPolicyFramesAreOfferedAtOnce() throws Exception {
+        connect();
+        int writes = transport.socketWrites;
+        assertEquals(10, publish(10, 10));
+        drain();
+        // The transport's own flush task still packs them into one write.
+        assertEquals(writes + 1, transport.socketWrites);
+    }
+
+    public void testEndOfDrainHoldsFramesUntilTheQueueDrains() throws Exception {
+        mqtt.setFlushPolicy(FlushPolicy.END_OF_DRAIN);
+        connect();
+        int sent = transport.sent.size();
+        int writes = transport.socketWrites;
+        assertEquals(0, publish(10, 10));
+        drain();
+        assertEquals(sent + 10, transport.sent.size());
+        assertEquals(writes + 1, transport.socketWrites);
+    }
+
+    public void testMaxFramesWritesEachFullBatch() throws Exception {
+        mqtt.setFlushPolicy(new FlushPolicy(5, 0, 0));
+        connect();
+        int sent = transport.sent.size();
+        assertEquals(10, publish(12, 10));
+        drain();
+        assertEquals(sent + 12, transport.sent.size());
+    }
+
+    public void testMaxBytesWritesOnceTheFramesAddUp() throws Exception {
+        // Each frame holds a 5 byte variable header and a 100 byte payload.
+        mqtt.setFlushPolicy(new FlushPolicy(0, 300, 0));
+        connect();
+        int sent = transport.sent.size();
+        assertEquals(3, publish(4, 100));
+        drain();
+        assertEquals(sent + 4, transport.sent.size());
+    }
+
+    public void testMaxDelayHoldsFramesPastTheDrain() throws Exception {
+        mqtt.setFlushPolicy(new FlushPolicy(0, 0, 200000));
+        connect();
+        int sent = transport.sent.size();
+        int writes = transport.socketWrites;
+        assertEquals(0, publish(10, 10));
+        drain();
+        assertEquals(sent, transport.sent.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while( transport.socketWrites==writes && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10);
+            drain();
+        }
+        drain();
+        assertEquals(sent + 10, transport.sent.size());
+        assertEquals(writes + 1, transport.socketWrites);
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.codec.CONNECT;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks the frame capture records the metadata of the frames, wraps
+ * around keeping the latest ones, and samples whole message exchanges.
+ * </p>
+ */
+public class FrameCaptureTest extends TestCase {
+
+    static MQTTFrame publish(int id, QoS qos) {
+        PUBLISH publish = new PUBLISH().qos(qos).topicName(utf8("a/b")).payload(new Buffer(new byte[10]));
+        publish.messageId((short) id);
+        return publish.encode();
+    }
+
+    static MQTTFrame puback(int id) {
+        return new PUBACK().messageId((short) id).encode();
+    }
+
+    public void testMetadata() {
+        FrameCapture capture = new FrameCapture(16);
+        capture.onSend(new CONNECT().clientId(utf8("test")).encode());
+        capture.onSend(publish(40000, QoS.AT_LEAST_ONCE).dup(true));
+        capture.onReceive(puback(40000));
+
+        List<FrameCapture.CapturedFrame> frames = capture.snapshot();
+        assertEquals(3, frames.size());
+        assertEquals(CONNECT.TYPE, frames.get(0).getType());
+        assertEquals(-1, frames.get(0).getMessageId());
+
+        FrameCapture.CapturedFrame publish = frames.get(1);
+        assertTrue(publish.isSent());
+        assertEquals(PUBLISH.TYPE, publish.getType());
+        assertEquals(QoS.AT_LEAST_ONCE, publish.getQos());
+        assertTrue(publish.isDup());
+        assertEquals(40000, publish.getMessageId());
+        // header, length, topic length, topic, id, payload
+        assertEquals(1 + 1 + 2 + 3 + 2 + 10, publish.getLength());
+
+        assertFalse(frames.get(2).isSent());
+        assertEquals(40000, frames.get(2).getMessageId());
+        assertEquals(4, frames.get(2).getLength());
+    }
+
+    public void testWrapsAround() {
+        FrameCapture capture = new FrameCapture(10);
+        assertEquals(16, capture.getCapacity());
+        for (int i = 1; i <= 100; i++) {
+            capture.onReceive(puback(i));
+        }
+        List<FrameCapture.CapturedFrame> frames = capture.snapshot();
+        assertEquals(16, frames.size());
+        assertEquals(85, frames.get(0).getMessageId());
+        assertEquals(100, frames.get(15).getMessageId());
+        assertEquals(100, capture.getCaptured());
+    }
+
+    public void testSampling() {
+        FrameCapture capture = new FrameCapture(64);
+        capture.setSampleInterval(4);
+        for (int i = 1; i <= 8; i++) {
+            capture.onSend(publish(i, QoS.AT_LEAST_ONCE));
+            capture.onReceive(puback(i));
+        }
+        for (int i = 0; i < 8; i++) {
+            capture.onSend(publish(0, QoS.AT_MOST_ONCE));
+        }
+        capture.onSend(new CONNECT().clientId(utf8("test")).encode());
+
+        List<FrameCapture.CapturedFrame> frames = capture.snapshot();
+        // The exchanges of ids 4 and 8, two of the QoS 0 publishes and the CONNECT.
+        assertEquals(7, frames.size());
+        assertEquals(4, frames.get(0).getMessageId());
+        assertEquals(4, frames.get(1).getMessageId());
+        assertEquals(8, frames.get(3).getMessageId());
+        assertEquals(QoS.AT_MOST_ONCE, frames.get(4).getQos());
+        assertEquals(CONNECT.TYPE, frames.get(6).getType());
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.fusesource.mqtt.codec.SUBACK;
+import org.fusesource.mqtt.codec.SUBSCRIBE;
+import org.fusesource.mqtt.codec.UNSUBACK;
+import org.fusesource.mqtt.codec.UNSUBSCRIBE;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks messages go to the handlers of the subscriptions whose filters
+ * match them, and to the listener when none does.
+ * </p>
+ */
+public class HandlerDispatchTest extends ConnectionTestSupport {
+
+    /**
+     * Keeps the messages it is given, acking them unless told not to.
+     */
+    static class Recorder implements MessageHandler {
+        final List<Message> messages = new ArrayList<Message>();
+        boolean ack = true;
+
+        public void onMessage(Message message) {
+            messages.add(message);
+            if( ack ) {
+                message.ack();
+            }
+        }
+
+        public void onFailure(Throwable value) {
+        }
+    }
+
+    /**
+     * Throws from onMessage, after acking the message if told to.
+     */
+    static class Thrower extends Recorder {
+        final List<Throwable> failures = new ArrayList<Throwable>();
+
+        Thrower(boolean ack) {
+            this.ack = ack;
+        }
+
+        public void onMessage(Message message) {
+            super.onMessage(message);
+            throw new IllegalStateException("handler failed");
+        }
+
+        public void onFailure(Throwable value) {
+            failures.add(value);
+        }
+    }
+
+    private void subscribe(final String filter, final MessageHandler handler) throws Exception {
+        final Result<byte[]> result = new Result<byte[]>();
+        run(new Runnable() {
+            public void run() {
+                connection.subscribe(new Topic(filter, QoS.AT_LEAST_ONCE), handler, result);
+            }
+        });
+        List<MQTTFrame> subscribes = transport.sent(SUBSCRIBE.TYPE);
+        final short id = TestTransport.messageId(subscribes.get(subscribes.size() - 1));
+        run(new Runnable() {
+            public void run() {
+                transport.receive(new SUBACK().messageId(id).grantedQos(new byte[]{1}).encode());
+            }
+        });
+        assertTrue(result.succeeded);
+    }
+
+    private void unsubscribe(final String filter) throws Exception {
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.unsubscribe(new UTF8Buffer[]{utf8(filter)}, result);
+            }
+        });
+        List<MQTTFrame> unsubscribes = transport.sent(UNSUBSCRIBE.TYPE);
+        final short id = TestTransport.messageId(unsubscribes.get(unsubscribes.size() - 1));
+        run(new Runnable() {
+            public void run() {
+                transport.receive(new UNSUBACK().messageId(id).encode());
+            }
+        });
+        assertTrue(result.succeeded);
+    }
+
+    private void receive(String topic, int id) throws Exception {
+        final MQTTFrame frame = new PUBLISH().qos(QoS.AT_LEAST_ONCE).messageId((short) id)
+                .topicName(utf8(topic)).payload(new Buffer(10)).encode();
+        run(new Runnable() {
+            public void run() {
+                transport.receive(frame);
+            }
+        });
+    }
+
+    private int pubacks() {
+        return transport.sent(PUBACK.TYPE).size();
+    }
+
+    public void testMessagesGoToTheMatchingHandlers() throws Exception {
+        connect();
+        Recorder single = new Recorder();
+        Recorder multi = new Recorder();
+        subscribe("a/+", single);
+        subscribe("a/#", multi);
+
+        receive("a/b", 1);
+        assertEquals(1, single.messages.size());
+        assertEquals(1, multi.messages.size());
+        assertEquals("a/b", single.messages.get(0).getTopic());
+
+        receive("a/b/c", 2);
+        assertEquals(1, single.messages.size());
+        assertEquals(2, multi.messages.size());
+
+        receive("c/d", 3);
+        assertEquals(1, single.messages.size());
+        assertEquals(2, multi.messages.size());
+        assertEquals(1, received.size());
+        assertEquals("c/d", received.get(0).getTopic());
+        assertEquals(3, pubacks());
+    }
+
+    public void testSharedMessageIsAckedOnceAllHandlersAcked() throws Exception {
+        connect();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        first.ack = false;
+        second.ack = false;
+        subscribe("a/+", first);
+        subscribe("a/#", second);
+
+        receive("a/b", 1);
+        first.messages.get(0).ack();
+        drain();
+        assertEquals(0, pubacks());
+        second.messages.get(0).ack();
+        drain();
+        assertEquals(1, pubacks());
+        assertEquals(1, TestTransport.messageId(transport.sent(PUBACK.TYPE).get(0)));
+    }
+
+    public void testThrowingHandlerAcks() throws Exception {
+        connect();
+        Thrower thrower = new Thrower(false);
+        subscribe("a/#", thrower);
+
+        receive("a/b", 1);
+        drain();
+        assertEquals(1, thrower.failures.size());
+        assertEquals(1, pubacks());
+    }
+
+    public void testSharedAckCountsEachHandlerOnce() throws Exception {
+        connect();
+        // Acks, then throws, which acks again.
+        Thrower thrower = new Thrower(true);
+        Recorder other = new Recorder();
+        other.ack = false;
+        subscribe("a/+", thrower);
+        subscribe("a/#", other);
+
+        receive("a/b", 1);
+        drain();
+        assertEquals(1, thrower.failures.size());
+        assertEquals(0, pubacks());
+        other.messages.get(0).ack();
+        drain();
+        assertEquals(1, pubacks());
+    }
+
+    public void testRemoveHandlerKeepsTheSubscription() throws Exception {
+        connect();
+        final Recorder removed = new Recorder();
+        Recorder kept = new Recorder();
+        subscribe("a/#", removed);
+        subscribe("a/#", kept);
+        run(new Runnable() {
+            public void run() {
+                connection.removeHandler(utf8("a/#"), removed);
+            }
+        });
+        assertEquals(0, transport.sent(UNSUBSCRIBE.TYPE).size());
+
+        receive("a/b", 1);
+        assertEquals(0, removed.messages.size());
+        assertEquals(1, kept.messages.size());
+        assertEquals(0, received.size());
+    }
+
+    public void testUnsubscribeDropsTheHandlers() throws Exception {
+        connect();
+        Recorder dropped = new Recorder();
+        Recorder other = new Recorder();
+        subscribe("a/#", dropped);
+        subscribe("b/#", other);
+        unsubscribe("a/#");
+
+        // A message the server sent before the UNSUBACK now goes to the listener.
+        receive("a/b", 1);
+        assertEquals(0, dropped.messages.size());
+        assertEquals(1, received.size());
+
+        receive("b/c", 2);
+        assertEquals(1, other.messages.size());
+        assertEquals(2, pubacks());
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Checks the failover host order of each policy, that failed hosts are
+ * skipped until all of them failed, and the failover URI parsing.
+ * </p>
+ */
+public class HostListTest extends TestCase {
+
+    static final URI A = URI.create("tcp://a:1883");
+    static final URI B = URI.create("tcp://b:1883");
+    static final URI C = URI.create("ssl://c:8883");
+
+    public void testRoundRobin() {
+        HostList hosts = new HostList(Arrays.asList(A, B, C), FailoverPolicy.ROUND_ROBIN);
+        assertEquals(A, hosts.next());
+        hosts.connected();
+        hosts.failed();
+        assertEquals(B, hosts.next());
+        hosts.failed();
+        assertEquals(C, hosts.next());
+        hosts.failed();
+        assertTrue(hosts.exhausted());
+        // A new round starts where the last one left off.
+        assertEquals(A, hosts.next());
+        assertFalse(hosts.exhausted());
+        hosts.connected();
+        assertEquals(B, hosts.next());
+    }
+
+    public void testPriority() {
+        HostList hosts = new HostList(Arrays.asList(A, B, C), FailoverPolicy.PRIORITY);
+        assertEquals(A, hosts.next());
+        hosts.failed();
+        assertEquals(B, hosts.next());
+        hosts.connected();
+        // Once through, the next reconnect goes back to the first host.
+        assertEquals(A, hosts.next());
+        hosts.failed();
+        assertEquals(B, hosts.next());
+        hosts.failed();
+        assertEquals(C, hosts.next());
+        hosts.failed();
+        assertEquals(A, hosts.next());
+    }
+
+    public void testLowestLatency() throws Exception {
+        HostList hosts = new HostList(Arrays.asList(A, B), FailoverPolicy.LOWEST_LATENCY);
+        assertEquals(A, hosts.next());
+        Thread.sleep(20);
+        hosts.connected();
+        // B has not been measured yet.
+        assertEquals(B, hosts.next());
+        hosts.connected();
+        assertTrue(hosts.latency(B) < hosts.latency(A));
+        assertEquals(B, hosts.next());
+        hosts.failed();
+        assertEquals(A, hosts.next());
+    }
+
+    public void testSingleHost() {
+        HostList hosts = new HostList(Arrays.asList(A), FailoverPolicy.ROUND_ROBIN);
+        assertEquals(A, hosts.next());
+        hosts.failed();
+        assertTrue(hosts.exhausted());
+        assertEquals(A, hosts.next());
+    }
+
+    public void testParseFailover() throws Exception {
+        List<URI> uris = MQTT.parseFailover("failover:(tcp://a:1883, tcp://b:1883,ssl://c:8883)");
+        assertEquals(Arrays.asList(A, B, C), uris);
+
+        MQTT mqtt = new MQTT();
+        mqtt.setHost("failover:(tcp://a:1883,tcp://b:1883)");
+        assertEquals(Arrays.asList(A, B), mqtt.getHosts());
+        assertEquals(A, mqtt.getHost());
+        mqtt.setHost("ssl://c:8883");
+        assertEquals(Arrays.asList(C), mqtt.getHosts());
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.List;
+
+import org.fusesource.mqtt.codec.DISCONNECT;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * Checks publishes wait for room once the in flight window is full and go
+ * out as acks arrive, and that a disconnect does not need a message id.
+ * </p>
+ */
+public class InflightWindowTest extends ConnectionTestSupport {
+
+    private Result<Void> publish() throws Exception {
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.publish("a/b", new byte[10], QoS.AT_LEAST_ONCE, false, result);
+            }
+        });
+        return result;
+    }
+
+    private void ack(final short id) throws Exception {
+        run(new Runnable() {
+            public void run() {
+                transport.receive(new PUBACK().messageId(id).encode());
+            }
+        });
+    }
+
+    public void testWindowFullHoldsPublishes() throws Exception {
+        mqtt.setMaxInflight(2);
+        connect();
+        Result<Void> first = publish();
+        publish();
+        Result<Void> third = publish();
+
+        List<MQTTFrame> publishes = transport.sent(PUBLISH.TYPE);
+        assertEquals(2, publishes.size());
+        assertEquals(1, connection.overflowDepth());
+
+        short firstId = TestTransport.messageId(publishes.get(0));
+        ack(firstId);
+        assertTrue(first.succeeded);
+        publishes = transport.sent(PUBLISH.TYPE);
+        assertEquals(3, publishes.size());
+        assertEquals(0, connection.overflowDepth());
+        assertFalse(third.done());
+
+        short thirdId = TestTransport.messageId(publishes.get(2));
+        ack(thirdId);
+        assertTrue(third.succeeded);
+    }
+
+    public void testDisconnectWithFullWindow() throws Exception {
+        mqtt.setMaxInflight(MQTT.MAX_INFLIGHT);
+        connect();
+        for (int i = 0; i < MQTT.MAX_INFLIGHT + 10; i++) {
+            publish();
+        }
+        assertEquals(MQTT.MAX_INFLIGHT, transport.sent(PUBLISH.TYPE).size());
+
+        final Result<Void> disconnected = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.disconnect(disconnected);
+            }
+        });
+        assertEquals(1, transport.sent(DISCONNECT.TYPE).size());
+        assertTrue(disconnected.succeeded);
+        assertTrue(transport.isClosed());
+        connection = null;
+    }
+
+    public void testWindowLeavesIdsForControlFrames() {
+        assertEquals(MQTT.MAX_INFLIGHT, new MQTT().getMaxInflight());
+        try {
+            mqtt.setMaxInflight(0xFFFF);
+            fail("expected the window to be limited");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
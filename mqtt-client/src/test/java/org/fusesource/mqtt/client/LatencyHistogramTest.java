@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>
+ * Checks the histogram buckets cover every value within their precision
+ * and the percentiles it reports.
+ * </p>
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() {
+        int previous = -1;
+        for (long value = 0; value < 1000000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(LatencyHistogram.highestValue(index) >= value);
+            // Within about 3% of the value.
+            assertTrue(LatencyHistogram.highestValue(index) - value <= value / 32);
+            previous = index;
+        }
+        assertEquals(LatencyHistogram.index(Long.MAX_VALUE), LatencyHistogram.index(Long.MAX_VALUE - 1));
+        new LatencyHistogram().record(Long.MAX_VALUE);
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500, snapshot.getMean());
+        assertEquals(1000, snapshot.getMax());
+        assertTrue(Math.abs(snapshot.getP50() - 500) <= 16);
+        assertTrue(Math.abs(snapshot.getP90() - 900) <= 29);
+        assertTrue(Math.abs(snapshot.getP99() - 990) <= 31);
+        assertTrue(snapshot.getP999() <= 1000);
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getP99());
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Checks the recorded QoS 2 message ids survive reopening the journal,
+ * also while syncs run on another thread.
+ * </p>
+ */
+public class MappedDedupJournalTest extends TestCase {
+
+    public void testReopen() throws Exception {
+        File file = new File("target/test-data/dedup.journal");
+        file.delete();
+        MappedDedupJournal journal = new MappedDedupJournal(file);
+        journal.setSyncPolicy(SyncPolicy.NEVER);
+        journal.set((short) 1);
+        journal.set((short) -1);
+        journal.set((short) 1000);
+        journal.clear((short) 1000);
+        assertTrue(journal.get((short) 1));
+        assertFalse(journal.get((short) 2));
+        journal.close();
+
+        journal = new MappedDedupJournal(file);
+        BitSet ids = journal.load();
+        assertEquals(2, ids.cardinality());
+        assertTrue(ids.get(1));
+        assertTrue(ids.get(0xFFFF));
+        journal.clearAll();
+        assertTrue(journal.load().isEmpty());
+        journal.close();
+    }
+
+    public void testSyncWhileRecording() throws Exception {
+        File file = new File("target/test-data/dedup-sync.journal");
+        file.delete();
+        final MappedDedupJournal journal = new MappedDedupJournal(file);
+        journal.setSyncInterval(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread syncer = new Thread("syncer") {
+            public void run() {
+                while( !done.get() ) {
+                    journal.sync();
+                }
+            }
+        };
+        syncer.start();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                journal.set((short) i);
+                journal.clear((short) (i - 1));
+            }
+            // Closing waits for a sync in progress before unmapping the file.
+            journal.close();
+        } finally {
+            done.set(true);
+            syncer.join();
+        }
+        try {
+            journal.get((short) 1);
+            fail("Expected the journal to be closed");
+        } catch (IllegalStateException expected) {
+        }
+
+        MappedDedupJournal reopened = new MappedDedupJournal(file);
+        BitSet ids = reopened.load();
+        assertEquals(1, ids.cardinality());
+        assertTrue(ids.get(9999));
+        reopened.close();
+    }
+}
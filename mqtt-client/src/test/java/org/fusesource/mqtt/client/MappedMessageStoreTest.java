@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Checks the store keeps unacked messages across reopening, deletes
+ * acked segments and ignores a torn record at the end of the log.
+ * </p>
+ */
+public class MappedMessageStoreTest extends TestCase {
+
+    File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = new File("target/test-data/" + getName());
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if( children!=null ) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private MappedMessageStore open() {
+        MappedMessageStore store = new MappedMessageStore(directory);
+        store.setSegmentSize(1024);
+        store.setSyncPolicy(SyncPolicy.NEVER);
+        return store;
+    }
+
+    private static PublishRequest message(int i) {
+        return new PublishRequest("topic/" + i, new byte[100], i % 2 == 0 ? QoS.AT_LEAST_ONCE : QoS.EXACTLY_ONCE, i % 3 == 0);
+    }
+
+    public void testReopenAndCompact() throws Exception {
+        MappedMessageStore store = open();
+        long[] keys = new long[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = store.add(message(i));
+        }
+        // Ack all but the first and every 10th.
+        for (int i = 1; i < keys.length; i++) {
+            if( i % 10 != 0 ) {
+                store.remove(keys[i]);
+            }
+        }
+        assertTrue(store.segmentCount() <= store.getMaxSegments());
+        store.close();
+
+        store = open();
+        List<StoredMessage> loaded = store.load();
+        assertEquals(10, loaded.size());
+        for (int i = 0; i < loaded.size(); i++) {
+            StoredMessage message = loaded.get(i);
+            assertEquals(keys[i * 10], message.getKey());
+            assertEquals("topic/" + (i * 10), message.getTopic().toString());
+            assertEquals(message(i * 10).getQos(), message.getQos());
+            assertEquals(message(i * 10).isRetain(), message.isRetain());
+            assertEquals(100, message.getPayload().length);
+            store.remove(message.getKey());
+        }
+        assertTrue(store.add(message(0)) > keys[keys.length - 1]);
+        assertEquals(1, store.segmentCount());
+        store.close();
+    }
+
+    public void testSyncWhileCompacting() throws Exception {
+        final MappedMessageStore store = open();
+        store.setSyncPolicy(SyncPolicy.PERIODIC);
+        store.setSyncInterval(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread syncer = new Thread("syncer") {
+            public void run() {
+                while( !done.get() ) {
+                    store.sync();
+                }
+            }
+        };
+        syncer.start();
+        long kept = 0;
+        try {
+            for (int i = 0; i < 2000; i++) {
+                long key = store.add(message(i));
+                if( i == 0 ) {
+                    kept = key;
+                } else {
+                    store.remove(key);
+                }
+            }
+        } finally {
+            done.set(true);
+            syncer.join();
+        }
+        assertTrue(store.segmentCount() <= store.getMaxSegments());
+        // Let the periodic syncs still scheduled finish so none overlaps the compaction below.
+        store.setSyncPolicy(SyncPolicy.NEVER);
+        Thread.sleep(100);
+        store.sync();
+        // Segments compacted away during a sync are deleted by the next compaction.
+        store.remove(store.add(message(1)));
+        assertEquals(store.segmentCount(), directory.list().length);
+        assertEquals(kept, store.load().get(0).getKey());
+        store.close();
+
+        MappedMessageStore reopened = open();
+        assertEquals(1, reopened.load().size());
+        reopened.close();
+    }
+
+    public void testTornRecordEndsTheLog() throws Exception {
+        MappedMessageStore store = open();
+        store.add(message(1));
+        store.add(message(2));
+        store.close();
+
+        // Corrupt the last byte of the second record.
+        File segment = directory.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        int recordSize = 8 + 1 + 8 + 1 + 2 + "topic/1".length() + 4 + 100;
+        raf.seek(2 * recordSize - 1);
+        raf.write(1);
+        raf.close();
+
+        store = open();
+        List<StoredMessage> loaded = store.load();
+        assertEquals(1, loaded.size());
+        assertEquals("topic/1", loaded.get(0).getTopic().toString());
+        store.add(message(3));
+        store.close();
+
+        store = open();
+        assertEquals(2, store.load().size());
+        store.close();
+    }
+}
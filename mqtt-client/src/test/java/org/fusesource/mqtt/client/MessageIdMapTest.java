@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>
+ * Checks the message id table against the way a connection hands out ids.
+ * </p>
+ */
+public class MessageIdMapTest extends TestCase {
+
+    public void testSequentialIdsWrapAround() {
+        MessageIdMap<String> map = new MessageIdMap<String>();
+        // ids handed out by getNextMessageId() wrap from 0xFFFF back to 1.
+        for (int i = 0xFFF8; i < 0x10000 + 8; i++) {
+            short id = (short) i;
+            assertNull(map.put(id, "m" + (i & 0xFFFF)));
+            map.remove((short) (i - 4));
+        }
+        assertEquals(4, map.size());
+        assertEquals(16, map.capacity());
+        assertEquals("m7", map.get((short) 7));
+        assertFalse(map.containsKey((short) 3));
+    }
+
+    public void testGrowsWhenSlotsCollide() {
+        MessageIdMap<Integer> map = new MessageIdMap<Integer>();
+        for (int i = 1; i <= 1000; i++) {
+            map.put((short) i, i);
+        }
+        assertEquals(1000, map.size());
+        assertEquals(1024, map.capacity());
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(Integer.valueOf(i), map.get((short) i));
+        }
+        assertEquals(1000, map.values().size());
+        assertEquals(Integer.valueOf(500), map.remove((short) 500));
+        assertNull(map.get((short) 500));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get((short) 1));
+    }
+
+    public void testFullIdRange() {
+        MessageIdMap<Integer> map = new MessageIdMap<Integer>();
+        for (int i = 0; i < MessageIdMap.MAX_CAPACITY; i++) {
+            map.put((short) i, i);
+        }
+        assertEquals(MessageIdMap.MAX_CAPACITY, map.size());
+        assertEquals(Integer.valueOf(0xFFFF), map.get((short) 0xFFFF));
+    }
+
+}
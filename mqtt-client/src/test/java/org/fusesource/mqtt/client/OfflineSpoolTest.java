@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * Checks a connection spools its publishes while offline and publishes
+ * them once it is up: a batch per dispatch, and acking them to the
+ * spool only once the server acked them.
+ * </p>
+ */
+public class OfflineSpoolTest extends ConnectionTestSupport {
+
+    File directory;
+    CountingSpool spool;
+
+    /**
+     * Counts the polls, to check an empty spool is not read.
+     */
+    static class CountingSpool extends DiskSpool {
+        int polls;
+
+        CountingSpool(File directory) {
+            super(directory);
+        }
+
+        @Override
+        public synchronized PublishRequest poll() throws IOException {
+            polls++;
+            return super.poll();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File("target/test-data/" + getName());
+        File[] files = directory.listFiles();
+        if( files!=null ) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        spool = new CountingSpool(directory);
+        spool.setSegmentSize(1024);
+        mqtt.setOfflineSpool(spool);
+        connection = mqtt.callbackConnection();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        spool.close();
+    }
+
+    private Result<Void> publish(final QoS qos) throws Exception {
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.publish("a/b", new byte[100], qos, false, result);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Connects and lets the connection drain, as it does once the server accepted the login.
+     */
+    private void connectAndDrain() throws Exception {
+        connect();
+        run(new Runnable() {
+            public void run() {
+                transport.flush();
+            }
+        });
+    }
+
+    public void testPublishesSpooledWhileOffline() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            assertTrue(publish(QoS.AT_LEAST_ONCE).succeeded);
+        }
+        assertFalse(spool.isEmpty());
+        int segments = directory.list().length;
+        assertTrue(segments > 2);
+
+        connectAndDrain();
+        assertEquals(30, transport.sent(PUBLISH.TYPE).size());
+        assertTrue(spool.isEmpty());
+        // Nothing was acked yet, so a crash would publish them again.
+        assertEquals(segments, directory.list().length);
+
+        for (final MQTTFrame frame : transport.sent(PUBLISH.TYPE)) {
+            run(new Runnable() {
+                public void run() {
+                    transport.receive(new PUBACK().messageId(TestTransport.messageId(frame)).encode());
+                }
+            });
+        }
+        assertEquals(1, directory.list().length);
+    }
+
+    public void testFailedDrainIsSpooledAgain() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            publish(QoS.AT_LEAST_ONCE);
+        }
+        mqtt.setReconnectAttemptsMax(0);
+        connection = mqtt.callbackConnection();
+        connectAndDrain();
+        assertEquals(3, transport.sent(PUBLISH.TYPE).size());
+        // Fails the drained publishes before the server acked them.
+        run(new Runnable() {
+            public void run() {
+                connection.handleSessionFailure(new IOException("lost"));
+            }
+        });
+        assertFalse(spool.isEmpty());
+
+        // A new connection over the same spool publishes them again.
+        connection = null;
+        connectAndDrain();
+        assertEquals(3, transport.sent(PUBLISH.TYPE).size());
+        assertTrue(spool.isEmpty());
+    }
+
+    public void testDrainIsBatched() throws Exception {
+        for (int i = 0; i < 250; i++) {
+            publish(QoS.AT_MOST_ONCE);
+        }
+        connectAndDrain();
+        drain();
+        drain();
+        assertEquals(250, transport.sent(PUBLISH.TYPE).size());
+        // A batch per dispatch, so the socket got the first one before the rest was read.
+        assertTrue(transport.socketWrites > 1);
+        assertTrue(spool.isEmpty());
+    }
+
+    public void testPublishesQueueBehindSpool() throws Exception {
+        publish(QoS.AT_LEAST_ONCE);
+        connect();
+        // Still spooled, so the new publish has to go after it.
+        publish(QoS.AT_LEAST_ONCE);
+        assertEquals(0, transport.sent(PUBLISH.TYPE).size());
+        run(new Runnable() {
+            public void run() {
+                transport.flush();
+            }
+        });
+        assertEquals(2, transport.sent(PUBLISH.TYPE).size());
+    }
+
+    public void testDroppedMessagesFail() throws Exception {
+        spool.setMinQoS(QoS.AT_LEAST_ONCE);
+        Result<Void> result = publish(QoS.AT_MOST_ONCE);
+        assertTrue(result.failure instanceof QueueFullException);
+        assertTrue(spool.isEmpty());
+    }
+
+    public void testEmptySpoolIsNotPolled() throws Exception {
+        connectAndDrain();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(publish(QoS.AT_MOST_ONCE).succeeded);
+        }
+        assertEquals(10, transport.sent(PUBLISH.TYPE).size());
+        assertEquals(0, spool.polls);
+    }
+}
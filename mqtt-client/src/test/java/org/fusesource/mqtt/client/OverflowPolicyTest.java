@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * Checks what each overflow policy does with a publish once the overflow
+ * is full, and that QoS 1 and 2 publishes are never dropped silently.
+ * </p>
+ */
+public class OverflowPolicyTest extends ConnectionTestSupport {
+
+    private Result<Void> publish(final QoS qos) throws Exception {
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.publish("a/b", new byte[10], qos, false, result);
+            }
+        });
+        return result;
+    }
+
+    private void fillOverflow(OverflowPolicy policy) throws Exception {
+        mqtt.setOverflowCapacity(2);
+        mqtt.setOverflowPolicy(policy);
+        connect();
+        transport.full = true;
+    }
+
+    public void testDropNewest() throws Exception {
+        fillOverflow(OverflowPolicy.DROP_NEWEST);
+        Result<Void> first = publish(QoS.AT_MOST_ONCE);
+        publish(QoS.AT_LEAST_ONCE);
+        assertFalse(first.done());
+        assertEquals(2, connection.overflowDepth());
+
+        Result<Void> dropped = publish(QoS.AT_MOST_ONCE);
+        assertTrue(dropped.succeeded);
+        assertEquals(1, connection.overflowDropped());
+
+        Result<Void> rejected = publish(QoS.AT_LEAST_ONCE);
+        assertTrue(rejected.failure instanceof QueueFullException);
+        rejected = publish(QoS.EXACTLY_ONCE);
+        assertTrue(rejected.failure instanceof QueueFullException);
+        assertEquals(1, connection.overflowDropped());
+        assertEquals(2, connection.overflowDepth());
+    }
+
+    public void testDropOldestQos0() throws Exception {
+        fillOverflow(OverflowPolicy.DROP_OLDEST_QOS0);
+        Result<Void> oldest = publish(QoS.AT_MOST_ONCE);
+        Result<Void> acked = publish(QoS.AT_LEAST_ONCE);
+
+        // Makes room by dropping the QoS 0 publish.
+        Result<Void> newest = publish(QoS.AT_LEAST_ONCE);
+        assertTrue(oldest.succeeded);
+        assertFalse(newest.done());
+        assertEquals(1, connection.overflowDropped());
+
+        // Only QoS 1 publishes are left, which are never dropped.
+        Result<Void> rejected = publish(QoS.AT_MOST_ONCE);
+        assertTrue(rejected.failure instanceof QueueFullException);
+        assertFalse(acked.done());
+        assertEquals(2, connection.overflowDepth());
+    }
+
+    public void testFail() throws Exception {
+        fillOverflow(OverflowPolicy.FAIL);
+        publish(QoS.AT_MOST_ONCE);
+        publish(QoS.AT_MOST_ONCE);
+        Result<Void> rejected = publish(QoS.AT_MOST_ONCE);
+        assertTrue(rejected.failure instanceof QueueFullException);
+        assertEquals(0, connection.overflowDropped());
+    }
+
+    public void testRefillerRunsOnceTheOverflowEmpties() throws Exception {
+        connect();
+        final int[] refills = new int[1];
+        run(new Runnable() {
+            public void run() {
+                connection.refiller(new Runnable() {
+                    public void run() {
+                        refills[0]++;
+                    }
+                });
+                // Nothing was queued, so there is nothing to refill.
+                transport.refill();
+            }
+        });
+        assertEquals(0, refills[0]);
+
+        transport.full = true;
+        publish(QoS.AT_MOST_ONCE);
+        run(new Runnable() {
+            public void run() {
+                transport.refill();
+            }
+        });
+        drain();
+        assertEquals(1, transport.sent(PUBLISH.TYPE).size());
+        assertEquals(1, refills[0]);
+    }
+
+    public void testBlockBoundsConcurrentProducers() throws Exception {
+        mqtt.setOverflowCapacity(10);
+        mqtt.setOverflowPolicy(OverflowPolicy.BLOCK);
+        connect();
+        transport.full = true;
+        final FutureConnection[] future = new FutureConnection[1];
+        run(new Runnable() {
+            public void run() {
+                future[0] = new FutureConnection(connection);
+            }
+        });
+
+        Thread[] producers = new Thread[8];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread("producer " + i) {
+                public void run() {
+                    for (int j = 0; j < 25; j++) {
+                        future[0].publish("a/b", new byte[10], QoS.AT_LEAST_ONCE, false);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        for (Thread producer : producers) {
+            while( producer.isAlive() && System.currentTimeMillis() < deadline ) {
+                Thread.sleep(5);
+                // Lets the queued publishes out, then stops taking frames again.
+                run(new Runnable() {
+                    public void run() {
+                        transport.refill();
+                        transport.full = true;
+                    }
+                });
+            }
+            assertFalse(producer.isAlive());
+        }
+        run(new Runnable() {
+            public void run() {
+                transport.refill();
+            }
+        });
+        assertEquals(200, transport.sent(PUBLISH.TYPE).size());
+        assertTrue("high water mark: " + connection.overflowHighWaterMark(), connection.overflowHighWaterMark() <= 10);
+    }
+}
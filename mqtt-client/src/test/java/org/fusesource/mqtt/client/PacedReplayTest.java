@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.List;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PINGREQ;
+import org.fusesource.mqtt.codec.PUBACK;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks the requests resent after a reconnect go out at the replay rate
+ * and that acks and keep alive pings are not held up behind them.
+ * </p>
+ */
+public class PacedReplayTest extends ConnectionTestSupport {
+
+    private TestTransport replayed;
+
+    private void publish(final int count) throws Exception {
+        run(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    connection.publish("a/b", new byte[10], QoS.AT_LEAST_ONCE, false, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Establishes the session again over a new transport, like a reconnect does.
+     */
+    private void reconnect() throws Exception {
+        replayed = new TestTransport(connection.getDispatchQueue());
+        run(new Runnable() {
+            public void run() {
+                connection.onSessionEstablished(replayed);
+                connection.restoreState();
+                replayed.flush();
+            }
+        });
+    }
+
+    private int sent(byte type) throws Exception {
+        drain();
+        return replayed.sent(type).size();
+    }
+
+    private void awaitPublishes(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( sent(PUBLISH.TYPE) < count && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, sent(PUBLISH.TYPE));
+    }
+
+    public void testReplayIsPaced() throws Exception {
+        mqtt.setReplayRate(20);
+        connect();
+        publish(10);
+        assertEquals(10, transport.sent(PUBLISH.TYPE).size());
+
+        long start = System.nanoTime();
+        reconnect();
+        // The bucket holds a tenth of a second worth of messages, the tokens
+        // built up while they were sent let one more through.
+        assertTrue(sent(PUBLISH.TYPE) <= 3);
+        awaitPublishes(10);
+        assertTrue(System.nanoTime() - start >= 300 * 1000000L);
+
+        List<MQTTFrame> publishes = replayed.sent(PUBLISH.TYPE);
+        for (MQTTFrame frame : publishes) {
+            assertTrue(frame.dup());
+        }
+        assertEquals(TestTransport.messageId(transport.sent(PUBLISH.TYPE).get(9)), TestTransport.messageId(publishes.get(9)));
+    }
+
+    public void testNewPublishesWaitBehindReplay() throws Exception {
+        mqtt.setReplayRate(20);
+        connect();
+        publish(4);
+        reconnect();
+        publish(1);
+        assertTrue(sent(PUBLISH.TYPE) < 5);
+        awaitPublishes(5);
+        assertFalse(replayed.sent(PUBLISH.TYPE).get(4).dup());
+    }
+
+    public void testAcksSkipReplay() throws Exception {
+        mqtt.setReplayRate(1);
+        connect();
+        publish(5);
+        reconnect();
+        int publishes = sent(PUBLISH.TYPE);
+        assertTrue(publishes < 5);
+
+        final MQTTFrame incoming = new PUBLISH().qos(QoS.AT_LEAST_ONCE).messageId((short) 7)
+                .topicName(utf8("c/d")).payload(new Buffer(10)).encode();
+        run(new Runnable() {
+            public void run() {
+                replayed.receive(incoming);
+            }
+        });
+        assertEquals(1, received.size());
+        List<MQTTFrame> acks = replayed.sent(PUBACK.TYPE);
+        assertEquals(1, acks.size());
+        assertEquals(7, TestTransport.messageId(acks.get(0)));
+        assertEquals(publishes, sent(PUBLISH.TYPE));
+    }
+
+    public void testAcksWaitingForRoomSkipReplay() throws Exception {
+        mqtt.setReplayRate(1);
+        connect();
+        publish(5);
+        reconnect();
+        int publishes = sent(PUBLISH.TYPE);
+        assertTrue(publishes < 5);
+
+        final MQTTFrame incoming = new PUBLISH().qos(QoS.AT_LEAST_ONCE).messageId((short) 7)
+                .topicName(utf8("c/d")).payload(new Buffer(10)).encode();
+        run(new Runnable() {
+            public void run() {
+                replayed.full = true;
+                replayed.receive(incoming);
+            }
+        });
+        assertEquals(0, sent(PUBACK.TYPE));
+        run(new Runnable() {
+            public void run() {
+                replayed.refill();
+            }
+        });
+        assertEquals(1, sent(PUBACK.TYPE));
+        assertEquals(publishes, sent(PUBLISH.TYPE));
+    }
+
+    public void testPingsSkipReplay() throws Exception {
+        mqtt.setReplayRate(1);
+        mqtt.setKeepAlive((short) 1);
+        connect();
+        publish(5);
+        reconnect();
+        long deadline = System.currentTimeMillis() + 3000;
+        while( sent(PINGREQ.TYPE) == 0 && System.currentTimeMillis() < deadline ) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sent(PINGREQ.TYPE));
+        assertTrue(sent(PUBLISH.TYPE) < 5);
+    }
+}
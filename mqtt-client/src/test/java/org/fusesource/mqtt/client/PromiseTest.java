@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>
+ * Checks a Promise hands its result to both the waiting thread and the
+ * callback, and that the virtual thread executor runs its tasks when the
+ * JVM supports virtual threads.
+ * </p>
+ */
+public class PromiseTest extends TestCase {
+
+    public void testCompletedFromAnotherThread() throws Exception {
+        final Promise<String> promise = new Promise<String>();
+        new Thread() {
+            public void run() {
+                promise.onSuccess("done");
+            }
+        }.start();
+        assertEquals("done", promise.await(5, TimeUnit.SECONDS));
+        assertEquals("done", promise.await());
+    }
+
+    public void testFailure() throws Exception {
+        Promise<String> promise = new Promise<String>();
+        promise.onFailure(new IOException("broken"));
+        try {
+            promise.await();
+            fail("expected the failure to be thrown");
+        } catch (IOException e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    public void testTimeout() throws Exception {
+        Promise<String> promise = new Promise<String>();
+        try {
+            promise.await(10, TimeUnit.MILLISECONDS);
+            fail("expected a timeout");
+        } catch (TimeoutException e) {
+        }
+    }
+
+    public void testThenBeforeAndAfterCompletion() throws Exception {
+        final String[] seen = new String[2];
+        Promise<String> before = new Promise<String>();
+        before.then(new Callback<String>() {
+            public void onSuccess(String value) {
+                seen[0] = value;
+            }
+            public void onFailure(Throwable value) {
+            }
+        });
+        before.onSuccess("first");
+        assertEquals("first", seen[0]);
+
+        Promise<String> after = new Promise<String>();
+        after.onSuccess("second");
+        after.then(new Callback<String>() {
+            public void onSuccess(String value) {
+                seen[1] = value;
+            }
+            public void onFailure(Throwable value) {
+            }
+        });
+        assertEquals("second", seen[1]);
+    }
+
+    public void testVirtualThreadExecutor() throws Exception {
+        Executor executor = MQTT.getVirtualThreadExecutor();
+        if( executor == null ) {
+            // Virtual threads need Java 21.
+            return;
+        }
+        assertSame(executor, MQTT.getVirtualThreadExecutor());
+        final int tasks = 1000;
+        final CountDownLatch done = new CountDownLatch(tasks);
+        final Promise<Void> gate = new Promise<Void>();
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        gate.await();
+                        done.countDown();
+                    } catch (Exception e) {
+                    }
+                }
+            });
+        }
+        gate.onSuccess(null);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * Checks a batch published from another thread waits for room for the
+ * whole batch under the BLOCK overflow policy, and does not depend on
+ * the caller's list once the call returned.
+ * </p>
+ */
+public class PublishBatchTest extends ConnectionTestSupport {
+
+    FutureConnection future;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mqtt.setOverflowPolicy(OverflowPolicy.BLOCK);
+        mqtt.setOverflowCapacity(10);
+        connect();
+        run(new Runnable() {
+            public void run() {
+                future = new FutureConnection(connection);
+            }
+        });
+    }
+
+    private static List<PublishRequest> batch(int size) {
+        ArrayList<PublishRequest> rc = new ArrayList<PublishRequest>();
+        for (int i = 0; i < size; i++) {
+            rc.add(new PublishRequest("a/" + i, new byte[10], QoS.AT_LEAST_ONCE, false));
+        }
+        return rc;
+    }
+
+    public void testWaitsForRoomForTheBatch() throws Exception {
+        run(new Runnable() {
+            public void run() {
+                transport.full = true;
+                for (int i = 0; i < 8; i++) {
+                    connection.publish("b", new byte[10], QoS.AT_LEAST_ONCE, false, null);
+                }
+            }
+        });
+        assertEquals(8, connection.overflowDepth());
+
+        final List<PublishRequest> messages = batch(5);
+        Thread producer = new Thread("producer") {
+            public void run() {
+                future.publishBatch(messages);
+            }
+        };
+        producer.start();
+        producer.join(200);
+        // A single message would fit, the batch does not.
+        assertTrue(producer.isAlive());
+
+        run(new Runnable() {
+            public void run() {
+                transport.refill();
+            }
+        });
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        drain();
+        assertEquals(13, transport.sent(PUBLISH.TYPE).size());
+    }
+
+    public void testCallerMayReuseTheList() throws Exception {
+        List<PublishRequest> messages = batch(5);
+        connection.getDispatchQueue().suspend();
+        try {
+            future.publishBatch(messages);
+            messages.clear();
+        } finally {
+            connection.getDispatchQueue().resume();
+        }
+        drain();
+        assertEquals(5, transport.sent(PUBLISH.TYPE).size());
+    }
+}
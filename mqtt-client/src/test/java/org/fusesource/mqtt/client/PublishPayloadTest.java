@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * Checks QoS 0 publishes are handed to the codec without building a frame
+ * and that their callback does not complete while the codec still
+ * references the caller's payload.
+ * </p>
+ */
+public class PublishPayloadTest extends ConnectionTestSupport {
+
+    // Larger than the codec's write buffer, so it is not copied.
+    private static final int LARGE = 1024 * 1024;
+
+    private Result<Void> publish(final byte[] payload, final boolean[] afterPublish) throws Exception {
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.publish("a/b", payload, QoS.AT_MOST_ONCE, false, result);
+                afterPublish[0] = result.done();
+            }
+        });
+        return result;
+    }
+
+    public void testSmallPayloadCompletesAtOffer() throws Exception {
+        connect();
+        boolean[] afterPublish = new boolean[1];
+        Result<Void> result = publish(new byte[10], afterPublish);
+        assertTrue(afterPublish[0]);
+        assertTrue(result.succeeded);
+        assertEquals(1, transport.publishCommands);
+    }
+
+    public void testLargePayloadCompletesOnceWritten() throws Exception {
+        connect();
+        byte[] payload = new byte[LARGE];
+        Arrays.fill(payload, (byte) 7);
+        boolean[] afterPublish = new boolean[1];
+        Result<Void> result = publish(payload, afterPublish);
+        // The transport only writes to the socket from a later task.
+        assertFalse(afterPublish[0]);
+        assertTrue(result.succeeded);
+        assertEquals(1, transport.publishCommands);
+        assertTrue(transport.bytesWritten > LARGE);
+
+        List<MQTTFrame> publishes = transport.sent(PUBLISH.TYPE);
+        assertEquals(1, publishes.size());
+        Buffer body = publishes.get(0).buffers[1];
+        assertEquals(LARGE, body.length);
+        assertEquals(7, body.get(LARGE - 1));
+    }
+
+    public void testCallbacksCompleteInOrder() throws Exception {
+        connect();
+        final Result<Void> large = new Result<Void>();
+        final Result<Void> small = new Result<Void>();
+        final boolean[] smallDone = new boolean[1];
+        run(new Runnable() {
+            public void run() {
+                connection.publish("a/b", new byte[LARGE], QoS.AT_MOST_ONCE, false, large);
+                connection.publish("a/b", new byte[10], QoS.AT_MOST_ONCE, false, small);
+                smallDone[0] = small.done();
+            }
+        });
+        assertFalse(smallDone[0]);
+        assertTrue(large.succeeded);
+        assertTrue(small.succeeded);
+    }
+
+    public void testUnwrittenPayloadFailsOnKill() throws Exception {
+        connect();
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.publish("a/b", new byte[LARGE], QoS.AT_MOST_ONCE, false, result);
+                connection.kill(null);
+            }
+        });
+        assertNotNull(result.failure);
+        connection = null;
+    }
+
+    public void testTracedFramesAreBuilt() throws Exception {
+        mqtt.setTracer(new FrameCapture(10));
+        connect();
+        boolean[] afterPublish = new boolean[1];
+        Result<Void> result = publish(new byte[10], afterPublish);
+        assertTrue(result.succeeded);
+        assertEquals(0, transport.publishCommands);
+        assertEquals(1, transport.sent(PUBLISH.TYPE).size());
+    }
+
+    public void testPublishWhileReconnecting() throws Exception {
+        // Nothing listens there, so the reconnect it starts keeps failing.
+        mqtt.setHost("localhost", 1);
+        mqtt.setReconnectDelay(60000);
+        connect();
+        final Result<Void> result = new Result<Void>();
+        run(new Runnable() {
+            public void run() {
+                connection.handleSessionFailure(new IOException("test"));
+                connection.publish("a/b", new byte[10], QoS.AT_MOST_ONCE, false, result);
+            }
+        });
+        assertFalse(result.done());
+
+        final TestTransport reconnected = new TestTransport(connection.getDispatchQueue());
+        run(new Runnable() {
+            public void run() {
+                connection.onSessionEstablished(reconnected);
+                connection.restoreState();
+            }
+        });
+        drain();
+        assertTrue(result.succeeded);
+        assertEquals(1, reconnected.sent(PUBLISH.TYPE).size());
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks the stage times a publish trace reports and how the stage
+ * histograms record them.
+ * </p>
+ */
+public class PublishTraceTest extends TestCase {
+
+    static final long MS = 1000000L;
+
+    public void testStages() {
+        PublishTrace trace = new PublishTrace(utf8("a/b"), QoS.AT_LEAST_ONCE, 1 * MS);
+        trace.queuedAt = 1 * MS;
+        trace.offeredAt = 3 * MS;
+        trace.flushedAt = 4 * MS;
+        trace.ackedAt = 10 * MS;
+        assertEquals(2 * MS, trace.getQueueTime());
+        assertEquals(1 * MS, trace.getTransportTime());
+        assertEquals(6 * MS, trace.getBrokerTime());
+        assertEquals(9 * MS, trace.getTotalTime());
+
+        PublishStageHistograms histograms = new PublishStageHistograms();
+        histograms.onPublishTraced(trace);
+        assertEquals(1, histograms.getBroker().getCount());
+        assertEquals(9000, histograms.getTotal().snapshot().getMax());
+    }
+
+    public void testAtMostOnceEndsWhenFlushed() {
+        PublishTrace trace = new PublishTrace(utf8("a/b"), QoS.AT_MOST_ONCE, 1 * MS);
+        trace.offeredAt = 2 * MS;
+        trace.flushedAt = 5 * MS;
+        assertEquals(0, trace.getBrokerTime());
+        assertEquals(4 * MS, trace.getTotalTime());
+
+        PublishStageHistograms histograms = new PublishStageHistograms();
+        histograms.onPublishTraced(trace);
+        assertEquals(0, histograms.getBroker().getCount());
+        assertEquals(1, histograms.getTransport().getCount());
+    }
+}
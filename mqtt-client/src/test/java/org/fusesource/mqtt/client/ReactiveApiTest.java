@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Checks a reactive subscription only delivers the messages its subscriber
+ * requested and picks up again once it requests more.
+ * </p>
+ */
+public class ReactiveApiTest extends BrokerTestSupport {
+
+    public void testDemand() throws Exception {
+        MQTT mqtt = new MQTT();
+        mqtt.setHost("localhost", port);
+
+        ReactiveConnection connection = mqtt.reactiveConnection();
+        connection.connect().await();
+
+        final LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+        final Promise<Subscription> subscribed = new Promise<Subscription>();
+        final Promise<Void> completed = new Promise<Void>();
+        connection.subscribe(new Topic("foo", QoS.AT_LEAST_ONCE)).subscribe(new Subscriber<Message>() {
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(2);
+                subscribed.onSuccess(subscription);
+            }
+            public void onNext(Message message) {
+                message.ack();
+                received.add(message);
+            }
+            public void onError(Throwable error) {
+                completed.onFailure(error);
+            }
+            public void onComplete() {
+                completed.onSuccess(null);
+            }
+        });
+        Subscription subscription = subscribed.await(5, TimeUnit.SECONDS);
+
+        // Publishing on another connection, since this one stops reading once the demand is met.
+        BlockingConnection publisher = mqtt.blockingConnection();
+        publisher.connect();
+        for (int i = 0; i < 5; i++) {
+            publisher.publish("foo", ("Hello " + i).getBytes(), QoS.AT_LEAST_ONCE, false);
+        }
+
+        assertEquals("Hello 0", new String(received.poll(5, TimeUnit.SECONDS).getPayload()));
+        assertEquals("Hello 1", new String(received.poll(5, TimeUnit.SECONDS).getPayload()));
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+
+        subscription.request(3);
+        for (int i = 2; i < 5; i++) {
+            assertEquals("Hello " + i, new String(received.poll(5, TimeUnit.SECONDS).getPayload()));
+        }
+
+        publisher.disconnect();
+        connection.disconnect().await();
+        completed.await(5, TimeUnit.SECONDS);
+    }
+}
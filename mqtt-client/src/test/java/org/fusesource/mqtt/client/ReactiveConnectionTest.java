@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.PUBLISH;
+import org.fusesource.mqtt.codec.SUBACK;
+import org.fusesource.mqtt.codec.SUBSCRIBE;
+import org.fusesource.mqtt.codec.UNSUBSCRIBE;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Runs a ReactiveConnection over a {@link TestTransport} to check when it
+ * suspends reading for its subscribers.
+ * </p>
+ */
+public class ReactiveConnectionTest extends ConnectionTestSupport {
+
+    private ReactiveConnection reactive;
+
+    /**
+     * Records what the subscription gives it, requesting the initial demand on subscribe.
+     */
+    static class Recorder implements Subscriber<Message> {
+        final List<Message> messages = new ArrayList<Message>();
+        final long initialDemand;
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        Recorder(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if( initialDemand > 0 ) {
+                subscription.request(initialDemand);
+            }
+        }
+
+        public void onNext(Message message) {
+            message.ack();
+            messages.add(message);
+        }
+
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private void establish() throws Exception {
+        connection = mqtt.callbackConnection();
+        reactive = new ReactiveConnection(connection);
+        transport = new TestTransport(connection.getDispatchQueue());
+        run(new Runnable() {
+            public void run() {
+                connection.onSessionEstablished(transport);
+            }
+        });
+    }
+
+    /**
+     * @return the message id of the SUBSCRIBE it sent.
+     */
+    private short subscribe(Recorder subscriber) throws Exception {
+        reactive.subscribe(new Topic("a/#", QoS.AT_LEAST_ONCE)).subscribe(subscriber);
+        drain();
+        List<MQTTFrame> subscribes = transport.sent(SUBSCRIBE.TYPE);
+        assertEquals(1, subscribes.size());
+        return TestTransport.messageId(subscribes.get(0));
+    }
+
+    private void suback(short id, int granted) throws Exception {
+        final MQTTFrame frame = new SUBACK().messageId(id).grantedQos(new byte[]{(byte) granted}).encode();
+        run(new Runnable() {
+            public void run() {
+                transport.receive(frame);
+            }
+        });
+    }
+
+    private void receive(int id) throws Exception {
+        final MQTTFrame frame = new PUBLISH().qos(QoS.AT_LEAST_ONCE).messageId((short) id)
+                .topicName(utf8("a/b")).payload(new Buffer(10)).encode();
+        run(new Runnable() {
+            public void run() {
+                transport.receive(frame);
+            }
+        });
+    }
+
+    private void request(Recorder subscriber, long n) throws Exception {
+        subscriber.subscription.request(n);
+        drain();
+    }
+
+    public void testSubscribingDoesNotWaitForDemand() throws Exception {
+        establish();
+        Recorder subscriber = new Recorder(0);
+        short id = subscribe(subscriber);
+        // The SUBACK has to be read, whatever the subscriber requested.
+        assertFalse(transport.suspended);
+        suback(id, 1);
+        assertTrue(transport.suspended);
+
+        request(subscriber, 2);
+        assertFalse(transport.suspended);
+        receive(1);
+        assertFalse(transport.suspended);
+        receive(2);
+        assertEquals(2, subscriber.messages.size());
+        assertTrue(transport.suspended);
+    }
+
+    public void testMessagesAheadOfTheSubackWaitForDemand() throws Exception {
+        establish();
+        Recorder subscriber = new Recorder(0);
+        short id = subscribe(subscriber);
+        // Like a retained message.
+        receive(1);
+        assertEquals(0, subscriber.messages.size());
+        assertFalse(transport.suspended);
+        suback(id, 1);
+        assertTrue(transport.suspended);
+
+        request(subscriber, 1);
+        assertEquals(1, subscriber.messages.size());
+        assertTrue(transport.suspended);
+    }
+
+    public void testReadsUntilTheInitialDemandIsMet() throws Exception {
+        establish();
+        Recorder subscriber = new Recorder(1);
+        short id = subscribe(subscriber);
+        suback(id, 1);
+        assertFalse(transport.suspended);
+        receive(1);
+        assertEquals(1, subscriber.messages.size());
+        assertTrue(transport.suspended);
+    }
+
+    public void testRefusedSubscriptionFails() throws Exception {
+        establish();
+        Recorder subscriber = new Recorder(0);
+        short id = subscribe(subscriber);
+        suback(id, 0x80);
+        assertNotNull(subscriber.error);
+        assertFalse(transport.suspended);
+    }
+
+    public void testCancelResumesReadsAndUnsubscribes() throws Exception {
+        establish();
+        Recorder subscriber = new Recorder(0);
+        short id = subscribe(subscriber);
+        suback(id, 1);
+        assertTrue(transport.suspended);
+
+        subscriber.subscription.cancel();
+        drain();
+        assertFalse(transport.suspended);
+        assertEquals(1, transport.sent(UNSUBSCRIBE.TYPE).size());
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Checks the overflow queue keeps FIFO order as it wraps and grows.
+ * </p>
+ */
+public class RingBufferTest extends TestCase {
+
+    public void testWrapAndGrow() {
+        RingBuffer<Integer> queue = new RingBuffer<Integer>();
+        int next = 0;
+        int expected = 0;
+        // Move the head around the array a few times before growing it.
+        for (int round = 0; round < 40; round++) {
+            for (int i = 0; i < 10; i++) {
+                queue.addLast(next++);
+            }
+            for (int i = 0; i < 9; i++) {
+                assertEquals(Integer.valueOf(expected++), queue.removeFirst());
+            }
+        }
+        assertEquals(40, queue.size());
+        assertEquals(Integer.valueOf(expected), queue.peek());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(Integer.valueOf(expected + i), queue.get(i));
+        }
+        assertEquals(Integer.valueOf(expected + 40 - 1), queue.values().get(39));
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    public void testRemoveFromTheMiddle() {
+        RingBuffer<Integer> queue = new RingBuffer<Integer>();
+        for (int i = 0; i < 14; i++) {
+            queue.addLast(i);
+            queue.removeFirst();
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.addLast(i);
+        }
+        assertEquals(Integer.valueOf(2), queue.remove(2));
+        assertEquals(Arrays.asList(0, 1, 3, 4), queue.values());
+        queue.addLast(5);
+        assertEquals(Arrays.asList(0, 1, 3, 4, 5), queue.values());
+    }
+
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.fusesource.hawtdispatch.transport.ProtocolCodec;
+import org.fusesource.hawtdispatch.transport.Transport;
+import org.fusesource.hawtdispatch.transport.TransportListener;
+import org.fusesource.mqtt.codec.MQTTFrame;
+import org.fusesource.mqtt.codec.MQTTProtocolCodec;
+import org.fusesource.mqtt.codec.PUBLISH;
+
+/**
+ * <p>
+ * A Transport which plays the socket for connection tests.  The frames it
+ * is offered are recorded and encoded by a real MQTTProtocolCodec into a
+ * channel which counts the socket writes.  Like a TCP transport, the codec
+ * is flushed by a task on the dispatch queue after the first offer, so the
+ * frames offered by one task go out in one write.
+ * </p>
+ * <p>
+ * Setting {@link #full} makes it refuse frames until {@link #refill()}.
+ * Frames from the server are handed to the connection with {@link #receive(MQTTFrame)}.
+ * </p>
+ */
+public class TestTransport implements Transport {
+
+    private static final SocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 1883);
+
+    // Copies of the frames the transport took, in order.
+    public final List<MQTTFrame> sent = new ArrayList<MQTTFrame>();
+    // How many of them were PUBLISH commands offered as is rather than as frames.
+    public int publishCommands;
+    public boolean full;
+    public boolean suspended;
+    public int socketWrites;
+    public long bytesWritten;
+
+    private final RecordingChannel channel = new RecordingChannel();
+    private TransportListener listener;
+    private DispatchQueue dispatchQueue;
+    private Executor blockingExecutor;
+    private ProtocolCodec codec;
+    private boolean flushScheduled;
+    private boolean closed;
+
+    private final Task flushTask = new Task() {
+        public void run() {
+            flushScheduled = false;
+            flush();
+        }
+    };
+
+    public TestTransport(DispatchQueue queue) throws Exception {
+        this.dispatchQueue = queue;
+        setProtocolCodec(new MQTTProtocolCodec());
+    }
+
+    /**
+     * Accepts frames again and tells the connection.
+     */
+    public void refill() {
+        full = false;
+        listener.onRefill();
+    }
+
+    /**
+     * Hands a frame from the server to the connection, from its dispatch queue.
+     * Like a frame read by the codec, its body is then a single buffer.
+     */
+    public void receive(MQTTFrame frame) {
+        if( frame.buffers.length > 1 ) {
+            int length = 0;
+            for (Buffer buffer : frame.buffers) {
+                length += buffer.length;
+            }
+            byte[] body = new byte[length];
+            length = 0;
+            for (Buffer buffer : frame.buffers) {
+                System.arraycopy(buffer.data, buffer.offset, body, length, buffer.length);
+                length += buffer.length;
+            }
+            frame = new MQTTFrame(new Buffer(body, 0, length)).header(frame.header());
+        }
+        listener.onTransportCommand(frame);
+    }
+
+    /**
+     * @return the frames of the type that were sent.
+     */
+    public List<MQTTFrame> sent(byte type) {
+        ArrayList<MQTTFrame> rc = new ArrayList<MQTTFrame>();
+        for (MQTTFrame frame : sent) {
+            if( frame.messageType()==type ) {
+                rc.add(frame);
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return the message id of a frame with a variable header starting with
+     * it (acks, SUBSCRIBE) or of a QoS 1 or 2 PUBLISH.
+     */
+    public static short messageId(MQTTFrame frame) {
+        Buffer header = frame.buffers[0];
+        int offset = 0;
+        if( frame.messageType()==PUBLISH.TYPE ) {
+            offset = 2 + (((header.get(0) & 0xFF) << 8) | (header.get(1) & 0xFF));
+        }
+        return (short) (((header.get(offset) & 0xFF) << 8) | (header.get(offset + 1) & 0xFF));
+    }
+
+    public boolean offer(Object command) {
+        if( full || closed ) {
+            return false;
+        }
+        MQTTFrame frame;
+        if( command instanceof PUBLISH ) {
+            publishCommands++;
+            frame = ((PUBLISH) command).encode();
+        } else {
+            frame = (MQTTFrame) command;
+        }
+        Buffer[] copies = new Buffer[frame.buffers.length];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = frame.buffers[i].deepCopy();
+        }
+        sent.add(new MQTTFrame(copies).header(frame.header()));
+        try {
+            codec.write(command);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if( !flushScheduled ) {
+            flushScheduled = true;
+            dispatchQueue.execute(flushTask);
+        }
+        return true;
+    }
+
+    /**
+     * Writes what the codec holds and, like a TCP transport that emptied its
+     * write buffers, tells the listener it can send more.
+     */
+    public void flush() {
+        ProtocolCodec.BufferState state;
+        try {
+            state = codec.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if( state==ProtocolCodec.BufferState.EMPTY && listener!=null && !full && !closed ) {
+            listener.onRefill();
+        }
+    }
+
+    public void start(Runnable onComplete) {
+        if( onComplete!=null ) {
+            onComplete.run();
+        }
+    }
+
+    public void stop(Runnable onComplete) {
+        closed = true;
+        if( onComplete!=null ) {
+            onComplete.run();
+        }
+    }
+
+    public void start(Task onComplete) {
+        start((Runnable) onComplete);
+    }
+
+    public void stop(Task onComplete) {
+        stop((Runnable) onComplete);
+    }
+
+    public boolean full() {
+        return full;
+    }
+
+    public TransportListener getTransportListener() {
+        return listener;
+    }
+
+    public void setTransportListener(TransportListener listener) {
+        this.listener = listener;
+    }
+
+    public DispatchQueue getDispatchQueue() {
+        return dispatchQueue;
+    }
+
+    public void setDispatchQueue(DispatchQueue queue) {
+        this.dispatchQueue = queue;
+    }
+
+    public void suspendRead() {
+        suspended = true;
+    }
+
+    public void resumeRead() {
+        suspended = false;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return ADDRESS;
+    }
+
+    public SocketAddress getLocalAddress() {
+        return ADDRESS;
+    }
+
+    public void drainInbound() {
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    public ProtocolCodec getProtocolCodec() {
+        return codec;
+    }
+
+    public void setProtocolCodec(ProtocolCodec codec) throws Exception {
+        this.codec = codec;
+        if( codec!=null ) {
+            codec.setTransport(this);
+        }
+    }
+
+    public Executor getBlockingExecutor() {
+        return blockingExecutor;
+    }
+
+    public void setBlockingExecutor(Executor blockingExecutor) {
+        this.blockingExecutor = blockingExecutor;
+    }
+
+    public ReadableByteChannel getReadChannel() {
+        return channel;
+    }
+
+    public WritableByteChannel getWriteChannel() {
+        return channel;
+    }
+
+    /**
+     * Takes everything written to it, counting the writes.
+     */
+    class RecordingChannel implements GatheringByteChannel, ReadableByteChannel {
+
+        public int write(ByteBuffer src) {
+            socketWrites++;
+            return take(src);
+        }
+
+        private int take(ByteBuffer src) {
+            int rc = src.remaining();
+            src.position(src.limit());
+            bytesWritten += rc;
+            return rc;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            socketWrites++;
+            long rc = 0;
+            for (int i = offset; i < offset + length; i++) {
+                rc += take(srcs[i]);
+            }
+            return rc;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int read(ByteBuffer dst) {
+            return 0;
+        }
+
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.client;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks the topic trie applies the MQTT wildcard matching rules.
+ * </p>
+ */
+public class TopicTrieTest extends TestCase {
+
+    private static List<String> match(TopicTrie<String> trie, String topic) {
+        String[] rc = trie.match(utf8(topic)).toArray(new String[0]);
+        Arrays.sort(rc);
+        return Arrays.asList(rc);
+    }
+
+    public void testWildcards() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        for (String filter : new String[]{"sport/tennis/player1", "sport/tennis/+", "sport/#", "+/+/player1", "#", "+", "$SYS/#"}) {
+            trie.add(utf8(filter), filter);
+        }
+        assertEquals(Arrays.asList("#", "+/+/player1", "sport/#", "sport/tennis/+", "sport/tennis/player1"), match(trie, "sport/tennis/player1"));
+        assertEquals(Arrays.asList("#", "sport/#"), match(trie, "sport/tennis/player1/ranking"));
+        assertEquals(Arrays.asList("#", "+", "sport/#"), match(trie, "sport"));
+        assertEquals(Arrays.asList("#", "sport/#", "sport/tennis/+"), match(trie, "sport/tennis/"));
+        assertEquals(Arrays.asList("$SYS/#"), match(trie, "$SYS/broker/uptime"));
+        assertEquals(7, trie.size());
+    }
+
+    public void testRemoveClearsTheCache() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        trie.add(utf8("a/+/c"), "first");
+        trie.add(utf8("a/+/c"), "second");
+        assertEquals(Arrays.asList("first", "second"), match(trie, "a/b/c"));
+        assertTrue(trie.remove(utf8("a/+/c"), "first"));
+        assertFalse(trie.remove(utf8("a/+/c"), "first"));
+        assertEquals(Arrays.asList("second"), match(trie, "a/b/c"));
+        assertEquals(Arrays.asList("second"), trie.removeAll(utf8("a/+/c")));
+        assertEquals(Collections.emptyList(), match(trie, "a/b/c"));
+        assertTrue(trie.isEmpty());
+        assertTrue(trie.values().isEmpty());
+    }
+}
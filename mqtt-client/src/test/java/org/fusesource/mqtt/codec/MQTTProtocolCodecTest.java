@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.codec;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.ByteArrayOutputStream;
+import org.fusesource.mqtt.client.QoS;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Exercises the codec against in memory channels.
+ * </p>
+ */
+public class MQTTProtocolCodecTest extends TestCase {
+
+    static class MemoryChannel implements GatheringByteChannel, ReadableByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        Buffer readable = new Buffer(0);
+
+        public int write(ByteBuffer src) {
+            int rc = src.remaining();
+            while (src.hasRemaining()) {
+                written.write(src.get());
+            }
+            return rc;
+        }
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long rc = 0;
+            for (int i = offset; i < offset + length; i++) {
+                rc += write(srcs[i]);
+            }
+            return rc;
+        }
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+        public int read(ByteBuffer dst) {
+            int rc = Math.min(dst.remaining(), readable.length);
+            dst.put(readable.data, readable.offset, rc);
+            readable.moveHead(rc);
+            return rc;
+        }
+        public boolean isOpen() {
+            return true;
+        }
+        public void close() {
+        }
+    }
+
+    static class TestCodec extends MQTTProtocolCodec {
+        TestCodec(MemoryChannel channel) {
+            writeChannel = channel;
+            readChannel = channel;
+            nextDecodeAction = initialDecodeAction();
+        }
+    }
+
+    static class PooledCodec extends TestCodec {
+        PooledCodec(MemoryChannel channel) {
+            super(channel);
+            writeBufferPool = bufferPools.getBufferPool(writeBufferSize);
+        }
+        byte[] writeArray() {
+            return nextWriteBuffer.getData();
+        }
+    }
+
+    private static Buffer write(Object command) throws Exception {
+        MemoryChannel channel = new MemoryChannel();
+        TestCodec codec = new TestCodec(channel);
+        codec.write(command);
+        codec.flush();
+        return channel.written.toBuffer();
+    }
+
+    private static PUBLISH publish(QoS qos, int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        PUBLISH publish = new PUBLISH().qos(qos).retain(true).topicName(utf8("foo/bar"));
+        publish.payload(new Buffer(payload)).messageId((short) 42);
+        return publish;
+    }
+
+    public void testDirectPublishEncodingMatchesFrameEncoding() throws Exception {
+        for (QoS qos : QoS.values()) {
+            for (int size : new int[]{0, 10, 4096, 1024 * 200}) {
+                PUBLISH publish = publish(qos, size);
+                assertEquals("qos: " + qos + ", size: " + size, write(publish.encode()), write(publish));
+            }
+        }
+    }
+
+    public void testLargePayloadRoundTrip() throws Exception {
+        PUBLISH publish = publish(QoS.AT_LEAST_ONCE, 1024 * 200);
+
+        MemoryChannel channel = new MemoryChannel();
+        channel.readable = write(publish);
+        TestCodec codec = new TestCodec(channel);
+        MQTTFrame frame = null;
+        while (frame == null) {
+            frame = (MQTTFrame) codec.read();
+        }
+
+        PUBLISH decoded = new PUBLISH().decode(frame);
+        assertEquals(QoS.AT_LEAST_ONCE, decoded.qos());
+        assertTrue(decoded.retain());
+        assertEquals(42, decoded.messageId());
+        assertEquals(utf8("foo/bar"), decoded.topicName());
+        assertTrue(Arrays.equals(publish.payload().toByteArray(), decoded.payload().toByteArray()));
+    }
+
+    public void testWrittenArraysAreReturnedToThePool() throws Exception {
+        MemoryChannel channel = new MemoryChannel();
+        PooledCodec codec = new PooledCodec(channel);
+        IdentityHashMap<byte[], Boolean> arrays = new IdentityHashMap<byte[], Boolean>();
+        for (int i = 0; i < 100; i++) {
+            codec.write(publish(QoS.AT_MOST_ONCE, 10));
+            arrays.put(codec.writeArray(), Boolean.TRUE);
+            codec.flush();
+        }
+        // Each flush checks out the next array, which is the one written before.
+        assertTrue("arrays: " + arrays.size(), arrays.size() <= 2);
+    }
+
+}
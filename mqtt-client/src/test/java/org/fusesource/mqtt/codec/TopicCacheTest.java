@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2010-2012, FuseSource Corp.  All rights reserved.
+ *
+ *     http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fusesource.mqtt.codec;
+
+import junit.framework.TestCase;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.ByteArrayOutputStream;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.QoS;
+
+import static org.fusesource.hawtbuf.Buffer.utf8;
+
+/**
+ * <p>
+ * Checks decoded topics are shared while cached and evicted least recently used first.
+ * </p>
+ */
+public class TopicCacheTest extends TestCase {
+
+    private static UTF8Buffer intern(TopicCache cache, String topic) {
+        // Surround the topic with other bytes like it would be in a frame.
+        byte[] frame = ("xx" + topic + "yy").getBytes();
+        return cache.intern(frame, 2, frame.length - 4);
+    }
+
+    public void testInternAndEvict() {
+        TopicCache cache = new TopicCache(2);
+        UTF8Buffer a = intern(cache, "a/1");
+        assertEquals(utf8("a/1"), a);
+        assertSame(a, intern(cache, "a/1"));
+        UTF8Buffer b = intern(cache, "a/2");
+        assertSame(a, intern(cache, "a/1"));
+        // a/2 is the least recently used.
+        intern(cache, "a/3");
+        assertEquals(2, cache.size());
+        assertSame(a, intern(cache, "a/1"));
+        UTF8Buffer b2 = intern(cache, "a/2");
+        assertNotSame(b, b2);
+        assertEquals(b, b2);
+    }
+
+    public void testPublishDecodeUsesTheCache() throws Exception {
+        TopicCache cache = new TopicCache(16);
+        MQTTFrame encoded = new PUBLISH().qos(QoS.AT_MOST_ONCE).topicName(utf8("foo/bar")).payload(new Buffer(new byte[]{1, 2})).encode();
+        // Received frames have their body in a single buffer.
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (Buffer buffer : encoded.buffers) {
+            body.write(buffer);
+        }
+        MQTTFrame frame = new MQTTFrame(body.toBuffer()).header(encoded.header());
+        UTF8Buffer first = new PUBLISH().decode(frame, cache).topicName();
+        PUBLISH second = new PUBLISH().decode(frame, cache);
+        assertSame(first, second.topicName());
+        assertEquals(2, second.payload().length);
+    }
+}